@@ -3,14 +3,27 @@ package slp.core;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.DoubleSummaryStatistics;
 import java.util.List;
 import java.util.stream.Stream;
 
 import slp.core.counting.Counter;
+import slp.core.counting.delta.DeltaCounter;
 import slp.core.counting.giga.GigaCounter;
+import slp.core.counting.giga.SpillingCounter;
+import slp.core.counting.giga.VirtualCounter;
+import slp.core.counting.hash.HashCounter;
+import slp.core.counting.hash.SketchCounter;
 import slp.core.counting.io.CounterIO;
 import slp.core.counting.trie.AbstractTrie;
+import slp.core.counting.trie.AdaptiveTrieCounter;
+import slp.core.counting.trie.ArrayTrieCounter;
+import slp.core.counting.trie.ConcurrentTrieCounter;
+import slp.core.counting.trie.DenseTrieCounter;
+import slp.core.counting.trie.FrozenTrieCounter;
+import slp.core.counting.trie.MapTrieCounter;
+import slp.core.counting.trie.SnapshotTrieCounter;
 import slp.core.example.BasicJavaRunner;
 import slp.core.example.BasicNLRunner;
 import slp.core.io.Writer;
@@ -64,6 +77,18 @@ public class CLI {
 	private static final String TRAIN = "(-tr|--train)";
 	private static final String ORDER = "(-o|--order)";
 	private static final String GIGA = "--giga";
+	private static final String COUNTER_TYPE = "--counter-type";
+	private static final String FORGET = "--forget";
+	private static final String SPILL_BUDGET = "--spill-budget";
+	private static final String SKETCH_BUDGET = "--sketch-budget";
+	private static final String SHARDS = "--shards";
+	private static final String PRUNE = "--prune";
+	private static final String PRUNE_ENTROPY = "--prune-entropy";
+	private static final String STATISTICS = "--stats";
+	private static final String COMPRESS = "--compress";
+	private static final String CHECKPOINT = "--checkpoint";
+	private static final String CHECKPOINT_FILES = "--checkpoint-files";
+	private static final String CHECKPOINT_TOKENS = "--checkpoint-tokens";
 	
 	// Testing options
 	private static final String TEST = "(-te|--test)";
@@ -73,6 +98,7 @@ public class CLI {
 	private static final String CACHE = "(-c|--cache)";
 	private static final String DYNAMIC = "(-d|--dynamic)";
 	private static final String NESTED = "(-n|--nested)";
+	private static final String FREEZE = "--freeze";
 
 	private static String[] arguments;
 	private static String mode;
@@ -125,6 +151,9 @@ public class CLI {
 			case "train-predict": {
 				trainPredict(); break;
 			}
+			case "apply": {
+				apply(); break;
+			}
 			default: {
 				exit("Command " + mode + " not recognized; use -h for help.");
 			}
@@ -154,6 +183,7 @@ public class CLI {
 		System.out.println("\tpredict --test <path> --counter <counts-file> [OPTIONS]: test predictions on files in in-path using counter from counts-file."
 				+ "\n\t\tUse -m (below) to set the model. See also: test, train-predict");
 		System.out.println("\ttrain-predict --train <path> --test <path> [OPTIONS]: train on train-path or self-test on test-path; tests prediction accuracy on test-path without storing a counter");
+		System.out.println("\tapply <counter-file> <delta-file> <out-file>: apply a delta counter (see '--counter-type delta') to the counter in counter-file and write the result to out-file.");
 		
 		System.out.println("\nOptions:");
 		System.out.println("  General:");
@@ -178,6 +208,32 @@ public class CLI {
 		System.out.println("  Training:");
 		System.out.println("\t-tr | --train: the path to train on");
 		System.out.println("\t-o | --order: specify order for n-gram models. Default: 6");
+		System.out.println("\t--counter-type: the counter to train with. One of (map, dense, array, adaptive, giga, concurrent, snapshot, hash, sketch, spill, delta). Default: map"
+				+ "\n\t\tUse 'dense' for faster lookups, indexing the root directly by token (sized to the vocabulary), 'adaptive' for a smaller trie that does the same,"
+				+ "\n\t\t'giga' for very large corpora and 'concurrent' to count a single trie with all cores. --giga is short for '--counter-type giga'"
+				+ "\n\t\tUse 'snapshot' to keep querying a counter while it is updated (e.g. by a dynamic model); lookups never lock or see half-learned files"
+				+ "\n\t\tUse 'hash' for fast, compact scoring (e.g. entropy); it cannot be used for prediction"
+				+ "\n\t\tUse 'sketch' for approximate scoring over unbounded corpora in fixed memory (see --sketch-budget); it cannot be used for prediction"
+				+ "\n\t\tUse 'spill' for corpora too large to count in memory; sequences are sorted and merged on disk (see --spill-budget)"
+				+ "\n\t\tUse 'delta' to only record the changes to a counter trained earlier, with the same vocabulary: train on files added since"
+				+ "\n\t\tand forget files removed since (see --forget; for changed files, use both), then patch that counter with 'apply'");
+		System.out.println("\t--forget: the path to forget after training, e.g. the files removed since a counter was trained, with '--counter-type delta'");
+		System.out.println("\t--spill-budget: memory (in MB) to buffer sequences in before spilling them to disk, with '--counter-type spill'. Default: 256");
+		System.out.println("\t--sketch-budget: memory (in MB) of the count-min sketches, with '--counter-type sketch'. Larger sketches overestimate counts less. Default: 64");
+		System.out.println("\t--shards: the number of shards to resolve counts into, with '--counter-type giga' or 'spill'. Default: 16");
+		System.out.println("\t--prune: prune the trained counter, given the minimum count per order as a comma-separated list, e.g. '1,2,3'."
+				+ "\n\t\tThe last value applies to all higher orders. Default: no pruning");
+		System.out.println("\t--prune-entropy: additionally prune n-grams whose (approximate) contribution to the model's relative entropy is below this threshold, e.g. 1e-8."
+				+ "\n\t\tUses the model set with -m. Default: 0 (no entropy pruning)");
+		System.out.println("\t--stats: print the trained (and pruned) counter's statistics, such as its estimated size and n-grams per order");
+		System.out.println("\t--freeze: store a compact, read-only counter. Frozen counters are memory-mapped rather than read when testing,"
+				+ "\n\t\tso they are available almost immediately regardless of their size, but cannot be updated");
+		System.out.println("\t--compress: compress the stored counter, in blocks that are (de)compressed in parallel."
+				+ "\n\t\tMakes counter files several times smaller, e.g. for network storage; compressed counters cannot be memory-mapped");
+		System.out.println("\t--checkpoint: periodically store training progress in this directory, in the background, and resume from it if it holds checkpoints."
+				+ "\n\t\tCheckpoints are deleted once the counter is written. Requires a counter type that supports merging: map, array, adaptive, giga or spill");
+		System.out.println("\t--checkpoint-files: the number of files per checkpoint, with --checkpoint. Default: 10000");
+		System.out.println("\t--checkpoint-tokens: the maximum number of tokens per checkpoint, with --checkpoint. Default: no limit");
 		System.out.println("  Testing:");
 		System.out.println("\t-te | --test: the path to test on");
 		System.out.println("\t--counter: the path to read the counter from, if testing with pre-trained model");
@@ -187,6 +243,8 @@ public class CLI {
 		System.out.println("\t-c | --cache: add an n-gram cache model");
 		System.out.println("\t-d | --dynamic: dynamically update all models with test data");
 		System.out.println("\t-n | --nested: build a nested model of test data (sets dynamic to false); see paper for more details");
+		System.out.println("\t--freeze: convert the counter read from file into a compact, read-only counter before testing."
+				+ "\n\t\tReduces memory use; ignored when the counter must be updated (self-testing, dynamic or nested models)");
 		System.out.println();
 	}
 	
@@ -222,6 +280,17 @@ public class CLI {
 	private static ModelRunner setupModelRunner() {
 		ModelRunner modelRunner = new ModelRunner(model, lexerRunner, vocabulary);
 		if (isSelf()) modelRunner.setSelfTesting(true);
+		if (mode.equals("train") && isSet(CHECKPOINT)) {
+			try {
+				int files = isSet(CHECKPOINT_FILES) ? Integer.parseInt(getArg(CHECKPOINT_FILES)) : 10000;
+				long tokens = isSet(CHECKPOINT_TOKENS) ? Long.parseLong(getArg(CHECKPOINT_TOKENS)) : 0;
+				modelRunner.setCheckpointing(new File(getArg(CHECKPOINT)), files, tokens);
+			} catch (NumberFormatException e) {
+				exit("Invalid checkpoint interval: " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				exit(e.getMessage());
+			}
+		}
 		return modelRunner;
 	}
 
@@ -280,7 +349,7 @@ public class CLI {
 
 	private static Counter getCounter() {
 		if (!mode.equals("test") && !mode.equals("predict")) {
-			return isSet(GIGA) ? new GigaCounter() : new JMModel().getCounter();
+			return getCounterType();
 		}
 		else {
 			File counterFile = getCounterFile();
@@ -292,12 +361,72 @@ public class CLI {
 				System.out.println("Retrieving counter from file");
 				Counter counter = CounterIO.readCounter(new File(getArg(COUNTER)));
 				System.out.println("Counter retrieved in " + (System.currentTimeMillis() - t)/1000 + "s");
+				if (counter instanceof FrozenTrieCounter && (isSelf() || isSet(DYNAMIC) || isSet(NESTED))) {
+					exit("Counter file holds a frozen counter, which cannot be updated for self-testing, dynamic or nested models");
+				}
+				if (isSet(FREEZE) && !isSelf() && !isSet(DYNAMIC) && !isSet(NESTED)) {
+					t = System.currentTimeMillis();
+					try {
+						counter = counter.freeze();
+						System.out.println("Counter frozen in " + (System.currentTimeMillis() - t)/1000 + "s");
+					} catch (UnsupportedOperationException e) {
+						// Freezing only speeds up lookups, so the counter is used as is
+						System.out.println(e.getMessage() + ", using it unfrozen");
+					}
+				}
 				return counter;
 			}
 		}
 		return null;
 	}
 
+	private static int getShards() {
+		if (!isSet(SHARDS)) return VirtualCounter.DEFAULT_SHARDS;
+		try {
+			return Integer.parseInt(getArg(SHARDS));
+		} catch (NumberFormatException e) {
+			exit("Invalid number of shards: " + getArg(SHARDS));
+			return VirtualCounter.DEFAULT_SHARDS;
+		}
+	}
+
+	private static Counter getCounterType() {
+		String type = isSet(GIGA) ? "giga" : getArg(COUNTER_TYPE);
+		if (type == null || type.toLowerCase().equals("map")) return new MapTrieCounter();
+		else if (type.toLowerCase().equals("array")) return new ArrayTrieCounter();
+		else if (type.toLowerCase().equals("giga")) return new GigaCounter(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), getShards());
+		else if (type.toLowerCase().equals("concurrent")) return new ConcurrentTrieCounter();
+		else if (type.toLowerCase().equals("snapshot")) return new SnapshotTrieCounter();
+		else if (type.toLowerCase().equals("dense")) return new DenseTrieCounter(vocabulary);
+		else if (type.toLowerCase().equals("adaptive")) return new AdaptiveTrieCounter(vocabulary);
+		else if (type.toLowerCase().equals("hash")) return new HashCounter();
+		else if (type.toLowerCase().equals("delta")) return new DeltaCounter();
+		else if (type.toLowerCase().equals("sketch")) {
+			try {
+				int order = isSet(ORDER) ? Integer.parseInt(getArg(ORDER)) : ModelRunner.DEFAULT_NGRAM_ORDER;
+				long budget = isSet(SKETCH_BUDGET) ? Long.parseLong(getArg(SKETCH_BUDGET)) << 20 : SketchCounter.DEFAULT_BUDGET;
+				SketchCounter counter = new SketchCounter(order, budget);
+				System.out.printf("Counting in sketches with error bound %.2g times the total count per length, with probability %.3f\n",
+						counter.getEpsilon(), 1 - counter.getDelta());
+				return counter;
+			} catch (NumberFormatException e) {
+				exit("Invalid sketch budget: " + getArg(SKETCH_BUDGET));
+			} catch (IllegalArgumentException e) {
+				exit(e.getMessage());
+			}
+		}
+		else if (type.toLowerCase().equals("spill")) {
+			try {
+				long budget = isSet(SPILL_BUDGET) ? Long.parseLong(getArg(SPILL_BUDGET)) << 20 : SpillingCounter.DEFAULT_BUDGET;
+				return new SpillingCounter(budget, new File(System.getProperty("java.io.tmpdir")), getShards());
+			} catch (NumberFormatException e) {
+				exit("Invalid spill budget: " + getArg(SPILL_BUDGET));
+			}
+		}
+		System.out.println("Counter type " + type + " not recognized, using map");
+		return new MapTrieCounter();
+	}
+
 	private static Model wrapModel(Model m) {
 		if (isSet(NESTED)) {
 			if (isSet(TEST)) m = new NestedModel(m, lexerRunner, vocabulary, new File(getArg(TEST)));
@@ -359,22 +488,69 @@ public class CLI {
 			exit("Source path for training does not exist: " + inDir);
 		}
 		boolean emptyVocab = vocabulary.size() <= 1;
+		int vocabSize = vocabulary.size();
 		modelRunner.learnDirectory(inDir);
+		if (isSet(FORGET)) {
+			File forgetDir = new File(getArg(FORGET));
+			if (!forgetDir.exists()) exit("Path to forget does not exist: " + forgetDir);
+			modelRunner.forgetDirectory(forgetDir);
+		}
 		Counter counter = ((NGramModel) model).getCounter();
 		// Force GigaCounter.resolve() (if applicable), just for accurate timings below
 		counter.getCount();
 		
 		long t = System.currentTimeMillis();
+		if (isSet(PRUNE) || isSet(PRUNE_ENTROPY)) {
+			System.out.println("Pruning counter");
+			try {
+				int[] minCounts = isSet(PRUNE) ? Arrays.stream(getArg(PRUNE).split(",")).mapToInt(c -> Integer.parseInt(c.trim())).toArray() : new int[0];
+				double threshold = isSet(PRUNE_ENTROPY) ? Double.parseDouble(getArg(PRUNE_ENTROPY)) : 0;
+				long pruned = ((NGramModel) model).prune(minCounts, threshold);
+				System.out.println("Pruned " + pruned + " sequences in " + (System.currentTimeMillis() - t)/1000 + "s");
+			} catch (NumberFormatException e) {
+				exit("Invalid pruning option: " + e.getMessage());
+			} catch (UnsupportedOperationException e) {
+				exit(e.getMessage());
+			}
+			t = System.currentTimeMillis();
+		}
+		if (isSet(STATISTICS)) {
+			try {
+				System.out.println(counter.getStatistics());
+			} catch (UnsupportedOperationException e) {
+				System.out.println(e.getMessage());
+			}
+			t = System.currentTimeMillis();
+		}
+		if (isSet(FREEZE)) {
+			System.out.println("Freezing counter");
+			try {
+				counter = counter.freeze();
+				System.out.println("Counter frozen in " + (System.currentTimeMillis() - t)/1000 + "s");
+			} catch (UnsupportedOperationException e) {
+				// The trained counts are still worth storing
+				System.out.println(e.getMessage() + ", writing it unfrozen");
+			}
+			t = System.currentTimeMillis();
+		}
 		System.out.println("Writing counter to file");
-		CounterIO.writeCounter(counter, outFile);
+		boolean written = CounterIO.writeCounter(counter, outFile, isSet(COMPRESS));
 		System.out.println("Counter written in " + (System.currentTimeMillis() - t)/1000 + "s");
 		if (emptyVocab) {
 			System.out.println("Writing vocabulary to file");
 			File vocabFile = getVocabularyFile();
-			if (!vocabFile.exists()) vocabFile = new File(outFile.getParentFile(), "train.vocab");
+			if (vocabFile == null || !vocabFile.exists()) vocabFile = new File(outFile.getParentFile(), "train.vocab");
 			VocabularyRunner.write(vocabulary, vocabFile);
 			System.out.println("Vocabulary written");
 		}
+		else if (vocabulary.size() > vocabSize && counter instanceof DeltaCounter) {
+			// A delta is only valid with the tokens it appended to the vocabulary that was read,
+			// which remains valid for the counter trained with it before
+			System.out.println("Vocabulary grew by " + (vocabulary.size() - vocabSize) + " tokens, writing it to: " + getVocabularyFile());
+			VocabularyRunner.write(vocabulary, getVocabularyFile());
+		}
+		// Checkpoints are only needed until the trained counter is stored
+		if (written) modelRunner.clearCheckpoints();
 	}
 
 	private static void test() {
@@ -395,6 +571,31 @@ public class CLI {
 				fileCount[0], stats.getCount(), stats.getAverage());
 	}
 
+	private static void apply() {
+		if (arguments.length < 4) {
+			exit("Not enough arguments given."
+					+ "Applying a delta requires three arguments: counter file, delta file and output file.");
+		}
+		File counterFile = new File(arguments[1]);
+		File deltaFile = new File(arguments[2]);
+		File outFile = new File(arguments[3]);
+		if (!counterFile.exists() || !deltaFile.exists()) exit("Counter or delta file does not exist: " + counterFile + ", " + deltaFile);
+		long t = System.currentTimeMillis();
+		Counter counter = CounterIO.readCounter(counterFile);
+		Counter delta = CounterIO.readCounter(deltaFile);
+		if (counter == null || delta == null) exit("Reading counter or delta failed");
+		if (!(delta instanceof DeltaCounter)) exit("Not a delta counter: " + deltaFile);
+		System.out.println("Counters retrieved in " + (System.currentTimeMillis() - t)/1000 + "s");
+		t = System.currentTimeMillis();
+		try {
+			((DeltaCounter) delta).applyTo(counter);
+		} catch (UnsupportedOperationException e) {
+			exit(e.getMessage());
+		}
+		System.out.println("Delta applied in " + (System.currentTimeMillis() - t)/1000 + "s");
+		if (!CounterIO.writeCounter(counter, outFile, isSet(COMPRESS))) exit("Writing patched counter failed: " + outFile);
+	}
+
 	private static void trainTest() {
 		trainModel();
 		File testDir = getTestFile();
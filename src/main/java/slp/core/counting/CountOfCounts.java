@@ -0,0 +1,93 @@
+package slp.core.counting;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count-of-counts table owned by a (root) counter: tracks, for every sequence length n,
+ * how many distinct sequences of that length were seen once, twice, three times and four or more times.
+ * These statistics are used by e.g. the absolute discounting models to compute their discounts.<br /><br />
+ *
+ * The table grows with the longest sequence counted, so no order is silently dropped.
+ * Cells are {@link LongAdder}s, so many threads can update the same table (e.g. when unpacking in parallel)
+ * without contending on a single cache line or lock.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class CountOfCounts {
+
+	public static final int RANGE = 4;
+
+	private volatile LongAdder[][] table = new LongAdder[0][];
+
+	/**
+	 * Records that a sequence of length {@code n} changed from count {@code count - adj} to {@code count}.
+	 */
+	public void update(int n, int count, int adj) {
+		if (n == 0) return;
+		int currIndex = Math.min(count, RANGE);
+		int prevIndex = Math.min(count - adj, RANGE);
+		if (currIndex != prevIndex) {
+			LongAdder[] toUpdate = getRow(n);
+			if (currIndex > 0) toUpdate[currIndex - 1].increment();
+			if (prevIndex > 0) toUpdate[prevIndex - 1].decrement();
+		}
+	}
+
+	/**
+	 * Records a (previously unseen) sequence of length {@code n} with count {@code count}.
+	 */
+	public void add(int n, int count) {
+		update(n, count, count);
+	}
+
+	/**
+	 * Records {@code times} (previously unseen) sequences of length {@code n} with count {@code count}, e.g. to restore a stored table.
+	 */
+	public void add(int n, int count, long times) {
+		if (n == 0 || count <= 0 || times == 0) return;
+		getRow(n)[Math.min(count, RANGE) - 1].add(times);
+	}
+
+	/**
+	 * Returns the number of sequences of length n seen `count' times.
+	 * As with the original shared table, n is capped at the longest length seen and counts are capped at {@link #RANGE}.
+	 */
+	public int get(int n, int count) {
+		LongAdder[][] table = this.table;
+		if (table.length == 0 || n <= 0 || count <= 0) return 0;
+		int minN = Math.min(n, table.length) - 1;
+		int minC = Math.min(count, RANGE) - 1;
+		return (int) table[minN][minC].sum();
+	}
+
+	public int getOrder() {
+		return this.table.length;
+	}
+
+	public void clear() {
+		synchronized (this) {
+			this.table = new LongAdder[0][];
+		}
+	}
+
+	private LongAdder[] getRow(int n) {
+		LongAdder[][] table = this.table;
+		if (n > table.length) {
+			synchronized (this) {
+				table = this.table;
+				if (n > table.length) {
+					LongAdder[][] grown = Arrays.copyOf(table, n);
+					for (int i = table.length; i < n; i++) {
+						grown[i] = new LongAdder[RANGE];
+						for (int j = 0; j < RANGE; j++) grown[i][j] = new LongAdder();
+					}
+					this.table = grown;
+					table = grown;
+				}
+			}
+		}
+		return table[n - 1];
+	}
+}
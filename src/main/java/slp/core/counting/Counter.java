@@ -5,11 +5,16 @@ import java.util.List;
 
 import slp.core.counting.trie.ArrayTrieCounter;
 import slp.core.modeling.ngram.NGramModel;
+import slp.core.util.Util;
 
 /**
  * Interface for counter implementations that can be used by count-based models,
  * most notably the {@link ArrayTrieCounter} which provides a rather efficient implementation
  * that is currently used by the {@link NGramModel}s.
+ * <br /><br />
+ * Every lookup and update is offered both on {@code List<Integer>} sequences and on primitive ranges {@code tokens[from, to)}.
+ * The latter write their results into caller-supplied buffers, so callers on a hot path can avoid boxing and allocation altogether.
+ * The default primitive implementations simply defer to the {@code List} API; counters should override them natively where possible.
  * 
  * @author Vincent Hellendoorn
  *
@@ -24,14 +29,28 @@ public interface Counter extends Externalizable {
 	public int getCount();
 	
 	/**
-	 * Returns [context-count, count] pair of {@code indices}, for convenient MLE.
+	 * Returns [count, context-count] pair of {@code indices}, for convenient MLE.
 	 * Note: poorly defined on empty list.
 	 * 
 	 * @param indices Sequence of stored, translated tokens to return counts for
-	 * @return The stored [context-count, count] pair of indices
+	 * @return The stored [count, context-count] pair of indices
 	 */
 	public long[] getCounts(List<Integer> indices);
 
+	/**
+	 * Primitive counterpart of {@link #getCounts(List)}.
+	 * 
+	 * @param tokens Array holding the sequence of stored, translated tokens
+	 * @param from Start (inclusive) of the sequence in {@code tokens}
+	 * @param to End (exclusive) of the sequence in {@code tokens}
+	 * @param counts Buffer of length (at least) 2 to write the [count, context-count] pair to
+	 */
+	public default void getCounts(int[] tokens, int from, int to, long[] counts) {
+		long[] result = getCounts(Util.toList(tokens, from, to));
+		counts[0] = result[0];
+		counts[1] = result[1];
+	}
+
 	/**
 	 * Returns the number of sequences of length n seen `count' times
 	 */
@@ -41,11 +60,151 @@ public interface Counter extends Externalizable {
 	public int getSuccessorCount(List<Integer> indices);
 	public List<Integer> getTopSuccessors(List<Integer> indices, int limit);
 	
+	public default int getSuccessorCount(int[] tokens, int from, int to) {
+		return getSuccessorCount(Util.toList(tokens, from, to));
+	}
+
+	/**
+	 * Primitive counterpart of {@link #getTopSuccessors(List, int)}, using the length of {@code successors} as limit.
+	 * 
+	 * @return The number of successors written to {@code successors}
+	 */
+	public default int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		List<Integer> top = getTopSuccessors(Util.toList(tokens, from, to), successors.length);
+		for (int i = 0; i < top.size(); i++) successors[i] = top.get(i);
+		return top.size();
+	}
+	
 	public int[] getDistinctCounts(int range, List<Integer> indices);
 
+	/**
+	 * Primitive counterpart of {@link #getDistinctCounts(int, List)}, using the length of {@code distinctCounts} as range.
+	 */
+	public default void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		int[] result = getDistinctCounts(distinctCounts.length, Util.toList(tokens, from, to));
+		System.arraycopy(result, 0, distinctCounts, 0, distinctCounts.length);
+	}
+
+	/**
+	 * Combines {@link #getCounts(int[], int, int, long[])} on {@code tokens[from, to)} with {@link #getDistinctCounts(int[], int, int, int[])}
+	 * on its context {@code tokens[from, to - 1)}, which is everything a smoothed model needs at one order.
+	 * Trie-based counters answer this with a single descent to the context rather than one descent per lookup.
+	 *
+	 * @param counts Buffer of length (at least) 2 to write the [count, context-count] pair to
+	 * @param distinctCounts Buffer to write the context's distinct counts to, using its length as range (may be empty)
+	 */
+	public default void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		getCounts(tokens, from, to, counts);
+		if (distinctCounts.length > 0) getDistinctCounts(tokens, from, to - 1, distinctCounts);
+	}
+
+	/**
+	 * Looks up {@link #getCounts(int[], int, int, long[], int[])} for every suffix of {@code tokens[from, to)} in one call,
+	 * from the shortest (just the last token) to the longest, writing the results for the suffix of length k + 1
+	 * to {@code counts[k]} and {@code distinctCounts[k]}. Stops at the first suffix whose context was never seen,
+	 * since none of the longer suffixes can have been seen either.
+	 *
+	 * @param counts Buffers for the [count, context-count] pairs, one per suffix length
+	 * @param distinctCounts Buffers for the contexts' distinct counts, one per suffix length
+	 * @return The number of suffixes (starting with the shortest) that were looked up and have a non-zero context count
+	 */
+	public default int getSuffixCounts(int[] tokens, int from, int to, long[][] counts, int[][] distinctCounts) {
+		int found = 0;
+		for (int i = to - 1; i >= from; i--, found++) {
+			getCounts(tokens, i, to, counts[found], distinctCounts[found]);
+			if (counts[found][1] == 0) break;
+		}
+		return found;
+	}
+
 	public void count(List<Integer> indices);
 	public void unCount(List<Integer> indices);
 
+	public default void count(int[] tokens, int from, int to) {
+		count(Util.toList(tokens, from, to));
+	}
+	public default void unCount(int[] tokens, int from, int to) {
+		unCount(Util.toList(tokens, from, to));
+	}
+
+	/**
+	 * Counts every suffix of {@code tokens[from, to)}, from the longest to the shortest, i.e. every sequence ending in its last token
+	 * up to its length; this is how a model that is updated token by token learns each new token.
+	 * Counters that publish their updates (e.g. the {@link slp.core.counting.trie.SnapshotTrieCounter}) publish all suffixes at once.
+	 */
+	public default void countSuffixes(int[] tokens, int from, int to) {
+		for (int i = from; i < to; i++) count(tokens, i, to);
+	}
+
+	/**
+	 * Inverse of {@link #countSuffixes(int[], int, int)}.
+	 */
+	public default void unCountSuffixes(int[] tokens, int from, int to) {
+		for (int i = from; i < to; i++) unCount(tokens, i, to);
+	}
+
+	/**
+	 * Returns an immutable, compacted copy of this counter that answers all lookups but rejects updates.
+	 * Useful when a counter is only used for testing/prediction after training.
+	 * 
+	 * @return A read-only copy of this counter
+	 * @throws UnsupportedOperationException if this type of counter cannot be frozen
+	 */
+	public default Counter freeze() {
+		throw new UnsupportedOperationException("Counter of type " + getClass().getSimpleName() + " cannot be frozen");
+	}
+
+	/**
+	 * Shrinks this counter by removing rare (or uninformative) sequences, without changing the counts of the sequences that remain.
+	 * First removes every sequence of length n seen fewer than {@code minCounts[n - 1]} times (the last value applies to all longer sequences),
+	 * along with all its extensions. Then, if {@code condition} is not null, removes every remaining sequence (of any length) for which it holds,
+	 * provided none of its extensions remain. Context counts are preserved, so remaining sequences keep their relative frequencies,
+	 * while count-of-counts and distinct successor counts reflect the pruned counter.
+	 * 
+	 * @param minCounts Minimum count per sequence length, starting at length 1
+	 * @param condition Optional additional condition under which to prune sequences, or null
+	 * @return The number of sequences removed
+	 * @throws UnsupportedOperationException if this type of counter cannot be pruned
+	 */
+	public default long prune(int[] minCounts, PruneCondition condition) {
+		throw new UnsupportedOperationException("Counter of type " + getClass().getSimpleName() + " cannot be pruned");
+	}
+
+	/**
+	 * Computes structural statistics of this counter, such as its estimated memory use and number of sequences per order,
+	 * by walking all of its contents; this takes time linear in the counter's size, so should not be called on a hot path.
+	 *
+	 * @return A new snapshot of this counter's statistics
+	 * @throws UnsupportedOperationException if this type of counter does not report statistics
+	 */
+	public default CounterStatistics getStatistics() {
+		throw new UnsupportedOperationException("Counter of type " + getClass().getSimpleName() + " does not report statistics");
+	}
+
+	/**
+	 * Adds all counts stored in {@code other} to this counter, with the same result as counting every sequence counted by {@code other}
+	 * into this counter as well. Trie-based counters walk both tries in lockstep, which takes time linear in the size of {@code other}
+	 * rather than in the number of sequences it counted, so counters trained separately (e.g. on different machines) can be combined cheaply.
+	 * {@code other} is not modified, and should not be updated while it is being merged.
+	 *
+	 * @param other The counter to merge into this counter
+	 * @throws UnsupportedOperationException if this counter cannot merge counters of {@code other}'s type
+	 */
+	public default void merge(Counter other) {
+		throw new UnsupportedOperationException("Counter of type " + getClass().getSimpleName() + " cannot be merged");
+	}
+
+	/**
+	 * Removes all counts stored in {@code other} from this counter, i.e. the inverse of {@link #merge(Counter)}.
+	 * Every sequence stored in {@code other} should also be stored in this counter, at least as many times.
+	 *
+	 * @param other The counter to subtract from this counter
+	 * @throws UnsupportedOperationException if this counter cannot subtract counters of {@code other}'s type
+	 */
+	public default void subtract(Counter other) {
+		throw new UnsupportedOperationException("Counter of type " + getClass().getSimpleName() + " cannot be subtracted");
+	}
+
 	public default void countBatch(List<List<Integer>> indices) {
 		indices.forEach(this::count);
 	}
@@ -0,0 +1,106 @@
+package slp.core.counting;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes a {@link Counter}'s {@link CounterStatistics} through JMX (e.g. to JConsole or a monitoring agent).
+ * Use {@link #register(Counter, String)} to register a counter with the platform MBean server.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class CounterMonitor implements CounterMonitorMXBean {
+
+	public static final String DOMAIN = "slp.core.counting";
+
+	private final Counter counter;
+	private volatile CounterStatistics statistics;
+
+	public CounterMonitor(Counter counter) {
+		this.counter = counter;
+	}
+
+	/**
+	 * Registers a monitor for {@code counter} with the platform MBean server, under {@code slp.core.counting:type=Counter,name=<name>}.
+	 *
+	 * @return The name the monitor was registered under, e.g. to unregister it later
+	 * @throws IllegalStateException if the monitor could not be registered, e.g. because the name is taken
+	 */
+	public static ObjectName register(Counter counter, String name) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=Counter,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new CounterMonitor(counter), objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register counter monitor " + name, e);
+		}
+	}
+
+	public static void unregister(ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) server.unregisterMBean(name);
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not unregister counter monitor " + name, e);
+		}
+	}
+
+	@Override
+	public void refresh() {
+		this.statistics = this.counter.getStatistics();
+	}
+
+	private CounterStatistics getStatistics() {
+		CounterStatistics statistics = this.statistics;
+		if (statistics == null) {
+			refresh();
+			statistics = this.statistics;
+		}
+		return statistics;
+	}
+
+	@Override
+	public String getCounterType() {
+		return this.counter.getClass().getSimpleName();
+	}
+
+	@Override
+	public long getEstimatedBytes() {
+		return getStatistics().getEstimatedBytes();
+	}
+
+	@Override
+	public Map<String, Long> getNodeCounts() {
+		return getStatistics().getNodeCounts();
+	}
+
+	@Override
+	public long[] getFanoutHistogram() {
+		return getStatistics().getFanoutHistogram();
+	}
+
+	@Override
+	public long[] getDepthHistogram() {
+		return getStatistics().getDepthHistogram();
+	}
+
+	@Override
+	public long[] getNGramsPerOrder() {
+		return getStatistics().getNGramsPerOrder();
+	}
+
+	@Override
+	public long getNGrams() {
+		return getStatistics().getNGrams();
+	}
+
+	@Override
+	public double getBytesPerNGram() {
+		return getStatistics().getBytesPerNGram();
+	}
+}
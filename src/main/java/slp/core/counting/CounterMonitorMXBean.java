@@ -0,0 +1,28 @@
+package slp.core.counting;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link Counter}'s {@link CounterStatistics}, as registered by {@link CounterMonitor#register(Counter, String)}.
+ * Attributes report the statistics as of the last {@link #refresh()} (computed on first access),
+ * since computing them walks the whole counter.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public interface CounterMonitorMXBean {
+
+	/**
+	 * Recomputes the counter's statistics
+	 */
+	void refresh();
+
+	String getCounterType();
+	long getEstimatedBytes();
+	Map<String, Long> getNodeCounts();
+	long[] getFanoutHistogram();
+	long[] getDepthHistogram();
+	long[] getNGramsPerOrder();
+	long getNGrams();
+	double getBytesPerNGram();
+}
@@ -0,0 +1,170 @@
+package slp.core.counting;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Structural statistics of a {@link Counter}, as returned by {@link Counter#getStatistics()}: its estimated retained memory,
+ * the number of nodes of each type, histograms of node fanout and depth, and the number of distinct sequences (n-grams) per order.
+ * Useful to choose between counter implementations and pruning thresholds, or to size heaps, based on data rather than trial and error.
+ * <br /><br />
+ * Memory is estimated from the (current) layout of every object, assuming a 64-bit JVM with compressed references
+ * (i.e. a heap under 32GB): 12-byte object headers, 16-byte array headers, 4-byte references and 8-byte alignment.
+ * Objects shared between counters (such as small count arrays) are not included.
+ * <br /><br />
+ * Statistics of counters that consist of several parts (e.g. shards) are combined with {@link #add(CounterStatistics)}.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class CounterStatistics {
+
+	/**
+	 * The node type under which unique sequences, stored as arrays of a count followed by their remaining tokens, are reported
+	 */
+	public static final String LEAF = "int[]";
+
+	private long bytes;
+	private final Map<String, Long> nodes = new TreeMap<>();
+	private long[] fanouts = new long[0];
+	private long[] depths = new long[0];
+	private long[] nGrams = new long[0];
+
+	/**
+	 * Records a node of the given type, at {@code depth} (the length of the sequence it stores) with {@code fanout} successors,
+	 * taking up {@code bytes} itself (excluding its successors).
+	 */
+	public void addNode(String type, int depth, int fanout, long bytes) {
+		int bucket = fanout == 0 ? 0 : 33 - Integer.numberOfLeadingZeros(fanout - 1);
+		this.fanouts = increment(this.fanouts, bucket, 1);
+		addNode(type, depth, bytes);
+	}
+
+	/**
+	 * Records a unique sequence (see {@link #LEAF}) starting at {@code depth}, taking up {@code bytes}.
+	 * Leaves are not included in the fanout histogram.
+	 */
+	public void addLeaf(int depth, long bytes) {
+		addNode(LEAF, depth, bytes);
+	}
+
+	private void addNode(String type, int depth, long bytes) {
+		this.nodes.merge(type, 1L, Long::sum);
+		this.depths = increment(this.depths, depth, 1);
+		this.bytes += bytes;
+	}
+
+	/**
+	 * Records {@code count} distinct sequences of length {@code order}.
+	 */
+	public void addNGrams(int order, long count) {
+		if (order > 0) this.nGrams = increment(this.nGrams, order - 1, count);
+	}
+
+	/**
+	 * Records memory that does not belong to a node, e.g. flat tables or indices.
+	 */
+	public void addBytes(long bytes) {
+		this.bytes += bytes;
+	}
+
+	/**
+	 * Adds the statistics of {@code other}, e.g. another part of the same counter, to these statistics.
+	 */
+	public CounterStatistics add(CounterStatistics other) {
+		this.bytes += other.bytes;
+		other.nodes.forEach((type, count) -> this.nodes.merge(type, count, Long::sum));
+		this.fanouts = add(this.fanouts, other.fanouts);
+		this.depths = add(this.depths, other.depths);
+		this.nGrams = add(this.nGrams, other.nGrams);
+		return this;
+	}
+
+	public long getEstimatedBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Returns the number of nodes per type, where unique sequences are reported as {@link #LEAF}
+	 */
+	public Map<String, Long> getNodeCounts() {
+		return Collections.unmodifiableMap(this.nodes);
+	}
+
+	/**
+	 * Returns the number of (non-leaf) nodes by fanout, in power-of-two buckets: index 0 counts nodes without successors,
+	 * index 1 those with one, and index i > 1 those with 2^(i-2) + 1 up to 2^(i-1) successors.
+	 */
+	public long[] getFanoutHistogram() {
+		return this.fanouts.clone();
+	}
+
+	/**
+	 * Returns the number of nodes by depth, starting with the root(s) at depth 0
+	 */
+	public long[] getDepthHistogram() {
+		return this.depths.clone();
+	}
+
+	/**
+	 * Returns the number of distinct sequences per order, starting at order 1
+	 */
+	public long[] getNGramsPerOrder() {
+		return this.nGrams.clone();
+	}
+
+	public long getNGrams() {
+		return Arrays.stream(this.nGrams).sum();
+	}
+
+	public double getBytesPerNGram() {
+		long nGrams = getNGrams();
+		return nGrams == 0 ? 0.0 : (double) this.bytes / nGrams;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Estimated size: %.1f MB (%.1f bytes per n-gram)%n", this.bytes / 1048576.0, getBytesPerNGram()));
+		sb.append("N-grams per order: ").append(Arrays.toString(this.nGrams)).append(String.format("%n"));
+		sb.append("Nodes per type: ").append(this.nodes).append(String.format("%n"));
+		sb.append("Nodes per depth: ").append(Arrays.toString(this.depths)).append(String.format("%n"));
+		sb.append("Nodes per fanout (0, 1, 2, 3-4, 5-8, ...): ").append(Arrays.toString(this.fanouts));
+		return sb.toString();
+	}
+
+	/*
+	 * Memory estimates
+	 */
+	/**
+	 * Returns the estimated size of an object with the given total size of its (own and inherited) fields
+	 */
+	public static long objectBytes(int fieldBytes) {
+		return align(12 + fieldBytes);
+	}
+
+	/**
+	 * Returns the estimated size of an array of {@code length} elements of {@code elementBytes} each (4 for references)
+	 */
+	public static long arrayBytes(int length, int elementBytes) {
+		return align(16 + (long) length*elementBytes);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	private static long[] increment(long[] histogram, int index, long count) {
+		if (index >= histogram.length) histogram = Arrays.copyOf(histogram, index + 1);
+		histogram[index] += count;
+		return histogram;
+	}
+
+	private static long[] add(long[] histogram, long[] other) {
+		if (other.length > histogram.length) histogram = Arrays.copyOf(histogram, other.length);
+		for (int i = 0; i < other.length; i++) histogram[i] += other[i];
+		return histogram;
+	}
+}
@@ -0,0 +1,18 @@
+package slp.core.counting;
+
+/**
+ * Condition under which a sequence may be pruned from a {@link Counter}, see {@link Counter#prune(int[], PruneCondition)}.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+@FunctionalInterface
+public interface PruneCondition {
+	/**
+	 * @param tokens Buffer holding the sequence (starting at index 0); must not be modified
+	 * @param length The length of the sequence
+	 * @param count The number of times the sequence was seen
+	 * @return Whether to prune the sequence
+	 */
+	boolean prune(int[] tokens, int length, int count);
+}
@@ -0,0 +1,187 @@
+package slp.core.counting.delta;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.List;
+
+import slp.core.counting.Counter;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.trie.AbstractTrie;
+import slp.core.counting.trie.MapTrieCounter;
+import slp.core.util.Util;
+
+/**
+ * Counter that records changes to another counter rather than counts: every sequence counted is recorded as added,
+ * every sequence un-counted as removed. Training a model with a {@link DeltaCounter} on the files added to a corpus
+ * and forgetting the files removed from it (or both for files that changed) thus yields a small artifact
+ * that can be shipped and then applied to the counter trained on the original corpus with {@link #applyTo(Counter)},
+ * with the same result as re-training on the new corpus.
+ * <br /><br />
+ * Added and removed sequences are stored in two separate tries, whose counts are thus never negative.
+ * A sequence that is counted after being un-counted (or vice versa) cancels out rather than being stored in both,
+ * so re-learning a changed file only records the sequences that actually changed.
+ * Applying merges the added trie into the base counter and then subtracts the removed trie,
+ * which takes time linear in the size of the delta rather than in that of the base counter.
+ * <br /><br />
+ * Lookups on this counter return net changes ({@link #getCounts}) where these are well-defined; all other lookups are not supported,
+ * since a delta is only meaningful with respect to its base.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class DeltaCounter implements Counter {
+
+	private static final long serialVersionUID = -2283549216371866720L;
+
+	private AbstractTrie added;
+	private AbstractTrie removed;
+
+	public DeltaCounter() {
+		this.added = new MapTrieCounter();
+		this.removed = new MapTrieCounter();
+	}
+
+	/**
+	 * Returns the trie of sequences added to the base counter
+	 */
+	public AbstractTrie getAdded() {
+		return this.added;
+	}
+
+	/**
+	 * Returns the trie of sequences removed from the base counter
+	 */
+	public AbstractTrie getRemoved() {
+		return this.removed;
+	}
+
+	/**
+	 * Applies this delta to {@code base} in place: merges all added sequences into it and subtracts all removed ones.
+	 * {@code base} should be the counter that the removed sequences were (also) counted in.
+	 *
+	 * @throws UnsupportedOperationException if {@code base} cannot merge tries
+	 */
+	public synchronized void applyTo(Counter base) {
+		base.merge(this.added);
+		base.subtract(this.removed);
+	}
+
+	/**
+	 * Returns the net change of the number of sequences
+	 */
+	@Override
+	public int getCount() {
+		return this.added.getCount() - this.removed.getCount();
+	}
+
+	/**
+	 * Returns the net change of the [count, context-count] pair of {@code indices}
+	 */
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		long[] removedCounts = new long[2];
+		this.added.getCounts(tokens, from, to, counts);
+		this.removed.getCounts(tokens, from, to, removedCounts);
+		counts[0] -= removedCounts[0];
+		counts[1] -= removedCounts[1];
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		throw unsupported();
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		throw unsupported();
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		throw unsupported();
+	}
+
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		throw unsupported();
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		throw unsupported();
+	}
+
+	private UnsupportedOperationException unsupported() {
+		return new UnsupportedOperationException("A delta counter only records changes; apply it to a base counter to look these up");
+	}
+
+	@Override
+	public CounterStatistics getStatistics() {
+		return this.added.getStatistics().add(this.removed.getStatistics());
+	}
+
+	/*
+	 * Updates
+	 */
+	@Override
+	public void count(List<Integer> indices) {
+		count(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		unCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public synchronized void count(int[] tokens, int from, int to) {
+		if (endsIn(this.removed, tokens, from, to)) this.removed.unCount(tokens, from, to);
+		else this.added.count(tokens, from, to);
+	}
+
+	@Override
+	public synchronized void unCount(int[] tokens, int from, int to) {
+		if (endsIn(this.added, tokens, from, to)) this.added.unCount(tokens, from, to);
+		else this.removed.count(tokens, from, to);
+	}
+
+	/**
+	 * Returns whether {@code trie} stores (at least one occurrence of) exactly {@code tokens[from, to)}, rather than only longer sequences that it starts.
+	 * Only then can that occurrence be un-counted while leaving the trie consistent, i.e. with every node's count at least the sum of its successors' counts.
+	 */
+	private static boolean endsIn(AbstractTrie trie, int[] tokens, int from, int to) {
+		if (from == to || trie.getCount() == 0) return false;
+		long[] counts = new long[2];
+		trie.getCounts(tokens, from, to, counts);
+		if (counts[0] == 0) return false;
+		// The context count of the sequence itself, looked up as the context of an extension by a token that is never stored
+		int[] extended = Arrays.copyOfRange(tokens, from, to + 1);
+		extended[to - from] = -1;
+		long count = counts[0];
+		trie.getCounts(extended, 0, extended.length, counts);
+		return count > counts[1];
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		this.added.writeExternal(out);
+		this.removed.writeExternal(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		this.added = new MapTrieCounter();
+		this.added.readExternal(in);
+		this.removed = new MapTrieCounter();
+		this.removed.readExternal(in);
+	}
+}
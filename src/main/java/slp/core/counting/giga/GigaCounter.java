@@ -1,23 +1,26 @@
 package slp.core.counting.giga;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInput;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IntSummaryStatistics;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import slp.core.counting.Counter;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.PruneCondition;
 import slp.core.counting.trie.ArrayTrieCounter;
+import slp.core.util.Util;
 
 /**
  * Class for counting very large corpora.
@@ -28,7 +31,7 @@ import slp.core.counting.trie.ArrayTrieCounter;
  * due to garbage collection and binary-search lookup.
  * The {@link GigaCounter} solves this in three ways:
  * <ul>
- * <li>It counts in parallel
+ * <li>It counts in parallel, on worker threads that each own their counts and take submitted sequences from a bounded queue
  * <li>It serializes batches of counted files into a single byte array at train-time (dramatically reducing gc overhead)
  * <li>Finally, when done training it resolves the serialized counters in parallel into a {@link VirtualCounter} and defers all future calls to that object.
  * </ul>
@@ -43,28 +46,40 @@ public class GigaCounter implements Counter {
 	
 	private static final int FILES_PER_COUNTER = 100;
 	private static final int TOKENS_PER_COUNTER = 1000*FILES_PER_COUNTER;
+	// Number of submitted tasks that may wait per worker before submitting blocks
+	private static final int QUEUED_PER_WORKER = 100;
+	// Tells a worker to pack its remaining counts and stop
+	private static final List<Object> DONE = new ArrayList<>(0);
 
-	private final List<Map<List<Integer>, Integer>> simpleCounters;
-	private List<byte[]> graveyard;
-	
 	private final int procs;
-	private static volatile ForkJoinPool fjp;
-	private int[][] counts;
-	private volatile boolean[] occupied;
+	private final int shards;
+	private final BlockingQueue<List<?>> queue;
+	private List<Worker> workers;
+	private List<byte[]> graveyard;
+	// The first error thrown by a worker, which is rethrown when resolving
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
 
-	private VirtualCounter counter;
+	private volatile VirtualCounter counter;
 
+	/**
+	 * Creates a counter with a counting worker for each processor but one, which is left to the thread submitting sequences (e.g. for lexing).
+	 */
 	public GigaCounter() {
-		this(Runtime.getRuntime().availableProcessors()/2);
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
 	}
 
 	public GigaCounter(int procs) {
-		this.procs = procs;
-		if (fjp == null) fjp = new ForkJoinPool(this.procs);
-		
-		this.simpleCounters = IntStream.range(0, this.procs).mapToObj(i -> new HashMap<List<Integer>, Integer>()).collect(Collectors.toList());
-		this.occupied = new boolean[this.simpleCounters.size()];
-		this.counts = new int[this.simpleCounters.size()][2];
+		this(procs, VirtualCounter.DEFAULT_SHARDS);
+	}
+
+	/**
+	 * @param procs The number of counting workers
+	 * @param shards The number of shards of the {@link VirtualCounter} that counts are resolved into
+	 */
+	public GigaCounter(int procs, int shards) {
+		this.procs = Math.max(1, procs);
+		this.shards = Math.max(1, shards);
+		this.queue = new ArrayBlockingQueue<>(QUEUED_PER_WORKER*this.procs);
 		this.graveyard = Collections.synchronizedList(new ArrayList<>());
 	}
 
@@ -80,6 +95,24 @@ public class GigaCounter implements Counter {
 		return this.counter.getCounts(indices);
 	}
 
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		resolve();
+		this.counter.getCounts(tokens, from, to, counts);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		resolve();
+		this.counter.getCounts(tokens, from, to, counts, distinctCounts);
+	}
+
+	@Override
+	public int getSuffixCounts(int[] tokens, int from, int to, long[][] counts, int[][] distinctCounts) {
+		resolve();
+		return this.counter.getSuffixCounts(tokens, from, to, counts, distinctCounts);
+	}
+
 	@Override
 	public int getCountofCount(int n, int count) {
 		resolve();
@@ -98,18 +131,74 @@ public class GigaCounter implements Counter {
 		return this.counter.getSuccessorCount(indices);
 	}
 
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		resolve();
+		return this.counter.getSuccessorCount(tokens, from, to);
+	}
+
 	@Override
 	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
 		resolve();
 		return this.counter.getTopSuccessors(indices, limit);
 	}
 
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		resolve();
+		return this.counter.getTopSuccessors(tokens, from, to, successors);
+	}
+
 	@Override
 	public int[] getDistinctCounts(int range, List<Integer> indices) {
 		resolve();
 		return this.counter.getDistinctCounts(range, indices);
 	}
 
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		resolve();
+		this.counter.getDistinctCounts(tokens, from, to, distinctCounts);
+	}
+
+	@Override
+	public Counter freeze() {
+		resolve();
+		return this.counter.freeze();
+	}
+
+	@Override
+	public long prune(int[] minCounts, PruneCondition condition) {
+		resolve();
+		return this.counter.prune(minCounts, condition);
+	}
+
+	@Override
+	public void merge(Counter other) {
+		resolve();
+		this.counter.merge(other);
+	}
+
+	@Override
+	public void subtract(Counter other) {
+		resolve();
+		this.counter.subtract(other);
+	}
+
+	/**
+	 * Resolves this counter (if not yet done) and returns the {@link VirtualCounter} that all lookups are deferred to
+	 */
+	public VirtualCounter getCounter() {
+		resolve();
+		return this.counter;
+	}
+
+	@Override
+	public CounterStatistics getStatistics() {
+		resolve();
+		return this.counter.getStatistics();
+	}
+
 	@Override
 	public void countBatch(List<List<Integer>> indices) {
 		if (this.counter != null) {
@@ -130,30 +219,110 @@ public class GigaCounter implements Counter {
 		}
 	}
 
+	@Override
+	public void count(int[] tokens, int from, int to) {
+		if (this.counter != null) {
+			this.counter.count(tokens, from, to);
+		}
+		else {
+			// The caller may re-use its buffer, so the sequence is copied before submitting
+			submitTask(Util.toList(tokens, from, to));
+		}
+	}
+
 	/**
-	 * Submit the indices to be counted to the global ForkJoinPool.
-	 * This method live-locks the main thread if the fjp has more than 1K waiting tasks, to prevent flooding the JVM.
+	 * Hands the indices to be counted to the workers, blocking while the workers are {@link #QUEUED_PER_WORKER} tasks per worker behind,
+	 * to prevent flooding the JVM.
 	 * <br/>
 	 * For simplicity, we use the same method for counting and batch
-	 * counting and distinguish only inside the task submission, hence the type erasure in the signature.
+	 * counting and distinguish only inside the worker, hence the type erasure in the signature.
+	 * <br/>
+	 * Tasks are queued while holding this counter's lock, so that none can be queued after {@link #resolve()} has stopped the workers.
 	 * @param task
 	 */
 	@SuppressWarnings("unchecked")
-	private void submitTask(List<?> task) {
+	private synchronized void submitTask(List<?> task) {
 		if (task.isEmpty()) return;
-		int ptr = getNextAvailable();
-		this.occupied[ptr] = true;
-		while (fjp.getPoolSize() > 100);
-		fjp.submit(() -> {
-			testGraveYard(ptr);
-			if (task.get(0) instanceof List<?>) {
-				task.forEach(x -> this.simpleCounters.get(ptr).merge((List<Integer>) x, 1, Integer::sum));
-			} else {
-				this.simpleCounters.get(ptr).merge(((List<Integer>) task), 1, Integer::sum);
+		// Resolved since the caller checked
+		if (this.counter != null) {
+			if (task.get(0) instanceof List<?>) this.counter.countBatch((List<List<Integer>>) task);
+			else this.counter.count((List<Integer>) task);
+			return;
+		}
+		if (this.failure.get() != null) resolve();
+		if (this.workers == null) {
+			this.workers = IntStream.range(0, this.procs).mapToObj(Worker::new).collect(Collectors.toList());
+			this.workers.forEach(Thread::start);
+		}
+		try {
+			this.queue.put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Counts tasks taken from the queue into a map that only it uses,
+	 * packing it into the graveyard whenever it has counted enough and when all tasks are done.
+	 * If counting fails in any worker, the error is recorded and all workers discard the remaining tasks (rather than stopping),
+	 * so that neither queueing tasks nor resolving ever blocks on a full queue.
+	 */
+	private final class Worker extends Thread {
+		private Map<List<Integer>, Integer> counts = new HashMap<>();
+		private int files = 0;
+		private int tokens = 0;
+
+		private Worker(int id) {
+			super("GigaCounter-" + id);
+			setDaemon(true);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void run() {
+			try {
+				while (true) {
+					List<?> task = GigaCounter.this.queue.take();
+					if (task == DONE) break;
+					if (GigaCounter.this.failure.get() != null) continue;
+					try {
+						if (this.files > FILES_PER_COUNTER || this.tokens > TOKENS_PER_COUNTER) {
+							pack(this.counts);
+							this.counts = new HashMap<>();
+							this.files = 0;
+							this.tokens = 0;
+						}
+						if (task.get(0) instanceof List<?>) {
+							for (Object sequence : task) count((List<Integer>) sequence);
+						} else {
+							count((List<Integer>) task);
+						}
+						this.files++;
+					} catch (Throwable t) {
+						fail(t);
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
-			this.counts[ptr][0]++;
-			this.occupied[ptr] = false;
-		});
+			try {
+				if (GigaCounter.this.failure.get() == null && !this.counts.isEmpty()) pack(this.counts);
+			} catch (Throwable t) {
+				fail(t);
+			}
+			this.counts = null;
+		}
+
+		private void fail(Throwable t) {
+			GigaCounter.this.failure.compareAndSet(null, t);
+			this.counts = new HashMap<>();
+		}
+
+		private void count(List<Integer> sequence) {
+			this.counts.merge(sequence, 1, Integer::sum);
+			this.tokens++;
+		}
 	}
 
 	@Override
@@ -162,62 +331,70 @@ public class GigaCounter implements Counter {
 		this.counter.unCount(indices);
 	}
 
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		resolve();
+		this.counter.unCount(tokens, from, to);
+	}
+
 	private synchronized void resolve() {
 		if (this.counter != null) return;
-		while (IntStream.range(0, this.simpleCounters.size()).anyMatch(i -> this.occupied[i]));
+		// Let every worker finish its queued tasks and pack its counts
+		if (this.workers != null) {
+			try {
+				for (int i = 0; i < this.workers.size(); i++) this.queue.put(DONE);
+				for (Worker worker : this.workers) worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				e.printStackTrace();
+			}
+			this.workers = null;
+		}
+		if (this.failure.get() != null) {
+			this.graveyard.clear();
+			throw new IllegalStateException("Counting failed in a worker", this.failure.get());
+		}
 		
 		if (this.graveyard.size() >= 10) System.out.println("Resolving to VirtualCounter");
 		long t = System.currentTimeMillis();
-		this.simpleCounters.stream().filter(c -> !c.isEmpty()).forEach(this::pack);
-		this.simpleCounters.clear();
-		this.counter = new VirtualCounter(16);
-		unPackAll();
-		if (this.graveyard.size() >= 10) System.out.println("Resolved in " + (System.currentTimeMillis() - t)/1000 + "s");
+		VirtualCounter counter = new VirtualCounter(this.shards);
+		unPackAll(counter);
+		if (this.graveyard.size() >= 10) {
+			IntSummaryStatistics sizes = Arrays.stream(counter.getShardSizes()).summaryStatistics();
+			System.out.println("Resolved in " + (System.currentTimeMillis() - t)/1000 + "s, shard sizes between "
+					+ sizes.getMin() + " and " + sizes.getMax());
+		}
+		this.graveyard.clear();
+		this.counter = counter;
 		System.gc();
 	}
 
 	private void pack(Map<List<Integer>, Integer> c) {
+		List<Map.Entry<List<Integer>, Integer>> entries = new ArrayList<>(c.entrySet());
+		entries.sort((e1, e2) -> compareLists(e1.getKey(), e2.getKey()));
+		PackedSequences.Writer writer = new PackedSequences.Writer();
+		int[] tokens = new int[8];
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(baos);
-			out.writeInt(c.size());
-			c.entrySet().stream()
-				.sorted((e1, e2) -> compareLists(e1.getKey(), e2.getKey()))
-				.forEach(e -> {
-					List<Integer> key = e.getKey();
-					Integer value = e.getValue();
-					try {
-						out.writeInt(key.size());
-						for (int k : key) out.writeInt(k);
-						out.writeInt(value);
-					} catch (IOException ex) {
-					}
-				});
-			out.close();
-			this.graveyard.add(baos.toByteArray());
+			for (Map.Entry<List<Integer>, Integer> e : entries) {
+				List<Integer> key = e.getKey();
+				if (tokens.length < key.size()) tokens = new int[key.size()];
+				for (int i = 0; i < key.size(); i++) tokens[i] = key.get(i);
+				writer.write(tokens, key.size(), e.getValue());
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		this.graveyard.add(writer.toByteArray());
 	}
 	
-	private void unPackAll() {
+	private void unPackAll(VirtualCounter counter) {
 		int[] done = { 0 };
 		IntStream.range(0, this.procs)
 			.parallel()
 			.forEach(i -> {
 				for (int j = i; j < this.graveyard.size(); j += this.procs) {
-					try {
-						ByteArrayInputStream baos = new ByteArrayInputStream(this.graveyard.get(j));
-						ObjectInputStream in = new ObjectInputStream(baos);
-						int size = in.readInt();
-						for (int q = 0; q < size; q++) {
-							int len = in.readInt();
-							List<Integer> key = new ArrayList<Integer>(len);
-							for (int k = 0; k < len; k++) key.add(in.readInt());
-							int freq = in.readInt();
-							this.counter.count(key, freq);
-						}
-						in.close();
+					try (PackedSequences.Reader in = new PackedSequences.Reader(this.graveyard.get(j))) {
+						while (in.next()) counter.count(in.tokens(), 0, in.length(), in.count());
 						this.graveyard.set(j, null);
 						if (this.graveyard.size() >= 10 && ++done[0] % (this.graveyard.size() / 10) == 0) {
 							System.out.print(100*done[0] / this.graveyard.size() + "%...");
@@ -238,23 +415,6 @@ public class GigaCounter implements Counter {
 		return Integer.compare(key1.size(), key2.size());
 	}
 
-	private int getNextAvailable() {
-		int ptr = 0;
-		while (this.occupied[ptr]) {
-			ptr = (ptr + 1) % this.simpleCounters.size();
-		}
-		return ptr;
-	}
-
-	private void testGraveYard(int ptr) {
-		if (this.counts[ptr][0] > FILES_PER_COUNTER || this.counts[ptr][1] > TOKENS_PER_COUNTER) {
-			pack(this.simpleCounters.get(ptr));
-			this.simpleCounters.set(ptr, new HashMap<>());
-			this.counts[ptr][0] = 0;
-			this.counts[ptr][1] = 0;
-		}
-	}
-
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
 		resolve();
@@ -0,0 +1,195 @@
+package slp.core.counting.giga;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of a sorted stream of (sequence, count) pairs, as used for the {@link GigaCounter}'s packed batches
+ * and the {@link SpillingCounter}'s runs.<br /><br />
+ *
+ * Each entry stores the length of the prefix it shares with the previous sequence, the number of remaining tokens,
+ * the first remaining token as the (varint) difference from the previous sequence's token at that position, the other tokens as varints,
+ * and finally its count. Since sequences are sorted, consecutive n-grams typically share most of their tokens and that difference is small,
+ * so most entries take only a few bytes. Decoding writes straight into a primitive buffer.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+final class PackedSequences {
+
+	private static final int BUFFER = 1 << 16;
+
+	private PackedSequences() {
+	}
+
+	/**
+	 * Encodes entries into a byte array, or if given an {@link OutputStream}, into that stream.
+	 * Entries are only encoded compactly if sequences are written in the order of {@link #compare} and tokens are non-negative,
+	 * but any sequence is decoded correctly.
+	 */
+	static final class Writer implements AutoCloseable {
+		private final OutputStream out;
+		private byte[] bytes;
+		private int size;
+		private int[] previous;
+		private int previousLength;
+
+		Writer() {
+			this(null);
+		}
+
+		Writer(OutputStream out) {
+			this.out = out;
+			this.bytes = new byte[out == null ? 1024 : BUFFER];
+			this.previous = new int[8];
+		}
+
+		void write(int[] tokens, int length, int count) throws IOException {
+			int shared = 0;
+			while (shared < length && shared < this.previousLength && tokens[shared] == this.previous[shared]) shared++;
+			ensureCapacity(5 * (length - shared + 3));
+			writeVarint(shared);
+			writeVarint(length - shared);
+			if (shared < length) {
+				// The first differing token cannot be smaller than the previous one at that position
+				writeVarint(shared < this.previousLength ? tokens[shared] - this.previous[shared] : tokens[shared]);
+				for (int i = shared + 1; i < length; i++) writeVarint(tokens[i]);
+			}
+			writeVarint(count);
+			if (this.previous.length < length) this.previous = Arrays.copyOf(this.previous, Math.max(length, 2*this.previous.length));
+			System.arraycopy(tokens, shared, this.previous, shared, length - shared);
+			this.previousLength = length;
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				this.bytes[this.size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.bytes[this.size++] = (byte) value;
+		}
+
+		private void ensureCapacity(int bytes) throws IOException {
+			if (this.size + bytes <= this.bytes.length) return;
+			if (this.out != null) flush();
+			if (this.size + bytes > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(this.size + bytes, 2*this.bytes.length));
+			}
+		}
+
+		private void flush() throws IOException {
+			this.out.write(this.bytes, 0, this.size);
+			this.size = 0;
+		}
+
+		/**
+		 * Returns the encoded entries, if not writing to a stream.
+		 */
+		byte[] toByteArray() {
+			return Arrays.copyOf(this.bytes, this.size);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.out != null) {
+				flush();
+				this.out.close();
+			}
+		}
+	}
+
+	/**
+	 * Decodes entries from a byte array or an {@link InputStream}, one at a time, into a re-used token buffer.
+	 */
+	static final class Reader implements AutoCloseable {
+		private final InputStream in;
+		private byte[] bytes;
+		private int position;
+		private int limit;
+
+		private int[] tokens = new int[8];
+		private int length;
+		private int count;
+
+		Reader(byte[] bytes) {
+			this.in = null;
+			this.bytes = bytes;
+			this.limit = bytes.length;
+		}
+
+		Reader(InputStream in) {
+			this.in = in;
+			this.bytes = new byte[BUFFER];
+		}
+
+		/**
+		 * Decodes the next entry, after which its tokens (in the first {@link #length()} positions of {@link #tokens()}) and count are available.
+		 *
+		 * @return Whether there was another entry
+		 */
+		boolean next() throws IOException {
+			if (this.position == this.limit && !fill()) return false;
+			int shared = readVarint();
+			int rest = readVarint();
+			int length = shared + rest;
+			if (this.tokens.length < length) this.tokens = Arrays.copyOf(this.tokens, Math.max(length, 2*this.tokens.length));
+			if (rest > 0) {
+				int first = readVarint();
+				this.tokens[shared] = shared < this.length ? this.tokens[shared] + first : first;
+				for (int i = shared + 1; i < length; i++) this.tokens[i] = readVarint();
+			}
+			this.length = length;
+			this.count = readVarint();
+			return true;
+		}
+
+		int[] tokens() {
+			return this.tokens;
+		}
+
+		int length() {
+			return this.length;
+		}
+
+		int count() {
+			return this.count;
+		}
+
+		private int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (this.position == this.limit && !fill()) throw new IOException("Truncated packed sequences");
+				byte b = this.bytes[this.position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) return value;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (this.in == null) return false;
+			int read = this.in.read(this.bytes);
+			if (read <= 0) return false;
+			this.position = 0;
+			this.limit = read;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.in != null) this.in.close();
+		}
+	}
+
+	/**
+	 * Orders sequences by their tokens, shorter sequences first if one is a prefix of the other.
+	 */
+	static int compare(int[] tokens1, int from1, int length1, int[] tokens2, int from2, int length2) {
+		for (int i = 0; i < length1 && i < length2; i++) {
+			int compare = Integer.compare(tokens1[from1 + i], tokens2[from2 + i]);
+			if (compare != 0) return compare;
+		}
+		return Integer.compare(length1, length2);
+	}
+}
@@ -0,0 +1,53 @@
+package slp.core.counting.giga;
+
+/**
+ * Assigns sequences to the shards of a {@link VirtualCounter} by their first token.
+ * All sequences that start with the same token must end up in the same shard, since each shard is a trie that stores
+ * a sequence together with all its prefixes; functions can therefore only look at the first token.
+ * <br /><br />
+ * Custom functions must be {@link java.io.Serializable} to be stored along with the counter.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+@FunctionalInterface
+public interface ShardFunction {
+
+	/**
+	 * @param token The first token of a (non-empty) sequence
+	 * @param shards The number of shards
+	 * @return The shard, in [0, shards), to store sequences starting with {@code token} in
+	 */
+	int getShard(int token, int shards);
+
+	/**
+	 * The built-in shard functions
+	 */
+	public enum Standard implements ShardFunction {
+		/**
+		 * Token modulo the number of shards, as used by counters written before shard functions were introduced.
+		 * Since token indices are assigned in order of first occurrence, the most frequent tokens tend to cluster in a few shards.
+		 */
+		MODULO {
+			@Override
+			public int getShard(int token, int shards) {
+				return Math.floorMod(token, shards);
+			}
+		},
+		/**
+		 * Mixes the token's bits (using MurmurHash3's finalizer) before mapping it to a shard, which balances shards regardless of how tokens are numbered.
+		 */
+		HASHED {
+			@Override
+			public int getShard(int token, int shards) {
+				int h = token;
+				h ^= h >>> 16;
+				h *= 0x85EBCA6B;
+				h ^= h >>> 13;
+				h *= 0xC2B2AE35;
+				h ^= h >>> 16;
+				return (int) (((h & 0xFFFFFFFFL) * shards) >>> 32);
+			}
+		};
+	}
+}
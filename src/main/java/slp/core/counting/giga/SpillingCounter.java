@@ -0,0 +1,428 @@
+package slp.core.counting.giga;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import slp.core.counting.Counter;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.PruneCondition;
+import slp.core.util.Util;
+
+/**
+ * Counter for corpora whose raw sequences do not fit in memory, trading the {@link GigaCounter}'s in-heap batches for disk.<br /><br />
+ *
+ * Sequences are appended to a flat buffer of at most {@code budget} bytes. Whenever it is full, the buffer is sorted,
+ * equal sequences are merged and the result is spilled to a temporary file as a sorted run.
+ * When the counter is first queried (or stored), all runs are merged k-way (in several passes if there are very many)
+ * and the merged stream of distinct sequences and their frequencies is counted into a {@link VirtualCounter}, to which all further calls are deferred.
+ * Memory use while training is thus bounded by the budget; after resolving, by the number of distinct sequences rather than the corpus size.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class SpillingCounter implements Counter {
+
+	private static final long serialVersionUID = -5527617097389398717L;
+
+	public static final long DEFAULT_BUDGET = 256L << 20;
+	// Number of runs merged at once; more runs are first merged into intermediate runs
+	private static final int MERGE_FANIN = 64;
+	private static final int INITIAL_BUFFER = 1 << 16;
+
+	private final long budget;
+	private final File directory;
+	private final int shards;
+
+	// Sequences as [length, tokens...], and the offset in the buffer of each
+	private int[] buffer;
+	private int used;
+	private int[] offsets;
+	private int sequences;
+	private final List<File> runs;
+
+	private VirtualCounter counter;
+
+	public SpillingCounter() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param budget The maximum number of bytes to buffer sequences in before spilling them to disk
+	 */
+	public SpillingCounter(long budget) {
+		this(budget, new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * @param budget The maximum number of bytes to buffer sequences in before spilling them to disk
+	 * @param directory The directory to store (temporary) runs in
+	 */
+	public SpillingCounter(long budget, File directory) {
+		this(budget, directory, VirtualCounter.DEFAULT_SHARDS);
+	}
+
+	/**
+	 * @param budget The maximum number of bytes to buffer sequences in before spilling them to disk
+	 * @param directory The directory to store (temporary) runs in
+	 * @param shards The number of shards of the {@link VirtualCounter} that runs are merged into
+	 */
+	public SpillingCounter(long budget, File directory, int shards) {
+		this.budget = budget;
+		this.directory = directory;
+		this.shards = Math.max(1, shards);
+		int initial = (int) Math.max(16, Math.min(INITIAL_BUFFER, budget / 4));
+		this.buffer = new int[initial - initial / 5];
+		this.offsets = new int[initial / 5];
+		this.runs = new ArrayList<>();
+	}
+
+	/*
+	 * Lookups are all deferred to the resolved counter
+	 */
+	@Override
+	public int getCount() {
+		resolve();
+		return this.counter.getCount();
+	}
+
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		resolve();
+		return this.counter.getCounts(indices);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		resolve();
+		this.counter.getCounts(tokens, from, to, counts);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		resolve();
+		this.counter.getCounts(tokens, from, to, counts, distinctCounts);
+	}
+
+	@Override
+	public int getSuffixCounts(int[] tokens, int from, int to, long[][] counts, int[][] distinctCounts) {
+		resolve();
+		return this.counter.getSuffixCounts(tokens, from, to, counts, distinctCounts);
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		resolve();
+		return this.counter.getCountofCount(n, count);
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		resolve();
+		return this.counter.getSuccessorCount();
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		resolve();
+		return this.counter.getSuccessorCount(indices);
+	}
+
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		resolve();
+		return this.counter.getSuccessorCount(tokens, from, to);
+	}
+
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		resolve();
+		return this.counter.getTopSuccessors(indices, limit);
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		resolve();
+		return this.counter.getTopSuccessors(tokens, from, to, successors);
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		resolve();
+		return this.counter.getDistinctCounts(range, indices);
+	}
+
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		resolve();
+		this.counter.getDistinctCounts(tokens, from, to, distinctCounts);
+	}
+
+	@Override
+	public Counter freeze() {
+		resolve();
+		return this.counter.freeze();
+	}
+
+	@Override
+	public long prune(int[] minCounts, PruneCondition condition) {
+		resolve();
+		return this.counter.prune(minCounts, condition);
+	}
+
+	@Override
+	public void merge(Counter other) {
+		resolve();
+		this.counter.merge(other);
+	}
+
+	@Override
+	public void subtract(Counter other) {
+		resolve();
+		this.counter.subtract(other);
+	}
+
+	/**
+	 * Resolves this counter (if not yet done) and returns the {@link VirtualCounter} that all lookups are deferred to
+	 */
+	public VirtualCounter getCounter() {
+		resolve();
+		return this.counter;
+	}
+
+	@Override
+	public CounterStatistics getStatistics() {
+		resolve();
+		return this.counter.getStatistics();
+	}
+
+	/*
+	 * Updates are buffered until resolved; uncounting resolves first
+	 */
+	@Override
+	public synchronized void count(List<Integer> indices) {
+		if (this.counter != null) this.counter.count(indices);
+		else add(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public synchronized void count(int[] tokens, int from, int to) {
+		if (this.counter != null) this.counter.count(tokens, from, to);
+		else add(tokens, from, to);
+	}
+
+	@Override
+	public synchronized void countBatch(List<List<Integer>> indices) {
+		if (this.counter != null) this.counter.countBatch(indices);
+		else for (List<Integer> sequence : indices) add(Util.toArray(sequence), 0, sequence.size());
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		resolve();
+		this.counter.unCount(indices);
+	}
+
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		resolve();
+		this.counter.unCount(tokens, from, to);
+	}
+
+	private void add(int[] tokens, int from, int to) {
+		int length = to - from;
+		if (length == 0) return;
+		boolean growBuffer = this.used + length + 1 > this.buffer.length;
+		boolean growOffsets = this.sequences == this.offsets.length;
+		if (growBuffer || growOffsets) {
+			// The buffer and offsets together must stay within budget, so spill rather than grow past it
+			long limit = this.budget / 4;
+			int bufferSize = growBuffer ? grow(this.buffer.length, this.used + length + 1, limit - this.offsets.length) : this.buffer.length;
+			int offsetsSize = growOffsets ? grow(this.offsets.length, this.sequences + 1, limit - bufferSize) : this.offsets.length;
+			if ((long) bufferSize + offsetsSize > limit && this.sequences > 0) {
+				spill();
+				growBuffer = length + 1 > this.buffer.length;
+				growOffsets = false;
+				bufferSize = Math.max(this.buffer.length, length + 1);
+			}
+			if (growBuffer) this.buffer = Arrays.copyOf(this.buffer, bufferSize);
+			if (growOffsets) this.offsets = Arrays.copyOf(this.offsets, offsetsSize);
+		}
+		this.offsets[this.sequences++] = this.used;
+		this.buffer[this.used++] = length;
+		System.arraycopy(tokens, from, this.buffer, this.used, length);
+		this.used += length;
+	}
+
+	/**
+	 * Doubles {@code size}, but not beyond {@code available} unless {@code required} is larger.
+	 */
+	private static int grow(int size, int required, long available) {
+		long grown = Math.max(required, Math.min(2L * size, available));
+		return (int) Math.min(grown, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Sorts the buffered sequences and writes them, with their frequencies, to a new run.
+	 */
+	private void spill() {
+		try {
+			File run = File.createTempFile("slp-run-", ".bin", this.directory);
+			run.deleteOnExit();
+			try (RunWriter writer = new RunWriter(run)) {
+				drainBuffer(writer);
+			}
+			this.runs.add(run);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not spill counts to " + this.directory, e);
+		}
+	}
+
+	private void drainBuffer(SequenceSink sink) throws IOException {
+		int[] buffer = this.buffer;
+		IntArrays.quickSort(this.offsets, 0, this.sequences, new AbstractIntComparator() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int compare(int o1, int o2) {
+				return PackedSequences.compare(buffer, o1 + 1, buffer[o1], buffer, o2 + 1, buffer[o2]);
+			}
+		});
+		int[] sequence = new int[0];
+		for (int i = 0; i < this.sequences; ) {
+			int offset = this.offsets[i];
+			int length = buffer[offset];
+			int frequency = 1;
+			for (i++; i < this.sequences && PackedSequences.compare(buffer, offset + 1, length, buffer, this.offsets[i] + 1, buffer[this.offsets[i]]) == 0; i++) {
+				frequency++;
+			}
+			if (sequence.length < length) sequence = new int[length];
+			System.arraycopy(buffer, offset + 1, sequence, 0, length);
+			sink.accept(sequence, length, frequency);
+		}
+		this.used = 0;
+		this.sequences = 0;
+	}
+
+	private synchronized void resolve() {
+		if (this.counter != null) return;
+		VirtualCounter counter = new VirtualCounter(this.shards);
+		SequenceSink sink = (tokens, length, frequency) -> counter.count(tokens, 0, length, frequency);
+		try {
+			if (this.runs.isEmpty()) drainBuffer(sink);
+			else {
+				if (this.sequences > 0) spill();
+				System.out.println("Merging " + this.runs.size() + " runs");
+				long t = System.currentTimeMillis();
+				List<File> runs = new ArrayList<>(this.runs);
+				while (runs.size() > MERGE_FANIN) runs = mergePass(runs);
+				merge(runs, sink);
+				System.out.println("Merged in " + (System.currentTimeMillis() - t)/1000 + "s");
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not merge spilled counts", e);
+		}
+		this.runs.clear();
+		this.buffer = null;
+		this.offsets = null;
+		this.counter = counter;
+	}
+
+	/**
+	 * Merges every {@link #MERGE_FANIN} runs into one, returning the (fewer) merged runs.
+	 */
+	private List<File> mergePass(List<File> runs) throws IOException {
+		List<File> merged = new ArrayList<>();
+		for (int i = 0; i < runs.size(); i += MERGE_FANIN) {
+			File run = File.createTempFile("slp-run-", ".bin", this.directory);
+			run.deleteOnExit();
+			try (RunWriter writer = new RunWriter(run)) {
+				merge(runs.subList(i, Math.min(runs.size(), i + MERGE_FANIN)), writer);
+			}
+			merged.add(run);
+		}
+		return merged;
+	}
+
+	/**
+	 * Merges the given (sorted) runs into {@code sink}, adding up the frequencies of equal sequences, and deletes them.
+	 */
+	private static void merge(List<File> runs, SequenceSink sink) throws IOException {
+		PriorityQueue<PackedSequences.Reader> queue = new PriorityQueue<>(runs.size(),
+				(r1, r2) -> PackedSequences.compare(r1.tokens(), 0, r1.length(), r2.tokens(), 0, r2.length()));
+		try {
+			for (File run : runs) {
+				PackedSequences.Reader reader = new PackedSequences.Reader(new FileInputStream(run));
+				if (reader.next()) queue.add(reader);
+				else reader.close();
+			}
+			int[] sequence = new int[0];
+			while (!queue.isEmpty()) {
+				PackedSequences.Reader head = queue.poll();
+				int length = head.length();
+				if (sequence.length < length) sequence = new int[length];
+				System.arraycopy(head.tokens(), 0, sequence, 0, length);
+				int frequency = 0;
+				while (true) {
+					frequency += head.count();
+					if (head.next()) queue.add(head);
+					else head.close();
+					head = queue.peek();
+					if (head == null || PackedSequences.compare(head.tokens(), 0, head.length(), sequence, 0, length) != 0) break;
+					queue.poll();
+				}
+				sink.accept(sequence, length, frequency);
+			}
+		} finally {
+			for (PackedSequences.Reader reader : queue) reader.close();
+			for (File run : runs) run.delete();
+		}
+	}
+
+	private interface SequenceSink {
+		void accept(int[] tokens, int length, int frequency) throws IOException;
+	}
+
+	/*
+	 * Runs store each distinct sequence with its frequency, encoded as packed sequences
+	 */
+	private static final class RunWriter implements SequenceSink, AutoCloseable {
+		private final PackedSequences.Writer out;
+
+		private RunWriter(File file) throws IOException {
+			this.out = new PackedSequences.Writer(new FileOutputStream(file));
+		}
+
+		@Override
+		public void accept(int[] tokens, int length, int frequency) throws IOException {
+			this.out.write(tokens, length, frequency);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.out.close();
+		}
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		resolve();
+		this.counter.writeExternal(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		this.counter = new VirtualCounter(0);
+		this.counter.readExternal(in);
+	}
+}
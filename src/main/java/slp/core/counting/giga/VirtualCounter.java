@@ -3,18 +3,26 @@ package slp.core.counting.giga;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import slp.core.counting.CountOfCounts;
 import slp.core.counting.Counter;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.PruneCondition;
+import slp.core.counting.trie.AbstractTrie;
+import slp.core.counting.trie.FrozenTrieCounter;
 import slp.core.counting.trie.MapTrieCounter;
 
 /**
  * Wraps multiple counters (specifically {@link MapTrieCounter}s) to support faster concurrent access 
  * and reduce garbage collection cost per counter.<br />
- * Each counter c_i is assigned all (integer) sequences s=[t0, t1, ...] such that (t0 % counters.size()) == i.
- * The empty sequence is assigned to c_0.
+ * Each counter c_i is assigned all (integer) sequences s=[t0, t1, ...] such that the {@link ShardFunction} maps t0 to i.
+ * The empty sequence is assigned to c_0, but lookups on the empty context (e.g. its top successors) combine all counters.
  * <br /><br />
  * 
  * The {@link GigaCounter} is the primary user of this VirtualCounter
@@ -32,23 +40,63 @@ public class VirtualCounter implements Counter {
 
 	private static final long serialVersionUID = 8266734684040886875L;
 
+	public static final int DEFAULT_SHARDS = 16;
+	// Marks the format that stores the shard function; older counters start with their (non-negative) number of shards
+	private static final int SHARDED_FORMAT = -1;
+
 	private List<MapTrieCounter> counters;
+	private ShardFunction shardFunction;
+	private CountOfCounts nCounts;
 
 	public VirtualCounter() {
 		this(1);
 	}
 	
 	public VirtualCounter(int counters) {
-		this(IntStream.range(0, counters).mapToObj(i -> new MapTrieCounter()).collect(Collectors.toList()));
+		this(counters, ShardFunction.Standard.HASHED);
+	}
+
+	public VirtualCounter(int counters, ShardFunction shardFunction) {
+		this(IntStream.range(0, counters).mapToObj(i -> new MapTrieCounter()).collect(Collectors.toList()), shardFunction);
 	}
 	
-	public VirtualCounter(List<MapTrieCounter> counters) {
+	public VirtualCounter(List<MapTrieCounter> counters, ShardFunction shardFunction) {
 		this.counters = counters;
+		this.shardFunction = shardFunction;
+		shareCountOfCounts();
+	}
+
+	/**
+	 * Makes all counters share one count-of-counts table, which is owned by this counter.
+	 */
+	private void shareCountOfCounts() {
+		CountOfCounts nCounts = new CountOfCounts();
+		this.counters.parallelStream().forEach(counter -> counter.setCountOfCounts(nCounts));
+		this.nCounts = nCounts;
 	}
 
 	@Override
 	public int getCount() {
-		return this.counters.get(0).getCount();
+		return this.counters.stream().mapToInt(Counter::getCount).sum();
+	}
+
+	public int getShardCount() {
+		return this.counters.size();
+	}
+
+	public MapTrieCounter getShard(int index) {
+		return this.counters.get(index);
+	}
+
+	public ShardFunction getShardFunction() {
+		return this.shardFunction;
+	}
+
+	/**
+	 * Returns the size of each shard, as the number of sequences counted in it, e.g. to check how well-balanced the shards are.
+	 */
+	public int[] getShardSizes() {
+		return this.counters.stream().mapToInt(Counter::getCount).toArray();
 	}
 
 	private long memCC = 0;
@@ -64,10 +112,20 @@ public class VirtualCounter implements Counter {
 		return counts;
 	}
 
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		getCounter(tokens, from, to).getCounts(tokens, from, to, counts);
+		if (to - from == 1) {
+			if (this.memCC == 0) {
+				this.memCC = IntStream.range(0, this.counters.size()).map(i -> this.counters.get(i).getContextCount()).sum();
+			}
+			counts[1] = this.memCC;
+		}
+	}
+
 	@Override
 	public int getCountofCount(int n, int count) {
-		// Count of counts table is static and shared between MapTrieCounters, so this relies strongly on using that class!
-		return this.counters.get(0).getCountofCount(n, count);
+		return this.nCounts.get(n, count);
 	}
 
 	private int memSC = 0;
@@ -82,12 +140,98 @@ public class VirtualCounter implements Counter {
 		return getCounter(indices).getSuccessorCount(indices);
 	}
 
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		return getCounter(tokens, from, to).getSuccessorCount(tokens, from, to);
+	}
+
 	@Override
 	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
 		if (!indices.isEmpty()) return getCounter(indices).getTopSuccessors(indices, limit);
 		else {
-			// TODO: should really include all counters' options here
-			return getCounter(indices).getTopSuccessors(indices, limit);
+			int[] top = getRootTopSuccessors(limit);
+			return Arrays.stream(top, 0, Math.min(limit, top.length)).boxed().collect(Collectors.toList());
+		}
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		if (from != to) return getCounter(tokens, from, to).getTopSuccessors(tokens, from, to, successors);
+		else {
+			int[] top = getRootTopSuccessors(successors.length);
+			int found = Math.min(successors.length, top.length);
+			System.arraycopy(top, 0, successors, 0, found);
+			return found;
+		}
+	}
+
+	private volatile RootSuccessors memTop = null;
+	/**
+	 * Returns (at least) the top {@code limit} successors of the empty context, which are spread over all counters.
+	 * Each counter's root holds a disjoint set of them, so this merges each counter's top {@code limit} successors,
+	 * which only involves looking up the counts of the successors that are merged (plus one per counter).
+	 * The result is cached until the next update, so the frequent lookups at the start of a file or line are cheap.
+	 */
+	private int[] getRootTopSuccessors(int limit) {
+		RootSuccessors top = this.memTop;
+		if (top == null || !top.covers(limit)) {
+			top = new RootSuccessors(mergeRootTopSuccessors(limit), limit);
+			this.memTop = top;
+		}
+		return top.successors;
+	}
+
+	private int[] mergeRootTopSuccessors(int limit) {
+		limit = Math.min(limit, getSuccessorCount());
+		int[][] tops = new int[this.counters.size()][];
+		int[] found = new int[this.counters.size()];
+		int[] positions = new int[this.counters.size()];
+		long[] heads = new long[this.counters.size()];
+		// Ordered as within each counter: by descending count, then by ascending token
+		PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, this.counters.size()), (i, j) -> {
+			int compare = Long.compare(heads[j], heads[i]);
+			return compare != 0 ? compare : Integer.compare(tops[i][positions[i]], tops[j][positions[j]]);
+		});
+		int[] token = new int[1];
+		long[] counts = new long[2];
+		for (int i = 0; i < this.counters.size(); i++) {
+			tops[i] = new int[limit];
+			found[i] = this.counters.get(i).getTopSuccessors(token, 0, 0, tops[i]);
+			if (found[i] == 0) continue;
+			token[0] = tops[i][0];
+			this.counters.get(i).getCounts(token, 0, 1, counts);
+			heads[i] = counts[0];
+			queue.add(i);
+		}
+		int[] merged = new int[limit];
+		int size = 0;
+		while (size < limit && !queue.isEmpty()) {
+			int i = queue.poll();
+			merged[size++] = tops[i][positions[i]++];
+			if (positions[i] == found[i]) continue;
+			token[0] = tops[i][positions[i]];
+			this.counters.get(i).getCounts(token, 0, 1, counts);
+			heads[i] = counts[0];
+			queue.add(i);
+		}
+		return size == limit ? merged : Arrays.copyOf(merged, size);
+	}
+
+	/**
+	 * The merged top successors of the empty context, for the limit they were computed for.
+	 */
+	private static final class RootSuccessors {
+		private final int[] successors;
+		private final int limit;
+
+		RootSuccessors(int[] successors, int limit) {
+			this.successors = successors;
+			this.limit = limit;
+		}
+
+		boolean covers(int limit) {
+			// Fewer successors than requested means there are no more to find
+			return limit <= this.limit || this.successors.length < this.limit;
 		}
 	}
 
@@ -106,38 +250,144 @@ public class VirtualCounter implements Counter {
 	}
 
 	@Override
-	public void count(List<Integer> indices) {
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		if (from == to) {
+			int[] memDS = getDistinctCounts(distinctCounts.length, Collections.emptyList());
+			System.arraycopy(memDS, 0, distinctCounts, 0, distinctCounts.length);
+		}
+		else getCounter(tokens, from, to).getDistinctCounts(tokens, from, to, distinctCounts);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		// Unigrams have the empty context, whose counts span all counters
+		if (to - from == 1) {
+			getCounts(tokens, from, to, counts);
+			if (distinctCounts.length > 0) getDistinctCounts(tokens, from, from, distinctCounts);
+		}
+		else getCounter(tokens, from, to).getCounts(tokens, from, to, counts, distinctCounts);
+	}
+
+	private void invalidate() {
 		this.memCC = 0;
 		this.memSC = 0;
 		this.memDS = null;
+		this.memTop = null;
+	}
+
+	@Override
+	public Counter freeze() {
+		return FrozenTrieCounter.of(this.counters);
+	}
+
+	@Override
+	public CounterStatistics getStatistics() {
+		List<CounterStatistics> shards = this.counters.parallelStream().map(Counter::getStatistics).collect(Collectors.toList());
+		CounterStatistics statistics = new CounterStatistics();
+		for (CounterStatistics shard : shards) statistics.add(shard);
+		return statistics;
+	}
+
+	@Override
+	public long prune(int[] minCounts, PruneCondition condition) {
+		invalidate();
+		// Shards are disjoint, so they can be pruned by count in parallel; a condition may look up counts in any shard
+		if (condition == null) return this.counters.parallelStream().mapToLong(c -> c.prune(minCounts, null)).sum();
+		else return this.counters.stream().mapToLong(c -> c.prune(minCounts, condition)).sum();
+	}
+
+	@Override
+	public void merge(Counter other) {
+		merge(other, false);
+	}
+
+	@Override
+	public void subtract(Counter other) {
+		merge(other, true);
+	}
+
+	private void merge(Counter other, boolean subtract) {
+		if (other == this) throw new IllegalArgumentException("Cannot merge a counter with itself");
+		List<? extends AbstractTrie> tries;
+		if (other instanceof VirtualCounter) {
+			VirtualCounter virtual = (VirtualCounter) other;
+			if (virtual.counters.size() == this.counters.size() && virtual.shardFunction.equals(this.shardFunction)) {
+				// The shards line up, so each can be merged with its counterpart independently
+				IntStream.range(0, this.counters.size()).parallel().forEach(i -> {
+					if (subtract) this.counters.get(i).subtract(virtual.counters.get(i));
+					else this.counters.get(i).merge(virtual.counters.get(i));
+				});
+				invalidate();
+				return;
+			}
+			tries = virtual.counters;
+		}
+		else if (other instanceof AbstractTrie) tries = Collections.singletonList((AbstractTrie) other);
+		else {
+			throw new UnsupportedOperationException("Cannot merge counter of type " + other.getClass().getSimpleName()
+					+ " into " + getClass().getSimpleName());
+		}
+		// Otherwise, every shard takes the sequences that start with the tokens assigned to it
+		for (AbstractTrie trie : tries) {
+			IntStream.range(0, this.counters.size()).parallel().forEach(i ->
+				this.counters.get(i).merge(trie, key -> this.shardFunction.getShard(key, this.counters.size()) == i, subtract));
+			this.counters.get(0).updateCount((subtract ? -1 : 1) * (trie.getCount() - trie.getContextCount()));
+		}
+		invalidate();
+	}
+
+	@Override
+	public void count(List<Integer> indices) {
+		invalidate();
 		getCounter(indices).count(indices);
 	}
 
 	public void count(List<Integer> indices, int frequency) {
-		this.memCC = 0;
-		this.memSC = 0;
-		this.memDS = null;
+		invalidate();
 		getCounter(indices).update(indices, frequency);
 	}
 
 	@Override
 	public void unCount(List<Integer> indices) {
-		this.memCC = 0;
-		this.memSC = 0;
-		this.memDS = null;
+		invalidate();
 		getCounter(indices).unCount(indices);
 	}
 
+	@Override
+	public void count(int[] tokens, int from, int to) {
+		count(tokens, from, to, 1);
+	}
+
+	public void count(int[] tokens, int from, int to, int frequency) {
+		invalidate();
+		getCounter(tokens, from, to).update(tokens, from, to, frequency);
+	}
+
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		count(tokens, from, to, -1);
+	}
+
 	private MapTrieCounter getCounter(List<Integer> indices) {
 		return this.counters.get(getIndex(indices));
 	}
 
+	private MapTrieCounter getCounter(int[] tokens, int from, int to) {
+		return this.counters.get(getIndex(tokens, from, to));
+	}
+
 	private int getIndex(List<Integer> key) {
-		return key.isEmpty() ? 0 : key.get(0) % this.counters.size();
+		return key.isEmpty() ? 0 : this.shardFunction.getShard(key.get(0), this.counters.size());
+	}
+
+	private int getIndex(int[] tokens, int from, int to) {
+		return from == to ? 0 : this.shardFunction.getShard(tokens[from], this.counters.size());
 	}
 
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(SHARDED_FORMAT);
+		out.writeObject(this.shardFunction);
 		out.writeInt(this.counters.size());
 		for (MapTrieCounter counter : this.counters) counter.writeExternal(out);
 	}
@@ -146,10 +396,17 @@ public class VirtualCounter implements Counter {
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
 		this.counters.clear();
 		int size = in.readInt();
+		if (size == SHARDED_FORMAT) {
+			this.shardFunction = (ShardFunction) in.readObject();
+			size = in.readInt();
+		}
+		// Older counters were always sharded by token modulo the number of shards
+		else this.shardFunction = ShardFunction.Standard.MODULO;
 		for (int i = 0; i < size; i++) {
 			MapTrieCounter counter = new MapTrieCounter(0);
 			counter.readExternal(in);
 			this.counters.add(counter);
 		}
+		shareCountOfCounts();
 	}
 }
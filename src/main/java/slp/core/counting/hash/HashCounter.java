@@ -0,0 +1,478 @@
+package slp.core.counting.hash;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import slp.core.counting.CountOfCounts;
+import slp.core.counting.Counter;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.trie.AbstractTrie;
+import slp.core.util.Util;
+
+/**
+ * Counter that stores every sequence as a 64-bit fingerprint in an open-addressing (linear probing) table per sequence length,
+ * much like KenLM's "probing" data structure. Each table is a handful of flat primitive arrays holding, per sequence,
+ * its count, its count as a context and its successors' count-of-counts (up to the {@link AbstractTrie#COUNT_OF_COUNTS_CUTOFF}),
+ * so there are no per-node objects and a lookup costs one (mostly cache-local) probe per table rather than a descent through a trie.
+ * <br /><br />
+ * Since only fingerprints are stored, this counter cannot enumerate the successors of a sequence:
+ * {@link #getTopSuccessors} always returns nothing, so it suits models that are used to score (e.g. compute entropy) but not to predict.
+ * Distinct sequences whose fingerprints collide are counted as one; with 64-bit fingerprints this is exceedingly rare.
+ * <br /><br />
+ * Updates synchronize on this counter; lookups do not.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class HashCounter implements Counter {
+
+	private static final long serialVersionUID = 3362851925727613380L;
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	// Tables are grown once they are this full, which keeps linear probe sequences short
+	private static final double MAX_LOAD = 0.7;
+	private static final int[] NO_DISTINCT_COUNTS = new int[0];
+
+	private int count;
+	private int contextCount;
+	// Count-of-counts of the sequences of length 1, i.e. the successors of the empty context
+	private int[] cocs;
+	// One table per sequence length, starting at length 1
+	private Table[] tables;
+	private int cutoff;
+	private CountOfCounts nCounts;
+
+	public HashCounter() {
+		this.tables = new Table[0];
+		this.nCounts = new CountOfCounts();
+	}
+
+	/**
+	 * Open-addressing table of the sequences of one length. A table never changes capacity; it is replaced by a larger copy instead,
+	 * so that unsynchronized readers always see arrays of matching lengths.
+	 * The context counts and count-of-counts are only allocated once longer sequences are counted,
+	 * so the table of the longest sequences (typically the largest) stores just keys and counts.
+	 */
+	private static final class Table {
+		private final int mask;
+		private final int cutoff;
+		private final long[] keys;
+		private final int[] counts;
+		private int[] contextCounts;
+		private int[] cocs;
+		private int size;
+
+		private Table(int capacity, int cutoff, boolean contexts) {
+			this.mask = capacity - 1;
+			this.cutoff = cutoff;
+			this.keys = new long[capacity];
+			this.counts = new int[capacity];
+			if (contexts) addContexts();
+		}
+
+		private boolean hasContexts() {
+			return this.contextCounts != null;
+		}
+
+		private void addContexts() {
+			this.cocs = new int[capacity() * this.cutoff];
+			this.contextCounts = new int[capacity()];
+		}
+
+		private int capacity() {
+			return this.keys.length;
+		}
+
+		/**
+		 * Returns the slot holding {@code key}, or if absent, minus one minus the empty slot where it would be inserted.
+		 */
+		private int find(long key) {
+			int slot = (int) key & this.mask;
+			while (true) {
+				long k = this.keys[slot];
+				if (k == key) return slot;
+				else if (k == 0) return -slot - 1;
+				slot = (slot + 1) & this.mask;
+			}
+		}
+
+		private int insert(int slot, long key) {
+			this.keys[slot] = key;
+			this.size++;
+			return slot;
+		}
+
+		/**
+		 * Removes the entry in {@code slot}, shifting later entries of its probe sequence back so that no tombstones are needed.
+		 */
+		private void remove(int slot) {
+			int gap = slot;
+			int next = (gap + 1) & this.mask;
+			while (this.keys[next] != 0) {
+				int home = (int) this.keys[next] & this.mask;
+				// Move the entry into the gap unless its home slot lies cyclically in (gap, next]
+				if (((next - home) & this.mask) >= ((next - gap) & this.mask)) {
+					copy(next, this, gap);
+					gap = next;
+				}
+				next = (next + 1) & this.mask;
+			}
+			clear(gap);
+			this.size--;
+		}
+
+		private void copy(int slot, Table target, int targetSlot) {
+			target.keys[targetSlot] = this.keys[slot];
+			target.counts[targetSlot] = this.counts[slot];
+			if (!hasContexts()) return;
+			target.contextCounts[targetSlot] = this.contextCounts[slot];
+			System.arraycopy(this.cocs, slot * this.cutoff, target.cocs, targetSlot * this.cutoff, this.cutoff);
+		}
+
+		private void clear(int slot) {
+			this.keys[slot] = 0;
+			this.counts[slot] = 0;
+			if (!hasContexts()) return;
+			this.contextCounts[slot] = 0;
+			Arrays.fill(this.cocs, slot * this.cutoff, (slot + 1) * this.cutoff, 0);
+		}
+
+		private Table grow() {
+			Table grown = new Table(2 * capacity(), this.cutoff, hasContexts());
+			for (int slot = 0; slot < capacity(); slot++) {
+				if (this.keys[slot] == 0) continue;
+				copy(slot, grown, -grown.find(this.keys[slot]) - 1);
+			}
+			grown.size = this.size;
+			return grown;
+		}
+	}
+
+	/*
+	 * Fingerprints. Sequences are hashed incrementally, token by token, so all prefixes of a sequence are fingerprinted in one pass.
+	 * Zero marks empty slots and is never used as a fingerprint.
+	 */
+	static long extend(long state, int token) {
+		return (state ^ token) * 0x9E3779B97F4A7C15L + 0x632BE59BD9B4E019L;
+	}
+
+	static long fingerprint(long state) {
+		long h = state;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	private Table getTable(int length) {
+		Table[] tables = this.tables;
+		return length <= tables.length ? tables[length - 1] : null;
+	}
+
+	/**
+	 * Returns the slot of {@code tokens[from, to)} in its table, or -1 if it was never seen.
+	 */
+	private int getSlot(Table table, int[] tokens, int from, int to) {
+		if (table == null) return -1;
+		long state = 0;
+		for (int i = from; i < to; i++) state = extend(state, tokens[i]);
+		int slot = table.find(fingerprint(state));
+		return slot < 0 ? -1 : slot;
+	}
+
+	/*
+	 * Lookups
+	 */
+	@Override
+	public int getCount() {
+		return this.count;
+	}
+
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		getCounts(tokens, from, to, counts, NO_DISTINCT_COUNTS);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) {
+			counts[0] = this.count;
+			counts[1] = this.count;
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		int length = to - from;
+		long state = 0;
+		for (int i = from; i < to - 1; i++) state = extend(state, tokens[i]);
+		if (length == 1) {
+			counts[1] = this.contextCount;
+			if (distinctCounts.length > 0 && this.cocs != null) writeDistinctCounts(this.cocs, 0, distinctCounts);
+		}
+		else {
+			Table context = getTable(length - 1);
+			if (context == null || !context.hasContexts()) return;
+			int slot = context.find(fingerprint(state));
+			if (slot < 0) return;
+			counts[1] = context.contextCounts[slot];
+			if (distinctCounts.length > 0) writeDistinctCounts(context.cocs, slot * context.cutoff, distinctCounts);
+		}
+		Table table = getTable(length);
+		if (table == null) return;
+		int slot = table.find(fingerprint(extend(state, tokens[to - 1])));
+		if (slot >= 0) counts[0] = table.counts[slot];
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		return this.nCounts.get(n, count);
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		return this.cocs == null ? 0 : sum(this.cocs, 0, this.cutoff);
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		return getSuccessorCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		if (from == to) return getSuccessorCount();
+		Table table = getTable(to - from);
+		int slot = getSlot(table, tokens, from, to);
+		return slot < 0 || !table.hasContexts() ? 0 : sum(table.cocs, slot * table.cutoff, table.cutoff);
+	}
+
+	/**
+	 * Not supported: fingerprints do not identify the successors of a sequence, so this always returns an empty list.
+	 */
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		return new ArrayList<>();
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		return 0;
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		int[] distinctCounts = new int[range];
+		getDistinctCounts(Util.toArray(indices), 0, indices.size(), distinctCounts);
+		return distinctCounts;
+	}
+
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) {
+			if (this.cocs != null) writeDistinctCounts(this.cocs, 0, distinctCounts);
+			return;
+		}
+		Table table = getTable(to - from);
+		int slot = getSlot(table, tokens, from, to);
+		if (slot >= 0 && table.hasContexts()) writeDistinctCounts(table.cocs, slot * table.cutoff, distinctCounts);
+	}
+
+	private void writeDistinctCounts(int[] cocs, int offset, int[] distinctCounts) {
+		int range = distinctCounts.length;
+		int totalDistinct = sum(cocs, offset, this.cutoff);
+		// Mirrors AbstractTrie: the first (cutoff - 1) count-of-counts are reported individually, the remainder is aggregated
+		for (int i = 1; i < this.cutoff && i <= range - 1; i++) {
+			int countOfCountsI = cocs[offset + i - 1];
+			distinctCounts[i - 1] = countOfCountsI;
+			totalDistinct -= countOfCountsI;
+		}
+		distinctCounts[range - 1] = totalDistinct;
+	}
+
+	private static int sum(int[] values, int offset, int length) {
+		int sum = 0;
+		for (int i = offset; i < offset + length; i++) sum += values[i];
+		return sum;
+	}
+
+	/*
+	 * Updates
+	 */
+	@Override
+	public void count(List<Integer> indices) {
+		update(Util.toArray(indices), 0, indices.size(), 1);
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		update(Util.toArray(indices), 0, indices.size(), -1);
+	}
+
+	@Override
+	public void count(int[] tokens, int from, int to) {
+		update(tokens, from, to, 1);
+	}
+
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		update(tokens, from, to, -1);
+	}
+
+	/**
+	 * Adds {@code adj} to the count of every prefix of {@code tokens[from, to)} (including the empty one) and to the context count of every proper prefix,
+	 * keeping the count-of-counts of each prefix's successors current. Sequences whose count drops to zero are removed.
+	 */
+	public synchronized void update(int[] tokens, int from, int to, int adj) {
+		if (this.cocs == null) {
+			this.cutoff = Math.max(1, AbstractTrie.COUNT_OF_COUNTS_CUTOFF);
+			this.cocs = new int[this.cutoff];
+		}
+		int length = to - from;
+		if (length > 0) ensureTables(length);
+		this.count += adj;
+		if (length > 0) this.contextCount += adj;
+		// Parent of the current prefix: its cocs array and offset therein
+		int[] parentCoCs = this.cocs;
+		int parentOffset = 0;
+		int[] emptied = null;
+		long state = 0;
+		for (int n = 1; n <= length; n++) {
+			state = extend(state, tokens[from + n - 1]);
+			Table table = this.tables[n - 1];
+			long key = fingerprint(state);
+			int slot = table.find(key);
+			if (slot < 0) {
+				// Unseen sequences cannot be uncounted, and neither can their extensions
+				if (adj < 0) break;
+				if (table.size + 1 > MAX_LOAD * table.capacity()) {
+					table = table.grow();
+					this.tables[n - 1] = table;
+					slot = table.find(key);
+				}
+				slot = table.insert(-slot - 1, key);
+			}
+			int count = table.counts[slot] + adj;
+			table.counts[slot] = count;
+			if (n < length) table.contextCounts[slot] += adj;
+			this.nCounts.update(n, count, adj);
+			updateCoCs(parentCoCs, parentOffset, count, adj);
+			if (count <= 0) {
+				// Removal may move other entries of this table, so it is deferred until all lookups are done
+				if (emptied == null) emptied = new int[length];
+				emptied[n - 1] = slot + 1;
+			}
+			parentCoCs = table.cocs;
+			parentOffset = slot * table.cutoff;
+		}
+		if (emptied != null) {
+			for (int n = 1; n <= length; n++) {
+				if (emptied[n - 1] > 0) this.tables[n - 1].remove(emptied[n - 1] - 1);
+			}
+		}
+	}
+
+	private void ensureTables(int length) {
+		if (length > this.tables.length) {
+			Table[] tables = Arrays.copyOf(this.tables, length);
+			for (int n = this.tables.length; n < length; n++) tables[n] = new Table(INITIAL_CAPACITY, this.cutoff, false);
+			// Sequences of the (formerly) longest length now have successors
+			for (int n = 0; n < length - 1; n++) {
+				if (!tables[n].hasContexts()) tables[n].addContexts();
+			}
+			this.tables = tables;
+		}
+	}
+
+	private void updateCoCs(int[] cocs, int offset, int count, int adj) {
+		int currIndex = Math.min(count, this.cutoff);
+		int prevIndex = Math.min(count - adj, this.cutoff);
+		if (currIndex != prevIndex) {
+			if (currIndex >= 1) cocs[offset + currIndex - 1]++;
+			if (prevIndex >= 1) cocs[offset + prevIndex - 1]--;
+		}
+	}
+
+	/*
+	 * Statistics: this counter has no nodes, just one flat table per sequence length
+	 */
+	@Override
+	public synchronized CounterStatistics getStatistics() {
+		CounterStatistics statistics = new CounterStatistics();
+		statistics.addBytes(CounterStatistics.objectBytes(24) + CounterStatistics.arrayBytes(this.tables.length, 4)
+				+ (this.cocs == null ? 0 : CounterStatistics.arrayBytes(this.cocs.length, 4)));
+		for (int n = 0; n < this.tables.length; n++) {
+			Table table = this.tables[n];
+			if (table == null) continue;
+			statistics.addNGrams(n + 1, table.size);
+			statistics.addBytes(CounterStatistics.objectBytes(28) + CounterStatistics.arrayBytes(table.keys.length, 8)
+					+ CounterStatistics.arrayBytes(table.counts.length, 4));
+			if (table.hasContexts()) {
+				statistics.addBytes(CounterStatistics.arrayBytes(table.contextCounts.length, 4) + CounterStatistics.arrayBytes(table.cocs.length, 4));
+			}
+		}
+		return statistics;
+	}
+
+	/*
+	 * Storage: the tables are written as-is, as flat arrays, so that reading needs no rehashing.
+	 */
+	@Override
+	public synchronized void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(this.cutoff);
+		out.writeInt(this.count);
+		out.writeInt(this.contextCount);
+		for (int i = 0; i < this.cutoff; i++) out.writeInt(this.cocs[i]);
+		out.writeInt(this.tables.length);
+		for (Table table : this.tables) {
+			out.writeInt(table.capacity());
+			out.writeInt(table.size);
+			for (long key : table.keys) out.writeLong(key);
+			for (int count : table.counts) out.writeInt(count);
+			out.writeBoolean(table.hasContexts());
+			if (!table.hasContexts()) continue;
+			for (int count : table.contextCounts) out.writeInt(count);
+			for (int coc : table.cocs) out.writeInt(coc);
+		}
+	}
+
+	@Override
+	public synchronized void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		this.cutoff = in.readInt();
+		this.count = in.readInt();
+		this.contextCount = in.readInt();
+		this.cocs = this.cutoff == 0 ? null : new int[this.cutoff];
+		for (int i = 0; i < this.cutoff; i++) this.cocs[i] = in.readInt();
+		this.tables = new Table[in.readInt()];
+		this.nCounts = new CountOfCounts();
+		for (int n = 1; n <= this.tables.length; n++) {
+			Table table = new Table(in.readInt(), this.cutoff, false);
+			table.size = in.readInt();
+			for (int i = 0; i < table.keys.length; i++) table.keys[i] = in.readLong();
+			for (int i = 0; i < table.counts.length; i++) table.counts[i] = in.readInt();
+			if (in.readBoolean()) {
+				table.addContexts();
+				for (int i = 0; i < table.contextCounts.length; i++) table.contextCounts[i] = in.readInt();
+				for (int i = 0; i < table.cocs.length; i++) table.cocs[i] = in.readInt();
+			}
+			for (int i = 0; i < table.counts.length; i++) {
+				if (table.keys[i] != 0) this.nCounts.add(n, table.counts[i]);
+			}
+			this.tables[n - 1] = table;
+		}
+	}
+}
@@ -0,0 +1,676 @@
+package slp.core.counting.hash;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import slp.core.counting.CountOfCounts;
+import slp.core.counting.Counter;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.trie.AbstractTrie;
+import slp.core.util.Util;
+
+/**
+ * Approximate counter whose memory is fixed at construction, regardless of how much is counted, for scoring over corpora
+ * (or streams) too large to count exactly. Sequences of every length up to the order are counted in their own count-min sketch
+ * [Cormode &amp; Muthukrishnan, 2005]: {@code depth} rows of {@code width} cells, each sequence mapping to one cell per row
+ * (by its 64-bit fingerprint, as in the {@link HashCounter}). Every cell stores the same fields a trie node does: a count,
+ * a context count and, per {@code k} up to the {@link AbstractTrie#COUNT_OF_COUNTS_CUTOFF}, the number of successors seen at least {@code k} times,
+ * from which {@link #getDistinctCounts} are derived. A field's estimate is the minimum over its cells; updates are conservative
+ * [Estan &amp; Varghese, 2002], raising each cell only as far as the new estimate.
+ * <br /><br />
+ * In front of every sketch sits a small exact table of heavy hitters [Roy et al., 2016]: a sequence whose estimate exceeds the smallest count
+ * in the (full) table takes that entry's place, after which it is counted exactly, and the evicted entry's counts are added back to the sketch.
+ * The most frequent sequences thus contribute little of their mass, and no error from collisions, to the sketch.
+ * <br /><br />
+ * Error bounds: with {@code ε = e/width} and {@code δ = e^-depth}, every estimated count (and likewise context count)
+ * of a sequence of length {@code n} is at least its true value and, with probability at least {@code 1 - δ}, at most {@code ε·N(n)} above it,
+ * where {@code N(n)} is the total count of length-{@code n} sequences held in the sketch (see {@link #getErrorBound(int)}).
+ * Heavy hitters are counted exactly from when they enter the table, on top of their estimate at that time.
+ * Distinct counts (and the count-of-counts) follow the estimated counts of successors: a successor whose count is already overestimated
+ * when it is first counted is not recognized as new, so these may err in either direction, though they too converge as the width grows.
+ * The lower bound only holds while sequences are only counted: conservative updates cannot be undone exactly,
+ * so {@link #unCount} simply lowers every cell, which may make estimates of colliding sequences fall below their true values.
+ * <br /><br />
+ * Like the {@link HashCounter}, this counter cannot enumerate the successors of a sequence, so it suits models that score rather than predict.
+ * Sequences longer than the order are counted up to the order. Updates synchronize on this counter; lookups do not.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class SketchCounter implements Counter {
+
+	private static final long serialVersionUID = -1206325734585926107L;
+
+	public static final long DEFAULT_BUDGET = 64L << 20;
+	public static final int DEFAULT_DEPTH = 4;
+	public static final int DEFAULT_HEAVY_HITTERS = 1024;
+
+	private static final int COUNT = 0;
+	private static final int CONTEXT_COUNT = 1;
+	// Fields from here on count the successors seen at least 1, 2, ... cutoff times
+	private static final int AT_LEAST = 2;
+	private static final int[] NO_DISTINCT_COUNTS = new int[0];
+
+	private int order;
+	private int width;
+	private int depth;
+	private int heavyHitters;
+	private int cutoff;
+
+	// The empty sequence is counted exactly
+	private int count;
+	private int contextCount;
+	private int[] atLeast;
+	// One sketch per sequence length, starting at length 1
+	private Level[] levels;
+	private CountOfCounts nCounts;
+
+	/**
+	 * Creates an empty counter without any sketches (i.e. of order 0), to be read using {@link #readExternal(ObjectInput)},
+	 * which sizes the sketches to those that were written. Use {@link #SketchCounter(int, long)} to create a counter to count with.
+	 */
+	public SketchCounter() {
+		this.cutoff = Math.max(1, AbstractTrie.COUNT_OF_COUNTS_CUTOFF);
+		this.atLeast = new int[this.cutoff];
+		this.levels = new Level[0];
+		this.nCounts = new CountOfCounts();
+	}
+
+	/**
+	 * Creates a counter that uses (about) {@code budget} bytes, with the default depth and number of heavy hitters, and as wide as fits
+	 *
+	 * @param order The longest sequence length to count
+	 * @param budget The number of bytes to use
+	 */
+	public SketchCounter(int order, long budget) {
+		this(order, getWidth(order, budget, DEFAULT_DEPTH, DEFAULT_HEAVY_HITTERS), DEFAULT_DEPTH, DEFAULT_HEAVY_HITTERS);
+	}
+
+	/**
+	 * @param order The longest sequence length to count
+	 * @param width The number of cells per row, which determines the error: {@code ε = e/width}
+	 * @param depth The number of rows, which determines the probability that the error exceeds its bound: {@code δ = e^-depth}
+	 * @param heavyHitters The number of sequences per length to count exactly, 0 for none
+	 */
+	public SketchCounter(int order, int width, int depth, int heavyHitters) {
+		if (order < 1 || width < 1 || depth < 1 || heavyHitters < 0) {
+			throw new IllegalArgumentException(String.format("Invalid sketch dimensions: order %d, width %d, depth %d, heavy hitters %d",
+					order, width, depth, heavyHitters));
+		}
+		this.order = order;
+		this.width = width;
+		this.depth = depth;
+		this.heavyHitters = heavyHitters;
+		this.cutoff = Math.max(1, AbstractTrie.COUNT_OF_COUNTS_CUTOFF);
+		this.atLeast = new int[this.cutoff];
+		this.levels = new Level[order];
+		for (int n = 1; n <= order; n++) this.levels[n - 1] = new Level(getFields(n, order, this.cutoff), width, depth, heavyHitters);
+		this.nCounts = new CountOfCounts();
+	}
+
+	private static int getFields(int n, int order, int cutoff) {
+		// The longest sequences are never a context, so only need a count
+		return n < order ? AT_LEAST + cutoff : 1;
+	}
+
+	private static int getWidth(int order, long budget, int depth, int heavyHitters) {
+		int cutoff = Math.max(1, AbstractTrie.COUNT_OF_COUNTS_CUTOFF);
+		long columnBytes = 0;
+		long heavyBytes = 0;
+		for (int n = 1; n <= order; n++) {
+			int fields = getFields(n, order, cutoff);
+			columnBytes += 4L * depth * fields;
+			heavyBytes += HeavyHitters.estimateBytes(fields, heavyHitters);
+		}
+		long width = (budget - heavyBytes) / columnBytes;
+		if (width < 1) throw new IllegalArgumentException("Budget of " + budget + " bytes is too small for a sketch of order " + order);
+		return (int) Math.min(width, Integer.MAX_VALUE / ((long) depth * (AT_LEAST + cutoff)));
+	}
+
+	/**
+	 * Returns the error bound per unit of count stored in a sketch: {@code ε = e/width}
+	 */
+	public double getEpsilon() {
+		return Math.E / this.width;
+	}
+
+	/**
+	 * Returns the probability that an estimate exceeds its error bound: {@code δ = e^-depth}
+	 */
+	public double getDelta() {
+		return Math.exp(-this.depth);
+	}
+
+	/**
+	 * Returns the bound on the overestimate of the count of any sequence of length {@code n},
+	 * {@code ε·N(n)}, which holds with probability at least {@code 1 - δ}
+	 */
+	public long getErrorBound(int n) {
+		if (n < 1 || n > this.order) return 0;
+		return (long) Math.ceil(getEpsilon() * this.levels[n - 1].mass);
+	}
+
+	/**
+	 * The sketch and heavy hitters of the sequences of one length
+	 */
+	private static final class Level {
+		private final int fields;
+		private final int width;
+		private final int depth;
+		// Row-major, with all fields of a cell adjacent so that a lookup touches one cache line per row
+		private final int[] cells;
+		private final HeavyHitters heavy;
+		// Total count added to the sketch (rather than the heavy hitters), which scales the error bound
+		private long mass;
+
+		private Level(int fields, int width, int depth, int heavyHitters) {
+			this.fields = fields;
+			this.width = width;
+			this.depth = depth;
+			this.cells = new int[depth * width * fields];
+			this.heavy = heavyHitters > 0 ? new HeavyHitters(fields, heavyHitters) : null;
+		}
+
+		/**
+		 * Returns the index of field 0 of the cell of {@code key} in {@code row}, hashing every row independently by double hashing
+		 */
+		private int getCell(long key, int row) {
+			int hash = (int) key + row * (int) (key >>> 32);
+			int bucket = (int) (((hash & 0xFFFFFFFFL) * this.width) >>> 32);
+			return (row * this.width + bucket) * this.fields;
+		}
+
+		private int getHeavySlot(long key) {
+			return this.heavy == null ? -1 : this.heavy.find(key);
+		}
+
+		int get(long key, int field) {
+			int entry = getHeavySlot(key);
+			if (entry >= 0) return this.heavy.cells[entry * this.fields + field];
+			return estimate(key, field);
+		}
+
+		private int estimate(long key, int field) {
+			int min = Integer.MAX_VALUE;
+			for (int row = 0; row < this.depth; row++) min = Math.min(min, this.cells[getCell(key, row) + field]);
+			return min;
+		}
+
+		/**
+		 * Adds {@code adj} to {@code field} of {@code key} and returns its new value
+		 */
+		int add(long key, int field, int adj) {
+			int entry = getHeavySlot(key);
+			if (entry >= 0) {
+				int value = this.heavy.cells[entry * this.fields + field] += adj;
+				if (field == COUNT) this.heavy.update(entry);
+				return value;
+			}
+			if (field == COUNT) this.mass += adj;
+			return addToSketch(key, field, adj);
+		}
+
+		private int addToSketch(long key, int field, int adj) {
+			if (adj < 0) {
+				int min = Integer.MAX_VALUE;
+				for (int row = 0; row < this.depth; row++) {
+					int cell = getCell(key, row) + field;
+					this.cells[cell] = Math.max(0, this.cells[cell] + adj);
+					min = Math.min(min, this.cells[cell]);
+				}
+				return min;
+			}
+			// Conservative update: raise each cell only as far as the new estimate
+			int target = estimate(key, field) + adj;
+			for (int row = 0; row < this.depth; row++) {
+				int cell = getCell(key, row) + field;
+				if (this.cells[cell] < target) this.cells[cell] = target;
+			}
+			return target;
+		}
+
+		/**
+		 * Lets {@code key}, whose count was just raised to {@code count} in the sketch, take the place of the least frequent heavy hitter
+		 * if it is now more frequent (or the table is not yet full)
+		 */
+		void promote(long key, int count) {
+			if (this.heavy == null) return;
+			boolean full = this.heavy.size == this.heavy.keys.length;
+			if (full && count <= this.heavy.getCount(this.heavy.getMin())) return;
+			if (this.heavy.find(key) >= 0) return;
+			int entry = full ? this.heavy.getMin() : this.heavy.size;
+			if (full) evict(entry);
+			int[] values = new int[this.fields];
+			for (int field = 0; field < this.fields; field++) values[field] = estimate(key, field);
+			this.heavy.put(entry, key, values);
+		}
+
+		/**
+		 * Adds the counts the heavy hitter in {@code entry} gained since it was promoted back to the sketch
+		 */
+		private void evict(int entry) {
+			long key = this.heavy.keys[entry];
+			int offset = entry * this.fields;
+			for (int field = 0; field < this.fields; field++) {
+				int gained = this.heavy.cells[offset + field] - this.heavy.base[offset + field];
+				if (gained == 0) continue;
+				if (field == COUNT) this.mass += gained;
+				addToSketch(key, field, gained);
+			}
+			this.heavy.remove(key);
+		}
+	}
+
+	/**
+	 * Fixed-size table of the sequences counted exactly, with their counts at the time they were promoted (which the sketch already holds).
+	 * Entries are stored densely and found through an open-addressing index, and kept in a binary min-heap by count,
+	 * so that the least frequent entry is known at all times and updating a count takes {@code O(log k)}.
+	 */
+	private static final class HeavyHitters {
+		// Tables are never filled beyond this, which keeps linear probe sequences short
+		private static final double MAX_LOAD = 0.5;
+
+		private final int fields;
+		private final long[] keys;
+		private final int[] cells;
+		private final int[] base;
+		// Entry + 1 per slot, or 0 if empty
+		private final int[] index;
+		private final int mask;
+		// Entries ordered as a min-heap by count, and the position of every entry in it
+		private final int[] heap;
+		private final int[] position;
+		private int size;
+
+		private HeavyHitters(int fields, int capacity) {
+			this.fields = fields;
+			this.keys = new long[capacity];
+			this.cells = new int[capacity * fields];
+			this.base = new int[capacity * fields];
+			this.index = new int[getSlots(capacity)];
+			this.mask = this.index.length - 1;
+			this.heap = new int[capacity];
+			this.position = new int[capacity];
+		}
+
+		private static int getSlots(int capacity) {
+			return Integer.highestOneBit((int) Math.ceil(capacity / MAX_LOAD) - 1) << 1;
+		}
+
+		private static long estimateBytes(int fields, int capacity) {
+			return capacity == 0 ? 0 : CounterStatistics.arrayBytes(capacity, 8) + 2*CounterStatistics.arrayBytes(capacity * fields, 4)
+					+ CounterStatistics.arrayBytes(getSlots(capacity), 4) + 2*CounterStatistics.arrayBytes(capacity, 4);
+		}
+
+		private int getSlot(long key) {
+			int slot = (int) (key >>> 32) & this.mask;
+			while (this.index[slot] != 0 && this.keys[this.index[slot] - 1] != key) slot = (slot + 1) & this.mask;
+			return slot;
+		}
+
+		int find(long key) {
+			return this.index[getSlot(key)] - 1;
+		}
+
+		int getCount(int entry) {
+			return this.cells[entry * this.fields + COUNT];
+		}
+
+		/**
+		 * Returns the entry with the smallest count (the table must not be empty)
+		 */
+		int getMin() {
+			return this.heap[0];
+		}
+
+		/**
+		 * Stores {@code key} in {@code entry}, which is either the next free entry or one whose key was just removed
+		 */
+		void put(int entry, long key, int[] values) {
+			this.keys[entry] = key;
+			System.arraycopy(values, 0, this.cells, entry * this.fields, this.fields);
+			System.arraycopy(values, 0, this.base, entry * this.fields, this.fields);
+			this.index[getSlot(key)] = entry + 1;
+			if (entry == this.size) {
+				this.heap[this.size] = entry;
+				this.position[entry] = this.size;
+				this.size++;
+			}
+			update(entry);
+		}
+
+		/**
+		 * Restores the heap order after the count of {@code entry} changed
+		 */
+		void update(int entry) {
+			siftUp(this.position[entry]);
+			siftDown(this.position[entry]);
+		}
+
+		/**
+		 * Orders the first {@link #size} entries, e.g. after they were read, into a heap; entries that were written in heap order keep it
+		 */
+		void heapify() {
+			for (int i = 0; i < this.size; i++) {
+				this.heap[i] = i;
+				this.position[i] = i;
+			}
+			for (int i = this.size/2 - 1; i >= 0; i--) siftDown(i);
+		}
+
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (getCount(this.heap[i]) >= getCount(this.heap[parent])) break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i) {
+			while (true) {
+				int child = 2*i + 1;
+				if (child >= this.size) break;
+				if (child + 1 < this.size && getCount(this.heap[child + 1]) < getCount(this.heap[child])) child++;
+				if (getCount(this.heap[child]) >= getCount(this.heap[i])) break;
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int entry = this.heap[i];
+			this.heap[i] = this.heap[j];
+			this.heap[j] = entry;
+			this.position[this.heap[i]] = i;
+			this.position[this.heap[j]] = j;
+		}
+
+		/**
+		 * Removes {@code key} from the index (its entry is overwritten by the caller), shifting later slots of its probe sequence back
+		 */
+		void remove(long key) {
+			int gap = getSlot(key);
+			int next = (gap + 1) & this.mask;
+			while (this.index[next] != 0) {
+				int home = (int) (this.keys[this.index[next] - 1] >>> 32) & this.mask;
+				// Move the slot into the gap unless its home slot lies cyclically in (gap, next]
+				if (((next - home) & this.mask) >= ((next - gap) & this.mask)) {
+					this.index[gap] = this.index[next];
+					gap = next;
+				}
+				next = (next + 1) & this.mask;
+			}
+			this.index[gap] = 0;
+		}
+	}
+
+	/*
+	 * Lookups
+	 */
+	@Override
+	public int getCount() {
+		return this.count;
+	}
+
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		getCounts(tokens, from, to, counts, NO_DISTINCT_COUNTS);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) {
+			counts[0] = this.count;
+			counts[1] = this.count;
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		int length = to - from;
+		if (length > this.order) return;
+		long state = 0;
+		for (int i = from; i < to - 1; i++) state = HashCounter.extend(state, tokens[i]);
+		if (length == 1) {
+			counts[1] = this.contextCount;
+			if (distinctCounts.length > 0) writeDistinctCounts(this.atLeast, distinctCounts);
+		}
+		else {
+			Level context = this.levels[length - 2];
+			long key = HashCounter.fingerprint(state);
+			counts[1] = context.get(key, CONTEXT_COUNT);
+			if (counts[1] == 0) return;
+			if (distinctCounts.length > 0) writeDistinctCounts(context, key, distinctCounts);
+		}
+		counts[0] = this.levels[length - 1].get(HashCounter.fingerprint(HashCounter.extend(state, tokens[to - 1])), COUNT);
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		return this.nCounts.get(n, count);
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		return this.atLeast[0];
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		return getSuccessorCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		if (from == to) return getSuccessorCount();
+		if (to - from >= this.order) return 0;
+		return this.levels[to - from - 1].get(getKey(tokens, from, to), AT_LEAST);
+	}
+
+	/**
+	 * Not supported: a sketch does not identify the successors of a sequence, so this always returns an empty list.
+	 */
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		return new ArrayList<>();
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		return 0;
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		int[] distinctCounts = new int[range];
+		getDistinctCounts(Util.toArray(indices), 0, indices.size(), distinctCounts);
+		return distinctCounts;
+	}
+
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) writeDistinctCounts(this.atLeast, distinctCounts);
+		else if (to - from < this.order) writeDistinctCounts(this.levels[to - from - 1], getKey(tokens, from, to), distinctCounts);
+	}
+
+	private void writeDistinctCounts(Level level, long key, int[] distinctCounts) {
+		int[] atLeast = new int[this.cutoff];
+		for (int k = 0; k < this.cutoff; k++) atLeast[k] = level.get(key, AT_LEAST + k);
+		writeDistinctCounts(atLeast, distinctCounts);
+	}
+
+	private void writeDistinctCounts(int[] atLeast, int[] distinctCounts) {
+		int range = distinctCounts.length;
+		int totalDistinct = atLeast[0];
+		// Mirrors AbstractTrie: the first (cutoff - 1) count-of-counts are reported individually, the remainder is aggregated.
+		// Estimates of larger counts may exceed those of smaller ones, so differences are floored at zero
+		for (int i = 1; i < this.cutoff && i <= range - 1; i++) {
+			int countOfCountsI = Math.max(0, Math.min(totalDistinct, atLeast[i - 1] - atLeast[i]));
+			distinctCounts[i - 1] = countOfCountsI;
+			totalDistinct -= countOfCountsI;
+		}
+		distinctCounts[range - 1] = totalDistinct;
+	}
+
+	private static long getKey(int[] tokens, int from, int to) {
+		long state = 0;
+		for (int i = from; i < to; i++) state = HashCounter.extend(state, tokens[i]);
+		return HashCounter.fingerprint(state);
+	}
+
+	/*
+	 * Updates
+	 */
+	@Override
+	public void count(List<Integer> indices) {
+		update(Util.toArray(indices), 0, indices.size(), 1);
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		update(Util.toArray(indices), 0, indices.size(), -1);
+	}
+
+	@Override
+	public void count(int[] tokens, int from, int to) {
+		update(tokens, from, to, 1);
+	}
+
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		update(tokens, from, to, -1);
+	}
+
+	/**
+	 * Adds {@code adj} to the count of every prefix of {@code tokens[from, to)} (including the empty one, and up to the order)
+	 * and to the context count of every proper prefix, keeping the number of successors seen at least {@code k} times of each prefix current.
+	 */
+	public synchronized void update(int[] tokens, int from, int to, int adj) {
+		int length = Math.min(to - from, this.order);
+		this.count += adj;
+		if (length > 0) this.contextCount += adj;
+		Level parent = null;
+		long parentKey = 0;
+		long state = 0;
+		for (int n = 1; n <= length; n++) {
+			state = HashCounter.extend(state, tokens[from + n - 1]);
+			Level level = this.levels[n - 1];
+			long key = HashCounter.fingerprint(state);
+			int count = level.add(key, COUNT, adj);
+			if (n < length) level.add(key, CONTEXT_COUNT, adj);
+			this.nCounts.update(n, count, adj);
+			// The successor crossed (or fell below) one or more of the parent's thresholds
+			int prev = count - adj;
+			for (int k = Math.max(1, Math.min(prev, count) + 1); k <= Math.min(this.cutoff, Math.max(prev, count)); k++) {
+				int sign = count > prev ? 1 : -1;
+				if (parent == null) this.atLeast[k - 1] += sign;
+				else parent.add(parentKey, AT_LEAST + k - 1, sign);
+			}
+			if (adj > 0) level.promote(key, count);
+			parent = level;
+			parentKey = key;
+		}
+	}
+
+	/*
+	 * Statistics: this counter has no nodes, just a fixed sketch and table of heavy hitters per sequence length
+	 */
+	@Override
+	public CounterStatistics getStatistics() {
+		CounterStatistics statistics = new CounterStatistics();
+		statistics.addBytes(CounterStatistics.objectBytes(36) + CounterStatistics.arrayBytes(this.cutoff, 4)
+				+ CounterStatistics.arrayBytes(this.levels.length, 4));
+		for (Level level : this.levels) {
+			statistics.addBytes(CounterStatistics.objectBytes(28) + CounterStatistics.arrayBytes(level.cells.length, 4)
+					+ HeavyHitters.estimateBytes(level.fields, this.heavyHitters));
+		}
+		return statistics;
+	}
+
+	/*
+	 * Storage: the sketches are written as-is; the heavy hitters' index is rebuilt when reading
+	 */
+	@Override
+	public synchronized void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(this.order);
+		out.writeInt(this.width);
+		out.writeInt(this.depth);
+		out.writeInt(this.heavyHitters);
+		out.writeInt(this.cutoff);
+		out.writeInt(this.count);
+		out.writeInt(this.contextCount);
+		for (int i = 0; i < this.cutoff; i++) out.writeInt(this.atLeast[i]);
+		out.writeInt(this.nCounts.getOrder());
+		for (int n = 1; n <= this.nCounts.getOrder(); n++) {
+			for (int count = 1; count <= CountOfCounts.RANGE; count++) out.writeInt(this.nCounts.get(n, count));
+		}
+		for (Level level : this.levels) {
+			out.writeLong(level.mass);
+			for (int cell : level.cells) out.writeInt(cell);
+			if (level.heavy == null) continue;
+			out.writeInt(level.heavy.size);
+			// In heap order, which is then restored as is, so that a counter that is read evicts the same entries as this one
+			for (int i = 0; i < level.heavy.size; i++) {
+				int entry = level.heavy.heap[i];
+				out.writeLong(level.heavy.keys[entry]);
+				for (int field = 0; field < level.fields; field++) {
+					out.writeInt(level.heavy.cells[entry * level.fields + field]);
+					out.writeInt(level.heavy.base[entry * level.fields + field]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		this.order = in.readInt();
+		this.width = in.readInt();
+		this.depth = in.readInt();
+		this.heavyHitters = in.readInt();
+		this.cutoff = in.readInt();
+		this.count = in.readInt();
+		this.contextCount = in.readInt();
+		this.atLeast = new int[this.cutoff];
+		for (int i = 0; i < this.cutoff; i++) this.atLeast[i] = in.readInt();
+		this.nCounts = new CountOfCounts();
+		int rows = in.readInt();
+		for (int n = 1; n <= rows; n++) {
+			for (int count = 1; count <= CountOfCounts.RANGE; count++) this.nCounts.add(n, count, in.readInt());
+		}
+		this.levels = new Level[this.order];
+		for (int n = 1; n <= this.order; n++) {
+			Level level = new Level(getFields(n, this.order, this.cutoff), this.width, this.depth, this.heavyHitters);
+			level.mass = in.readLong();
+			for (int i = 0; i < level.cells.length; i++) level.cells[i] = in.readInt();
+			this.levels[n - 1] = level;
+			if (level.heavy == null) continue;
+			int size = in.readInt();
+			int[] values = new int[level.fields];
+			for (int entry = 0; entry < size; entry++) {
+				long key = in.readLong();
+				for (int field = 0; field < level.fields; field++) {
+					values[field] = in.readInt();
+					level.heavy.base[entry * level.fields + field] = in.readInt();
+				}
+				level.heavy.keys[entry] = key;
+				System.arraycopy(values, 0, level.heavy.cells, entry * level.fields, level.fields);
+				level.heavy.index[level.heavy.getSlot(key)] = entry + 1;
+				level.heavy.size++;
+			}
+			level.heavy.heapify();
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package slp.core.counting.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link ObjectInput} that reads one section {@code [offset, offset + length)} of a {@link FileChannel} through a large buffer,
+ * using positional reads so that several sections of the same channel can be read concurrently.
+ * Keeps a checksum of all bytes read, which {@link #verify(int)} checks against the expected checksum of the whole section.
+ * Counterpart of {@link ChannelOutput}; compressed sections are read one block ahead per core, inflating blocks in parallel.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+final class ChannelInput implements ObjectInput {
+
+	private final FileChannel channel;
+	private final long end;
+	private final ByteBuffer buffer;
+	private final CRC32 crc;
+	private final boolean compressed;
+	private final Deque<CompletableFuture<byte[]>> blocks;
+	private long position;
+
+	ChannelInput(FileChannel channel, long offset, long length) {
+		this(channel, offset, length, false);
+	}
+
+	ChannelInput(FileChannel channel, long offset, long length, boolean compressed) {
+		this.channel = channel;
+		this.position = offset;
+		this.end = offset + length;
+		// A compressed block is inflated into the buffer in one go, next to at most a few bytes left over from the previous block
+		this.buffer = compressed ? ByteBuffer.allocate(ChannelOutput.BUFFER + 16)
+				: ByteBuffer.allocateDirect((int) Math.max(16, Math.min(ChannelOutput.BUFFER, length)));
+		this.buffer.limit(0);
+		this.crc = new CRC32();
+		this.compressed = compressed;
+		this.blocks = new ArrayDeque<>();
+	}
+
+	/**
+	 * Makes sure at least {@code bytes} bytes (no more than the buffer's capacity) are available in the buffer
+	 */
+	private void require(int bytes) throws IOException {
+		if (this.buffer.remaining() >= bytes) return;
+		this.buffer.compact();
+		while (this.buffer.position() < bytes) {
+			if (!fill()) throw new EOFException("Unexpected end of section");
+		}
+		this.buffer.flip();
+	}
+
+	/**
+	 * Reads as many bytes of the section as fit into the buffer (which must be in write mode), updating the checksum
+	 *
+	 * @return Whether any bytes were read
+	 */
+	private boolean fill() throws IOException {
+		if (this.compressed) return fillBlock();
+		if (this.position >= this.end) return false;
+		int start = this.buffer.position();
+		this.buffer.limit((int) Math.min(this.buffer.capacity(), start + (this.end - this.position)));
+		int read = this.channel.read(this.buffer, this.position);
+		if (read <= 0) return false;
+		ByteBuffer fresh = this.buffer.duplicate();
+		fresh.position(start);
+		fresh.limit(start + read);
+		this.crc.update(fresh);
+		this.position += read;
+		return true;
+	}
+
+	/**
+	 * Puts the next inflated block into the buffer (which must be in write mode), after reading ahead and submitting
+	 * as many of the following blocks for inflation as there are cores
+	 *
+	 * @return Whether a block was read
+	 */
+	private boolean fillBlock() throws IOException {
+		while (this.blocks.size() < ChannelOutput.PARALLELISM && this.position < this.end) {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			readRaw(header.array(), 8);
+			int rawLength = header.getInt(0);
+			int length = header.getInt(4);
+			if (rawLength < 0 || rawLength > ChannelOutput.BUFFER || length < 0 || length > this.end - this.position) {
+				throw new IOException("Corrupt block in counter file");
+			}
+			byte[] block = new byte[length];
+			readRaw(block, length);
+			this.blocks.add(CompletableFuture.supplyAsync(() -> inflate(block, rawLength)));
+		}
+		if (this.blocks.isEmpty()) return false;
+		try {
+			byte[] raw = this.blocks.poll().join();
+			this.buffer.limit(this.buffer.capacity());
+			this.buffer.put(raw);
+			return true;
+		} catch (CompletionException e) {
+			throw new IOException("Corrupt block in counter file", e.getCause());
+		}
+	}
+
+	/**
+	 * Reads {@code length} bytes of the section as stored, updating the checksum
+	 */
+	private void readRaw(byte[] bytes, int length) throws IOException {
+		ByteBuffer wrapped = ByteBuffer.wrap(bytes, 0, length);
+		while (wrapped.hasRemaining()) {
+			int read = this.channel.read(wrapped, this.position);
+			if (read < 0) throw new EOFException("Unexpected end of section");
+			this.position += read;
+		}
+		this.crc.update(bytes, 0, length);
+	}
+
+	private static byte[] inflate(byte[] block, int rawLength) {
+		Inflater inflater = new Inflater();
+		inflater.setInput(block);
+		byte[] raw = new byte[rawLength];
+		try {
+			int length = 0;
+			while (length < rawLength && !inflater.finished()) {
+				int n = inflater.inflate(raw, length, rawLength - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				length += n;
+			}
+			if (length != rawLength) throw new CompletionException(new IOException("Block is shorter than expected"));
+		} catch (DataFormatException e) {
+			throw new CompletionException(e);
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+
+	/**
+	 * Consumes the rest of the section and checks the checksum of all its bytes
+	 *
+	 * @throws IOException if the section is corrupt
+	 */
+	void verify(int checksum) throws IOException {
+		this.buffer.clear();
+		while (fill()) this.buffer.clear();
+		this.buffer.limit(0);
+		if ((int) this.crc.getValue() != checksum) throw new IOException("Checksum mismatch, the counter file is corrupt");
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!this.buffer.hasRemaining() && this.position >= this.end && this.blocks.isEmpty()) return -1;
+		require(1);
+		return this.buffer.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!this.buffer.hasRemaining() && this.position >= this.end && this.blocks.isEmpty()) return -1;
+		require(1);
+		int n = Math.min(len, this.buffer.remaining());
+		this.buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			require(1);
+			int n = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && read() >= 0) skipped++;
+		return skipped;
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		return (int) skip(n);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.buffer.remaining();
+	}
+
+	/**
+	 * Does not close the underlying channel
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		require(1);
+		return this.buffer.get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return this.buffer.getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		require(2);
+		return this.buffer.getChar();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return this.buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return this.buffer.getLong();
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		require(4);
+		return this.buffer.getFloat();
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		require(8);
+		return this.buffer.getDouble();
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		throw new UnsupportedOperationException("Counter files do not store lines");
+	}
+
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+
+	@Override
+	public Object readObject() throws ClassNotFoundException, IOException {
+		byte[] bytes = new byte[readInt()];
+		readFully(bytes);
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+}
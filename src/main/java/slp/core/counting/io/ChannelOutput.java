@@ -0,0 +1,237 @@
+package slp.core.counting.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * {@link ObjectOutput} that writes straight into a large buffer, which is flushed to a {@link FileChannel} (at its current position) when full,
+ * so that counters' {@link java.io.Externalizable} formats can be written without the overhead of a general-purpose marshalling stream.
+ * Keeps a checksum of all bytes written. Primitives are written as specified by {@link java.io.DataOutput};
+ * objects are written as length-prefixed Java serialization, see {@link ChannelInput#readObject()}.
+ * <br /><br />
+ * If compressing, every full buffer is instead deflated into an independent block: {@code [raw length, compressed length, compressed bytes]}.
+ * Blocks are compressed in parallel (up to {@link #PARALLELISM} at a time) while writing continues, and written to the channel in order.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+final class ChannelOutput implements ObjectOutput {
+
+	static final int BUFFER = 1 << 20;
+	static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final CRC32 crc;
+	private final boolean compress;
+	private final Deque<CompletableFuture<byte[]>> blocks;
+	private long written;
+
+	ChannelOutput(FileChannel channel) {
+		this(channel, false);
+	}
+
+	ChannelOutput(FileChannel channel, boolean compress) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER);
+		this.crc = new CRC32();
+		this.compress = compress;
+		this.blocks = new ArrayDeque<>();
+	}
+
+	/**
+	 * Returns the number of bytes written so far, including those not yet flushed if not compressing;
+	 * if compressing, only valid after {@link #flush()}
+	 */
+	long getWritten() {
+		return this.written + (this.compress ? 0 : this.buffer.position());
+	}
+
+	/**
+	 * Returns the checksum of all bytes written so far; only valid after {@link #flush()}
+	 */
+	int getChecksum() {
+		return (int) this.crc.getValue();
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (this.buffer.remaining() < bytes) emptyBuffer();
+	}
+
+	/**
+	 * Writes the buffer to the channel, or submits it to be compressed if compressing
+	 */
+	private void emptyBuffer() throws IOException {
+		this.buffer.flip();
+		if (!this.compress) {
+			this.crc.update(this.buffer.duplicate());
+			while (this.buffer.hasRemaining()) this.written += this.channel.write(this.buffer);
+		}
+		else if (this.buffer.hasRemaining()) {
+			byte[] raw = new byte[this.buffer.remaining()];
+			this.buffer.get(raw);
+			this.blocks.add(CompletableFuture.supplyAsync(() -> deflate(raw)));
+			// Bound the number of blocks in flight, and so the memory they hold
+			while (this.blocks.size() > PARALLELISM) writeBlock();
+		}
+		this.buffer.clear();
+	}
+
+	private static byte[] deflate(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(raw);
+		deflater.finish();
+		// Leave room for the block header up front, and for incompressible input
+		byte[] block = new byte[8 + raw.length + raw.length/1000 + 64];
+		int length = 8;
+		while (!deflater.finished()) {
+			if (length == block.length) block = Arrays.copyOf(block, 2*block.length);
+			length += deflater.deflate(block, length, block.length - length);
+		}
+		deflater.end();
+		ByteBuffer.wrap(block).putInt(raw.length).putInt(length - 8);
+		return Arrays.copyOf(block, length);
+	}
+
+	private void writeBlock() throws IOException {
+		byte[] block = this.blocks.poll().join();
+		this.crc.update(block, 0, block.length);
+		ByteBuffer wrapped = ByteBuffer.wrap(block);
+		while (wrapped.hasRemaining()) this.written += this.channel.write(wrapped);
+	}
+
+	/**
+	 * Writes all bytes written so far to the channel, waiting for any blocks still being compressed
+	 */
+	@Override
+	public void flush() throws IOException {
+		emptyBuffer();
+		while (!this.blocks.isEmpty()) writeBlock();
+	}
+
+	/**
+	 * Flushes, but does not close the underlying channel
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensure(1);
+		this.buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len <= this.buffer.capacity()) {
+			ensure(len);
+			this.buffer.put(b, off, len);
+		}
+		else if (this.compress) {
+			while (len > 0) {
+				ensure(1);
+				int n = Math.min(len, this.buffer.remaining());
+				this.buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+		else {
+			emptyBuffer();
+			ByteBuffer wrapped = ByteBuffer.wrap(b, off, len);
+			this.crc.update(wrapped.duplicate());
+			while (wrapped.hasRemaining()) this.written += this.channel.write(wrapped);
+		}
+	}
+
+	@Override
+	public void writeBoolean(boolean v) throws IOException {
+		write(v ? 1 : 0);
+	}
+
+	@Override
+	public void writeByte(int v) throws IOException {
+		write(v);
+	}
+
+	@Override
+	public void writeShort(int v) throws IOException {
+		ensure(2);
+		this.buffer.putShort((short) v);
+	}
+
+	@Override
+	public void writeChar(int v) throws IOException {
+		ensure(2);
+		this.buffer.putChar((char) v);
+	}
+
+	@Override
+	public void writeInt(int v) throws IOException {
+		ensure(4);
+		this.buffer.putInt(v);
+	}
+
+	@Override
+	public void writeLong(long v) throws IOException {
+		ensure(8);
+		this.buffer.putLong(v);
+	}
+
+	@Override
+	public void writeFloat(float v) throws IOException {
+		ensure(4);
+		this.buffer.putFloat(v);
+	}
+
+	@Override
+	public void writeDouble(double v) throws IOException {
+		ensure(8);
+		this.buffer.putDouble(v);
+	}
+
+	@Override
+	public void writeBytes(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) write(s.charAt(i));
+	}
+
+	@Override
+	public void writeChars(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) writeChar(s.charAt(i));
+	}
+
+	@Override
+	public void writeUTF(String s) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeUTF(s);
+		write(bytes.toByteArray());
+	}
+
+	@Override
+	public void writeObject(Object obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(obj);
+		}
+		writeInt(bytes.size());
+		write(bytes.toByteArray());
+	}
+}
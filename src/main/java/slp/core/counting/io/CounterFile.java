@@ -0,0 +1,395 @@
+package slp.core.counting.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+import slp.core.counting.Counter;
+import slp.core.counting.giga.GigaCounter;
+import slp.core.counting.giga.ShardFunction;
+import slp.core.counting.giga.SpillingCounter;
+import slp.core.counting.giga.VirtualCounter;
+import slp.core.counting.trie.AbstractTrie;
+import slp.core.counting.trie.FrozenTrieCounter;
+import slp.core.counting.trie.MapTrieCounter;
+
+/**
+ * Native, versioned binary file format for counters, written and read through {@link FileChannel}s with large buffers
+ * rather than a general-purpose marshalling stream. A file consists of a header followed by one or more sections:
+ * <ul>
+ * <li>The header holds a magic number, the format version, the order (longest sequence length) and vocabulary size (one more than the
+ * largest token at the root) of the counter where known, the counter's type, whether sections are compressed, and for each section its offset,
+ * length and CRC32 checksum (of the section as stored).
+ * The header ends with a checksum of its own.</li>
+ * <li>Most counters are stored in a single section in their own {@link java.io.Externalizable} format.
+ * A {@link VirtualCounter} instead stores every shard in a separate section (along with its {@link ShardFunction} in the header),
+ * so that shards are read in parallel. {@link GigaCounter}s and {@link SpillingCounter}s are stored as the {@link VirtualCounter}
+ * they resolve to, and are read back as such.</li>
+ * </ul>
+ * Every section's checksum is verified while reading it, so corrupt files are rejected rather than silently read.
+ * <br /><br />
+ * Sections can optionally be compressed, as a sequence of independently deflated blocks (see {@link ChannelOutput}),
+ * which are compressed and inflated in parallel. This typically shrinks counter files several-fold, which pays off
+ * when they are copied around or read from slow (e.g. network-mounted) storage.
+ * <br /><br />
+ * Uncompressed files holding a {@link FrozenTrieCounter} can instead be memory-mapped with {@link #map(File)}, which makes them available almost instantly
+ * regardless of their size; since their sections are not read up front, only the header's checksum is verified in that case.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public final class CounterFile {
+
+	private static final int MAGIC = 0x534C5043; // "SLPC"
+	private static final int VERSION = 2;
+
+	private static final int SINGLE = 0;
+	private static final int SHARDED = 1;
+
+	private static final int UNCOMPRESSED = 0;
+	private static final int DEFLATED = 1;
+
+	private CounterFile() {
+	}
+
+	/**
+	 * The metadata stored at the start of a counter file
+	 */
+	public static final class Header {
+		private final int version;
+		private final int layout;
+		private final int compression;
+		private final int order;
+		private final int vocabularySize;
+		private final String counterType;
+		private final byte[] shardFunction;
+		private final long[] offsets;
+		private final long[] lengths;
+		private final int[] checksums;
+
+		private Header(int version, int layout, int compression, int order, int vocabularySize, String counterType, byte[] shardFunction, int sections) {
+			this.version = version;
+			this.layout = layout;
+			this.compression = compression;
+			this.order = order;
+			this.vocabularySize = vocabularySize;
+			this.counterType = counterType;
+			this.shardFunction = shardFunction;
+			this.offsets = new long[sections];
+			this.lengths = new long[sections];
+			this.checksums = new int[sections];
+		}
+
+		public int getVersion() {
+			return this.version;
+		}
+
+		public boolean isCompressed() {
+			return this.compression != UNCOMPRESSED;
+		}
+
+		/**
+		 * Returns the longest sequence length stored in the counter, or 0 if unknown
+		 */
+		public int getOrder() {
+			return this.order;
+		}
+
+		/**
+		 * Returns one more than the largest token the counter stores at its root (i.e. the smallest vocabulary it fits), or 0 if unknown
+		 */
+		public int getVocabularySize() {
+			return this.vocabularySize;
+		}
+
+		/**
+		 * Returns the name of the class of the stored counter
+		 */
+		public String getCounterType() {
+			return this.counterType;
+		}
+
+		public int getSections() {
+			return this.offsets.length;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(this.version);
+			out.writeInt(getLength());
+			out.writeInt(this.layout);
+			if (this.version >= 2) out.writeInt(this.compression);
+			out.writeInt(this.order);
+			out.writeInt(this.vocabularySize);
+			out.writeUTF(this.counterType);
+			out.writeInt(this.shardFunction.length);
+			out.write(this.shardFunction);
+			out.writeInt(getSections());
+			for (int i = 0; i < getSections(); i++) {
+				out.writeLong(this.offsets[i]);
+				out.writeLong(this.lengths[i]);
+				out.writeInt(this.checksums[i]);
+			}
+		}
+
+		/**
+		 * Returns the length in bytes of this header, including its trailing checksum
+		 */
+		private int getLength() {
+			return (this.version >= 2 ? 7 : 6)*4 + 2 + utfLength(this.counterType) + 4 + this.shardFunction.length + 4 + getSections()*20 + 4;
+		}
+
+		private byte[] toByteArray() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(getLength());
+			DataOutputStream out = new DataOutputStream(bytes);
+			write(out);
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeInt((int) crc.getValue());
+			return bytes.toByteArray();
+		}
+
+		private static Header read(FileChannel channel) throws IOException {
+			ByteBuffer start = ByteBuffer.allocate(12);
+			readFully(channel, start, 0);
+			if (start.getInt(0) != MAGIC) throw new IOException("Not a counter file");
+			int version = start.getInt(4);
+			if (version > VERSION) throw new IOException("Unsupported counter file version: " + version);
+			int length = start.getInt(8);
+			if (length < 12 || length > channel.size()) throw new IOException("Corrupt counter file header");
+			ByteBuffer bytes = ByteBuffer.allocate(length);
+			readFully(channel, bytes, 0);
+			CRC32 crc = new CRC32();
+			crc.update(bytes.array(), 0, length - 4);
+			if ((int) crc.getValue() != bytes.getInt(length - 4)) throw new IOException("Checksum mismatch, the counter file header is corrupt");
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array(), 12, length - 16));
+			int layout = in.readInt();
+			int compression = version >= 2 ? in.readInt() : UNCOMPRESSED;
+			if (compression != UNCOMPRESSED && compression != DEFLATED) throw new IOException("Unsupported counter file compression: " + compression);
+			int order = in.readInt();
+			int vocabularySize = in.readInt();
+			String counterType = in.readUTF();
+			byte[] shardFunction = new byte[in.readInt()];
+			in.readFully(shardFunction);
+			Header header = new Header(version, layout, compression, order, vocabularySize, counterType, shardFunction, in.readInt());
+			for (int i = 0; i < header.getSections(); i++) {
+				header.offsets[i] = in.readLong();
+				header.lengths[i] = in.readLong();
+				header.checksums[i] = in.readInt();
+			}
+			return header;
+		}
+	}
+
+	/**
+	 * Returns whether {@code file} starts like a counter file in this format
+	 */
+	public static boolean isCounterFile(File file) {
+		if (!file.isFile() || file.length() < 12) return false;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer start = ByteBuffer.allocate(4);
+			readFully(channel, start, 0);
+			return start.getInt(0) == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads (and validates) only the header of a counter file
+	 */
+	public static Header readHeader(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return Header.read(channel);
+		}
+	}
+
+	public static void write(Counter counter, File file) throws IOException {
+		write(counter, file, false);
+	}
+
+	/**
+	 * Writes {@code counter} to {@code file}, optionally compressing its sections
+	 */
+	public static void write(Counter counter, File file, boolean compress) throws IOException {
+		int compression = compress ? DEFLATED : UNCOMPRESSED;
+		if (counter instanceof GigaCounter) counter = ((GigaCounter) counter).getCounter();
+		else if (counter instanceof SpillingCounter) counter = ((SpillingCounter) counter).getCounter();
+		List<Counter> sections = new ArrayList<>();
+		Header header;
+		if (counter instanceof VirtualCounter) {
+			VirtualCounter virtual = (VirtualCounter) counter;
+			int order = 0, vocabularySize = 0;
+			for (int i = 0; i < virtual.getShardCount(); i++) {
+				AbstractTrie shard = virtual.getShard(i);
+				sections.add(shard);
+				order = Math.max(order, shard.getCountOfCounts().getOrder());
+				vocabularySize = Math.max(vocabularySize, getVocabularySize(shard));
+			}
+			header = new Header(VERSION, SHARDED, compression, order, vocabularySize, VirtualCounter.class.getName(),
+					serialize(virtual.getShardFunction()), sections.size());
+		}
+		else {
+			sections.add(counter);
+			int order = 0, vocabularySize = 0;
+			if (counter instanceof AbstractTrie) {
+				order = ((AbstractTrie) counter).getCountOfCounts().getOrder();
+				vocabularySize = getVocabularySize((AbstractTrie) counter);
+			}
+			header = new Header(VERSION, SINGLE, compression, order, vocabularySize, counter.getClass().getName(), new byte[0], 1);
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			// Sections follow the header, which is written last, once their offsets and checksums are known
+			long offset = header.getLength();
+			channel.position(offset);
+			for (int i = 0; i < sections.size(); i++) {
+				ChannelOutput out = new ChannelOutput(channel, compress);
+				sections.get(i).writeExternal(out);
+				out.flush();
+				header.offsets[i] = offset;
+				header.lengths[i] = out.getWritten();
+				header.checksums[i] = out.getChecksum();
+				offset += out.getWritten();
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(header.toByteArray());
+			long position = 0;
+			while (bytes.hasRemaining()) position += channel.write(bytes, position);
+		}
+	}
+
+	public static Counter read(File file) throws IOException, ClassNotFoundException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Header header = Header.read(channel);
+			for (int i = 0; i < header.getSections(); i++) {
+				if (header.offsets[i] < header.getLength() || header.offsets[i] + header.lengths[i] > channel.size()) {
+					throw new IOException("Counter file is truncated or corrupt");
+				}
+			}
+			if (header.layout == SHARDED) {
+				ShardFunction shardFunction = (ShardFunction) deserialize(header.shardFunction);
+				// Shards are independent sections, so they are read in parallel
+				MapTrieCounter[] shards = new MapTrieCounter[header.getSections()];
+				try {
+					IntStream.range(0, shards.length).parallel().forEach(i -> {
+						try {
+							MapTrieCounter shard = new MapTrieCounter(0);
+							readSection(channel, header, i, shard);
+							shards[i] = shard;
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						} catch (ClassNotFoundException e) {
+							throw new UncheckedIOException(new IOException(e));
+						}
+					});
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+				return new VirtualCounter(new ArrayList<>(Arrays.asList(shards)), shardFunction);
+			}
+			else {
+				Counter counter;
+				try {
+					counter = (Counter) Class.forName(header.counterType).getDeclaredConstructor().newInstance();
+				} catch (ReflectiveOperationException e) {
+					throw new IOException("Cannot instantiate counter of type " + header.counterType, e);
+				}
+				readSection(channel, header, 0, counter);
+				return counter;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the counter stored in {@code file} can be memory-mapped with {@link #map(File)}
+	 */
+	public static boolean isMappable(File file) {
+		try {
+			if (!isCounterFile(file)) return false;
+			Header header = readHeader(file);
+			return header.getCounterType().equals(FrozenTrieCounter.class.getName()) && !header.isCompressed();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Memory-maps the frozen counter stored in {@code file} rather than reading it, see {@link FrozenTrieCounter#map(FileChannel, long)}.
+	 *
+	 * @throws IOException if the file does not hold a frozen counter, or is corrupt
+	 */
+	public static FrozenTrieCounter map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Header header = Header.read(channel);
+			if (!header.counterType.equals(FrozenTrieCounter.class.getName()) || header.getSections() != 1) {
+				throw new IOException("Only frozen counters can be mapped, found: " + header.counterType);
+			}
+			if (header.isCompressed()) throw new IOException("Compressed counters cannot be mapped");
+			if (header.offsets[0] < header.getLength() || header.offsets[0] + header.lengths[0] > channel.size()) {
+				throw new IOException("Counter file is truncated or corrupt");
+			}
+			return FrozenTrieCounter.map(channel, header.offsets[0]);
+		}
+	}
+
+	private static void readSection(FileChannel channel, Header header, int section, Counter counter) throws IOException, ClassNotFoundException {
+		ChannelInput in = new ChannelInput(channel, header.offsets[section], header.lengths[section], header.isCompressed());
+		try {
+			counter.readExternal(in);
+		} catch (RuntimeException e) {
+			// Corrupt data tends to surface as malformed counts or lengths before the checksum can be verified
+			throw new IOException("Counter file is corrupt", e);
+		}
+		in.verify(header.checksums[section]);
+	}
+
+	private static int getVocabularySize(AbstractTrie trie) {
+		return trie.getSuccessors().stream().mapToInt(i -> i + 1).max().orElse(0);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) throw new IOException("Unexpected end of counter file");
+		}
+	}
+
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+		}
+		return length;
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(o);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		}
+	}
+}
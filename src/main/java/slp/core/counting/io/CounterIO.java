@@ -2,10 +2,8 @@ package slp.core.counting.io;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
-import org.jboss.marshalling.Marshaller;
 import org.jboss.marshalling.MarshallerFactory;
 import org.jboss.marshalling.Marshalling;
 import org.jboss.marshalling.MarshallingConfiguration;
@@ -13,18 +11,42 @@ import org.jboss.marshalling.Unmarshaller;
 
 import slp.core.counting.Counter;
 
+/**
+ * Reads and writes counters. Counters are written in the native {@link CounterFile} format;
+ * counters written by earlier versions with JBoss Marshalling are still read.
+ * Frozen counters are memory-mapped rather than read, so they are available almost immediately.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
 public class CounterIO {
 
-	private static final MarshallerFactory marshallerFactory = Marshalling.getProvidedMarshallerFactory("river");
-	private static final MarshallingConfiguration configuration = new MarshallingConfiguration();
-    static {
-    	configuration.setVersion(3);
-    }
-    
+	/**
+	 * Only loaded when reading a counter in the legacy format, since JBoss Marshalling needs reflective access
+	 * to JDK internals that newer JVMs deny by default
+	 */
+	private static final class Legacy {
+		private static final MarshallerFactory marshallerFactory = Marshalling.getProvidedMarshallerFactory("river");
+		private static final MarshallingConfiguration configuration = new MarshallingConfiguration();
+	    static {
+	    	configuration.setVersion(3);
+	    }
+	}
+
 	public static Counter readCounter(File file) {
 		System.out.println("Reading counter from: " + file);
+		if (CounterFile.isCounterFile(file)) {
+			try {
+				if (CounterFile.isMappable(file)) return CounterFile.map(file);
+				return CounterFile.read(file);
+			} catch (IOException | ClassNotFoundException e) {
+				System.err.print("Reading counter failed: ");
+				e.printStackTrace();
+				return null;
+			}
+		}
         try (FileInputStream is = new FileInputStream(file)) {
-        	final Unmarshaller unmarshaller = marshallerFactory.createUnmarshaller(configuration);
+        	final Unmarshaller unmarshaller = Legacy.marshallerFactory.createUnmarshaller(Legacy.configuration);
             unmarshaller.start(Marshalling.createByteInput(is));
             Counter counter = (Counter) unmarshaller.readObject();
             unmarshaller.finish();
@@ -37,17 +59,24 @@ public class CounterIO {
 		return null;
 	}
 
-	public static void writeCounter(Counter counter, File file) {
+	public static boolean writeCounter(Counter counter, File file) {
+		return writeCounter(counter, file, false);
+	}
+
+	/**
+	 * Writes {@code counter} to {@code file}, compressing it if {@code compress} is set; see {@link CounterFile}
+	 *
+	 * @return Whether the counter was written successfully
+	 */
+	public static boolean writeCounter(Counter counter, File file, boolean compress) {
 		System.out.println("Writing counter to: " + file);
-		try (FileOutputStream os = new FileOutputStream(file)) {
-        	final Marshaller marshaller = marshallerFactory.createMarshaller(configuration);
-            marshaller.start(Marshalling.createByteOutput(os));
-            marshaller.writeObject(counter);
-            marshaller.finish();
-            os.close();
-        } catch (IOException e) {
-            System.err.print("Marshalling failed: ");
-            e.printStackTrace();
-        }
+		try {
+			CounterFile.write(counter, file, compress);
+			return true;
+		} catch (IOException e) {
+			System.err.print("Writing counter failed: ");
+			e.printStackTrace();
+			return false;
+		}
 	}
 }
@@ -7,20 +7,36 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.IntPredicate;
 
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+
+import slp.core.counting.CountOfCounts;
 import slp.core.counting.Counter;
-import slp.core.modeling.runners.ModelRunner;
+import slp.core.counting.CounterStatistics;
+import slp.core.counting.PruneCondition;
+import slp.core.util.Util;
 
 public abstract class AbstractTrie implements Counter {
 
+	// Fixed to the value of earlier releases, which still reads counters written by them
+	private static final long serialVersionUID = 2237817864562073703L;
+
 	
 	public static int COUNT_OF_COUNTS_CUTOFF = 3;
-	public volatile static int[][] nCounts = new int[ModelRunner.DEFAULT_NGRAM_ORDER][4];
 	
+	private static final int[] EMPTY = new int[0];
+	
+	// Own count, context count, then the number of successors seen once, twice, ... up to COUNT_OF_COUNTS_CUTOFF times;
+	// trailing zero slots are not stored
 	int[] counts;
+	// Only set on root nodes; created lazily (and rebuilt from the trie if it was read from file)
+	private volatile CountOfCounts nCounts;
 
 	public AbstractTrie() {
-		this.counts = new int[2 + COUNT_OF_COUNTS_CUTOFF];
+		this.counts = new int[2];
 	}
 	
 	/**
@@ -33,13 +49,78 @@ public abstract class AbstractTrie implements Counter {
 	public abstract List<Integer> getSuccessors();
 	public abstract Object getSuccessor(int key);
 
-	abstract List<Integer> getTopSuccessorsInternal(int limit);
+	/**
+	 * Visits every successor of this node in unspecified order.
+	 * Successors are either {@link AbstractTrie}s or {@code int[]}s that store a count followed by the remainder of a unique sequence.
+	 */
+	public abstract void forEachSuccessor(SuccessorVisitor visitor);
+
+	@FunctionalInterface
+	public interface SuccessorVisitor {
+		void visit(int key, Object successor);
+	}
+
+	/**
+	 * Writes the most frequent successors of this node, in descending order of count (ties broken by ascending key), to {@code successors},
+	 * using its length as limit. High-fanout nodes that support it answer small limits from a {@link TopSuccessors} index,
+	 * which is kept current as counts change; other nodes select from all successors.
+	 * 
+	 * @return The number of successors written
+	 */
+	final int getTopSuccessorsInternal(int[] successors) {
+		if (!indexesTopSuccessors() || successors.length > TopSuccessors.SIZE) return selectTopSuccessors(successors);
+		synchronized (this) {
+			TopSuccessors index = getTopIndex();
+			if (index == null) {
+				int[] keys = new int[TopSuccessors.SIZE];
+				TopSelector selector = new TopSelector(keys);
+				forEachSuccessor(selector);
+				if (selector.visited < TopSuccessors.FANOUT) {
+					int end = Math.min(selector.found, successors.length);
+					System.arraycopy(keys, 0, successors, 0, end);
+					return end;
+				}
+				index = new TopSuccessors(keys, selector.topCounts, selector.found);
+				setTopIndex(index);
+			}
+			return index.copyTo(successors);
+		}
+	}
+
+	/**
+	 * Whether this type of node may keep a {@link TopSuccessors} index, which is worthwhile for node types that can have many successors.
+	 * Such nodes store the index through {@link #getTopIndex()} and {@link #setTopIndex(TopSuccessors)}.
+	 */
+	boolean indexesTopSuccessors() {
+		return false;
+	}
+
+	TopSuccessors getTopIndex() {
+		return null;
+	}
+
+	void setTopIndex(TopSuccessors index) {}
 	
 	abstract void putSuccessor(int key, Object o);
 	abstract void removeSuccessor(int key);
 
-	public abstract void readExternal(ObjectInput in) throws IOException, ClassNotFoundException;
-	public abstract void writeExternal(ObjectOutput out) throws IOException;
+	/**
+	 * Invoked on a (non-root) node by its parent just before {@code key} is looked up or added in this node.
+	 * Returns either this node or a replacement in a layout better suited to the node's fanout,
+	 * which then takes this node's place in the parent. The default keeps this node as is.
+	 */
+	AbstractTrie adapt(int key) {
+		return this;
+	}
+
+	/**
+	 * Moves this node's counts and successors to {@code target}, for use in {@link #adapt(int)}.
+	 */
+	final AbstractTrie moveTo(AbstractTrie target) {
+		target.counts = this.counts;
+		forEachSuccessor(target::putSuccessor);
+		return target;
+	}
 
 	/*
 	 * Getters and Setters
@@ -49,137 +130,254 @@ public abstract class AbstractTrie implements Counter {
 		return this.counts[0];
 	}
 	
-	final int getCount(Object successor) {
+	public final int getCount(Object successor) {
 		if (successor == null) return 0;
 		else if (successor instanceof AbstractTrie) return ((AbstractTrie) successor).getCount();
 		else return ((int[]) successor)[0];
 	}
 	
+	/**
+	 * Returns the count of this node's successor at {@code key}, or 0 if it has none.
+	 * Nodes that keep their successors' counts in a primitive array (see {@link DenseTrieCounter}) read it from there instead.
+	 */
+	int getCountOf(int key) {
+		return getCount(getSuccessor(key));
+	}
+
+	/**
+	 * Invoked whenever the count of the successor at {@code key} changes to {@code count} (0 if it was removed) other than by
+	 * {@link #putSuccessor(int, Object)}, i.e. when a successor's count is updated in place. The default does nothing.
+	 */
+	void successorCountChanged(int key, int count) {}
+
 	public final int getContextCount() {
 		return this.counts[1];
 	}
 
+	@Override
+	public Counter freeze() {
+		return FrozenTrieCounter.of(Collections.singletonList(this));
+	}
+
 	@Override
 	public final int getCountofCount(int n, int count) {
-		int minN = Math.min(n, nCounts.length) - 1;
-		int minC = Math.min(count, nCounts[minN].length) - 1;
-		return nCounts[minN][minC];
+		return getCountOfCounts().get(n, count);
+	}
+
+	/**
+	 * Returns the count-of-counts table of the trie rooted at this node, building it first if necessary.
+	 */
+	public final CountOfCounts getCountOfCounts() {
+		CountOfCounts nCounts = this.nCounts;
+		if (nCounts == null) {
+			synchronized (this) {
+				nCounts = this.nCounts;
+				if (nCounts == null) {
+					nCounts = new CountOfCounts();
+					addCountOfCounts(nCounts, 0);
+					this.nCounts = nCounts;
+				}
+			}
+		}
+		return nCounts;
+	}
+
+	/**
+	 * Lets this root share a count-of-counts table with other roots, as the shards of a {@link slp.core.counting.giga.VirtualCounter} do.
+	 * The counts currently stored in this trie are added to that table.
+	 */
+	public final synchronized void setCountOfCounts(CountOfCounts nCounts) {
+		addCountOfCounts(nCounts, 0);
+		this.nCounts = nCounts;
+	}
+
+	private void addCountOfCounts(CountOfCounts nCounts, int depth) {
+		forEachSuccessor((key, successor) -> {
+			if (successor instanceof AbstractTrie) {
+				AbstractTrie next = (AbstractTrie) successor;
+				nCounts.add(depth + 1, next.getCount());
+				next.addCountOfCounts(nCounts, depth + 1);
+			}
+			else {
+				int[] chain = (int[]) successor;
+				for (int i = 0; i < chain.length; i++) nCounts.add(depth + 1 + i, chain[0]);
+			}
+		});
 	}
 	
 	@Override
 	public final long[] getCounts(List<Integer> indices) {
-		if (indices.isEmpty()) return new long[] { getCount(), getCount() };
-		return getCounts(indices, 0);
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
 	}
 
-	private final long[] getCounts(List<Integer> indices, int index) {
-		Integer next = indices.get(index);
-		Object succ = this.getSuccessor(next);
-		boolean nearLast = index == indices.size() - 1;
+	@Override
+	public final void getCounts(int[] tokens, int from, int to, long[] counts) {
+		if (from == to) {
+			counts[0] = getCount();
+			counts[1] = getCount();
+		}
+		else findCounts(tokens, from, to, counts);
+	}
+
+	private final void findCounts(int[] tokens, int index, int to, long[] counts) {
+		if (index == to - 1) {
+			counts[0] = getCountOf(tokens[index]);
+			counts[1] = this.counts[1];
+			return;
+		}
+		Object succ = this.getSuccessor(tokens[index]);
 		// Recurse if applicable
 		if (succ != null && (succ instanceof AbstractTrie)) {
-			AbstractTrie successor = (AbstractTrie) succ;
-			if (!nearLast) return successor.getCounts(indices, index + 1);
-			else return new long[] { successor.getCount(), this.counts[1] };
+			((AbstractTrie) succ).findCounts(tokens, index + 1, to, counts);
+			return;
 		}
 		// Else, return counts from array if present
-		long[] counts = new long[2];
-		if (nearLast) counts[1] = this.counts[1];
+		counts[0] = 0;
+		counts[1] = 0;
 		if (succ != null) {
 			int[] successor = (int[]) succ;
-			if (ArrayStorage.checkPartialSequence(indices, index, successor)) {
+			if (ArrayStorage.checkPartialSequence(tokens, index, to, successor)) {
 				counts[0] = successor[0];
-				if (!nearLast) counts[1] = counts[0];
+				counts[1] = counts[0];
 			}
-			else if (!nearLast && successor.length >= indices.size() - index
-					&& ArrayStorage.checkPartialSequence(indices.subList(0, indices.size() - 1), index, successor)) {
+			else if (successor.length >= to - index
+					&& ArrayStorage.checkPartialSequence(tokens, index, to - 1, successor)) {
 				counts[1] = successor[0];
 			}
 		}
-		return counts;
 	}
 	
 	@Override
 	public final int[] getDistinctCounts(int range, List<Integer> indices) {
-		return getDistinctCounts(range, indices, 0);
+		int[] distinctCounts = new int[range];
+		getDistinctCounts(Util.toArray(indices), 0, indices.size(), distinctCounts);
+		return distinctCounts;
 	}
 
-	private final int[] getDistinctCounts(int range, List<Integer> indices, int index) {
-		if (index < indices.size()) {
-			int next = indices.get(index);
-			Object succ = getSuccessor(next);
-			if (succ == null) return new int[range];
+	@Override
+	public final void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		findDistinctCounts(tokens, from, to, distinctCounts);
+	}
+
+	private final void findDistinctCounts(int[] tokens, int index, int to, int[] distinctCounts) {
+		int range = distinctCounts.length;
+		if (index < to) {
+			Object succ = getSuccessor(tokens[index]);
+			if (succ == null) return;
 			if (succ instanceof AbstractTrie) {
 				AbstractTrie successor = (AbstractTrie) succ;
-				return successor.getDistinctCounts(range, indices, index + 1);
+				successor.findDistinctCounts(tokens, index + 1, to, distinctCounts);
 			}
 			else {
 				int[] successor = (int[]) succ;
-				int[] distinctCounts = new int[range];
-				if (ArrayStorage.checkPartialSequence(indices, index, successor)
-						&& !ArrayStorage.checkExactSequence(indices, index, successor)) {
+				if (ArrayStorage.checkPartialSequence(tokens, index, to, successor)
+						&& !ArrayStorage.checkExactSequence(tokens, index, to, successor)) {
 					distinctCounts[Math.min(range - 1, successor[0] - 1)] = 1;
 				}
-				return distinctCounts;
 			}
-		} else {
-			int[] distinctCounts = new int[range];
-			int totalDistinct = this.getSuccessorCount();
-			for (int i = 2; i < this.counts.length - 1 && i - 1 < range; i++) {
-				int countOfCountsI = this.counts[i];
-				distinctCounts[i - 2] = countOfCountsI;
-				totalDistinct -= countOfCountsI;
+		}
+		else writeDistinctCounts(distinctCounts);
+	}
+
+	private final void writeDistinctCounts(int[] distinctCounts) {
+		int range = distinctCounts.length;
+		int totalDistinct = this.getSuccessorCount();
+		for (int i = 2; i < 1 + COUNT_OF_COUNTS_CUTOFF && i - 1 < range; i++) {
+			int countOfCountsI = i < this.counts.length ? this.counts[i] : 0;
+			distinctCounts[i - 2] = countOfCountsI;
+			totalDistinct -= countOfCountsI;
+		}
+		distinctCounts[range - 1] = totalDistinct;
+	}
+
+	@Override
+	public final void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) {
+			getCounts(tokens, from, to, counts);
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		// Descend to the context once, then read the count, context count and distinct counts off it
+		AbstractTrie node = this;
+		for (int index = from; index < to - 1; index++) {
+			Object succ = node.getSuccessor(tokens[index]);
+			if (succ == null) return;
+			else if (succ instanceof AbstractTrie) node = (AbstractTrie) succ;
+			else {
+				// The context ends inside this chain; it has a successor only if the chain extends past it
+				int[] successor = (int[]) succ;
+				if (successor.length < to - index || !ArrayStorage.checkPartialSequence(tokens, index, to - 1, successor)) return;
+				counts[1] = successor[0];
+				if (successor[to - 1 - index] == tokens[to - 1]) counts[0] = successor[0];
+				if (distinctCounts.length > 0) distinctCounts[Math.min(distinctCounts.length - 1, successor[0] - 1)] = 1;
+				return;
 			}
-			distinctCounts[range - 1] = totalDistinct;
-			return distinctCounts;
 		}
+		counts[0] = node.getCountOf(tokens[to - 1]);
+		counts[1] = node.counts[1];
+		if (distinctCounts.length > 0) node.writeDistinctCounts(distinctCounts);
 	}
 
 	@Override
 	public final int getSuccessorCount() {
-		return Arrays.stream(this.counts).skip(2).sum();
+		int successors = 0;
+		for (int i = 2; i < this.counts.length; i++) successors += this.counts[i];
+		return successors;
 	}
 
 	@Override
 	public final int getSuccessorCount(List<Integer> indices) {
-		Object successor = getSuccessorNode(indices, 0);
-		if (successor == null) return 0;
-		else if (successor instanceof AbstractTrie) return ((AbstractTrie) successor).getSuccessorCount();
-		else return 1;
+		return getSuccessorCount(Util.toArray(indices), 0, indices.size());
 	}
-	
-	private final Object getSuccessorNode(List<Integer> indices, int index) {
-		if (index == indices.size()) return this;
-		int next = indices.get(index);
-		Object succ = getSuccessor(next);
-		if (succ == null) return null;
-		else if (succ instanceof AbstractTrie) {
-			AbstractTrie successor = (AbstractTrie) succ;
-			return successor.getSuccessorNode(indices, index + 1);
-		}
-		else {
-			int[] successor = (int[]) succ;
-			if (!ArrayStorage.checkPartialSequence(indices, index, successor)) return null;
-			int[] trueSucc = new int[1 + successor.length - (indices.size() - index)];
-			trueSucc[0] = successor[0];
-			for (int i = 1; i < trueSucc.length; i++) {
-				trueSucc[i] = successor[i + indices.size() - index - 1];
+
+	@Override
+	public final int getSuccessorCount(int[] tokens, int from, int to) {
+		AbstractTrie node = this;
+		for (int index = from; index < to; index++) {
+			Object succ = node.getSuccessor(tokens[index]);
+			if (succ == null) return 0;
+			else if (succ instanceof AbstractTrie) node = (AbstractTrie) succ;
+			else {
+				int[] successor = (int[]) succ;
+				if (!ArrayStorage.checkPartialSequence(tokens, index, to, successor)) return 0;
+				return successor.length > to - index ? 1 : 0;
 			}
-			return trueSucc;
 		}
+		return node.getSuccessorCount();
 	}
 
 	@Override
-	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
-		Object successor = getSuccessorNode(indices, 0);
-		if (successor == null) return new ArrayList<>();
-		else if (successor instanceof AbstractTrie) return ((AbstractTrie) successor).getTopSuccessorsInternal(limit);
-		else {
-			int[] succ = (int[]) successor;
-			List<Integer> successors = new ArrayList<>();
-			if (succ.length > 1) successors.add(succ[1]);
-			return successors;
+	public final List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		int[] tokens = Util.toArray(indices);
+		int[] successors = new int[Math.min(limit, getSuccessorCount(tokens, 0, tokens.length))];
+		int found = getTopSuccessors(tokens, 0, tokens.length, successors);
+		List<Integer> topSuccessors = new ArrayList<>(found);
+		for (int i = 0; i < found; i++) topSuccessors.add(successors[i]);
+		return topSuccessors;
+	}
+
+	@Override
+	public final int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		if (successors.length == 0) return 0;
+		AbstractTrie node = this;
+		for (int index = from; index < to; index++) {
+			Object succ = node.getSuccessor(tokens[index]);
+			if (succ == null) return 0;
+			else if (succ instanceof AbstractTrie) node = (AbstractTrie) succ;
+			else {
+				int[] successor = (int[]) succ;
+				if (!ArrayStorage.checkPartialSequence(tokens, index, to, successor)
+						|| successor.length <= to - index) return 0;
+				successors[0] = successor[to - index];
+				return 1;
+			}
 		}
+		return node.getTopSuccessorsInternal(successors);
 	}
 
 	/*
@@ -195,134 +393,628 @@ public abstract class AbstractTrie implements Counter {
 		update(indices, -1);
 	}
 
-	public final void updateCount(int adj) {
-		update(Collections.emptyList(), adj);
+	@Override
+	public final void count(int[] tokens, int from, int to) {
+		update(tokens, from, to, 1);
+	}
+
+	@Override
+	public final void unCount(int[] tokens, int from, int to) {
+		update(tokens, from, to, -1);
+	}
+
+	public final synchronized void updateCount(int adj) {
+		this.counts[0] += adj;
 	}
 
 	public final void update(List<Integer> indices, int adj) {
-		update(indices, 0, adj);
+		update(Util.toArray(indices), 0, indices.size(), adj);
+	}
+
+	public final void update(int[] tokens, int from, int to, int adj) {
+		update(tokens, from, from, to, adj, getCountOfCounts());
 	}
 	
-	private synchronized void update(List<Integer> indices, int index, int adj) {
-		if (index < indices.size()) {
-			int key = indices.get(index);
+	private synchronized void update(int[] tokens, int from, int index, int to, int adj, CountOfCounts nCounts) {
+		if (index < to) {
+			int key = tokens[index];
 			Object successor = getSuccessor(key);
-			if (successor != null) this.updateSuccessor(indices, index, adj, successor);
-			else this.addArray(indices, index, adj);
+			if (successor != null) this.updateSuccessor(tokens, from, index, to, adj, successor, nCounts);
+			else this.addArray(tokens, from, index, to, adj, nCounts);
 		}
 		this.counts[0] += adj;
-		if (index != indices.size()) this.counts[1] += adj;
-		updateNCounts(index, this.getCount(), adj);
+		if (index != to) this.counts[1] += adj;
+		nCounts.update(index - from, this.getCount(), adj);
 	}
 
-	private void updateSuccessor(List<Integer> indices, int index, int adj, Object succ) {
-		if (succ instanceof AbstractTrie) updateTrie(indices, index, adj, succ);
-		else updateArray(indices, index, adj, succ);
+	private void updateSuccessor(int[] tokens, int from, int index, int to, int adj, Object succ, CountOfCounts nCounts) {
+		if (succ instanceof AbstractTrie) updateTrie(tokens, from, index, to, adj, succ, nCounts);
+		else updateArray(tokens, from, index, to, adj, succ, nCounts);
 	}
 
-	private void updateTrie(List<Integer> indices, int index, int adj, Object succ) {
+	private void updateTrie(int[] tokens, int from, int index, int to, int adj, Object succ, CountOfCounts nCounts) {
 		AbstractTrie next = (AbstractTrie) succ;
-		if (next instanceof ArrayTrieCounter) {
-			ArrayTrieCounter arrayCounter = (ArrayTrieCounter) next;
-			if (arrayCounter.indices.length > 10) {
-				next = promoteArrayToMap(indices, index, arrayCounter);
+		if (index + 1 < to) {
+			AbstractTrie adapted = next.adapt(tokens[index + 1]);
+			if (adapted != next) {
+				this.putSuccessor(tokens[index], adapted);
+				next = adapted;
 			}
 		}
-		next.update(indices, index + 1, adj);
-		updateCoCs(next.getCount(), adj);
+		next.update(tokens, from, index + 1, to, adj, nCounts);
+		successorUpdated(tokens[index], next.getCount(), adj);
 		if (next.getCount() == 0) {
-			this.removeSuccessor((int) indices.get(index));
+			this.removeSuccessor(tokens[index]);
 		}
 	}
 
-	private void updateArray(List<Integer> indices, int index, int adj, Object succ) {
+	private void updateArray(int[] tokens, int from, int index, int to, int adj, Object succ, CountOfCounts nCounts) {
 		int[] successor = (int[]) succ;
-		boolean valid = ArrayStorage.checkExactSequence(indices, index, successor);
-		if (valid) updateArrayCount(indices, index, adj, successor);
+		boolean valid = ArrayStorage.checkExactSequence(tokens, index, to, successor);
+		if (valid) updateArrayCount(tokens, from, index, to, adj, successor, nCounts);
 		else {
-			AbstractTrie newNext = promoteArrayToTrie(indices, index, successor);
-			updateTrie(indices, index, adj, newNext);
+			AbstractTrie newNext = promoteArrayToTrie(tokens, from, index, successor);
+			updateTrie(tokens, from, index, to, adj, newNext, nCounts);
 		}
 	}
 
-	private void updateArrayCount(List<Integer> indices, int index, int adj, int[] successor) {
-		successor[0] += adj;
-		if (successor[0] == 0) {
-			this.removeSuccessor((int) indices.get(index));
+	private void updateArrayCount(int[] tokens, int from, int index, int to, int adj, int[] successor, CountOfCounts nCounts) {
+		int count = successor[0] + adj;
+		if (count == 0) {
+			this.removeSuccessor(tokens[index]);
+		}
+		else if (successor.length == 1 && (count < TERMINALS.length || successor[0] < TERMINALS.length)) {
+			// Terminals may be shared, so replace rather than update them
+			this.putSuccessor(tokens[index], terminal(count));
 		}
-		updateCoCs(successor[0], adj);
-		for (int i = index + 1; i <= indices.size(); i++) {
-			updateNCounts(i, successor[0], adj);
+		else successor[0] = count;
+		successorUpdated(tokens[index], count, adj);
+		for (int i = index + 1; i <= to; i++) {
+			nCounts.update(i - from, count, adj);
 		}
 	}
 
-	private AbstractTrie promoteArrayToMap(List<Integer> indices, int index, ArrayTrieCounter counter) {
-		AbstractTrie newNext = new MapTrieCounter();
-		newNext.counts = counter.counts;
-		for (int i = 0; i < counter.indices.length; i++) {
-			int ix = counter.indices[i];
-			if (ix == Integer.MAX_VALUE) continue;
-			Object successor = counter.successors[i];
-			newNext.putSuccessor(ix, successor);
-		}
-		this.putSuccessor(indices.get(index), newNext);
-		return newNext;
+	private AbstractTrie promoteArrayToTrie(int[] tokens, int from, int index, int[] successor) {
+		return promoteArrayToTrie(tokens[index], index - from, successor);
 	}
-		
-	private AbstractTrie promoteArrayToTrie(List<Integer> indices, int index, int[] successor) {
-		AbstractTrie newNext = makeNext(index);
+
+	/**
+	 * Replaces the unique sequence {@code successor}, stored at {@code key} in this node at the given depth, by an equivalent trie node
+	 */
+	private AbstractTrie promoteArrayToTrie(int key, int depth, int[] successor) {
+		AbstractTrie newNext = makeNext(depth);
 		newNext.updateCount(successor[0]);
 		if (successor.length > 1) {
 			newNext.counts[1] = newNext.counts[0];
-			int[] temp = Arrays.copyOfRange(successor, 1, successor.length);
-			temp[0] = successor[0];
-			newNext.putSuccessor(successor[1], temp);
-			if (COUNT_OF_COUNTS_CUTOFF > 0) {
-				newNext.counts[1 + Math.min(temp[0], COUNT_OF_COUNTS_CUTOFF)]++;
+			int[] temp;
+			if (successor.length == 2) temp = terminal(successor[0]);
+			else {
+				temp = Arrays.copyOfRange(successor, 1, successor.length);
+				temp[0] = successor[0];
 			}
+			newNext.putSuccessor(successor[1], temp);
+			newNext.addSuccessorCount(temp[0]);
 		}
-		this.putSuccessor((int) indices.get(index), newNext);
+		this.putSuccessor(key, newNext);
 		return newNext;
 	}
 
-	private void addArray(List<Integer> indices, int index, int adj) {
+	private void addArray(int[] tokens, int from, int index, int to, int adj, CountOfCounts nCounts) {
 		if (adj < 0) {
-			System.out.println("Attempting to forget unknown event: " + indices.subList(index, indices.size()));
+			System.out.println("Attempting to forget unknown event: " + Util.toList(tokens, index, to));
 			return;
 		}
-		int[] singleton = new int[indices.size() - index];
-		singleton[0] = adj;
-		for (int i = 1; i < singleton.length; i++) {
-			singleton[i] = indices.get(index + i);
+		int[] singleton;
+		if (to - index == 1) singleton = terminal(adj);
+		else {
+			singleton = new int[to - index];
+			singleton[0] = adj;
+			for (int i = 1; i < singleton.length; i++) {
+				singleton[i] = tokens[index + i];
+			}
 		}
-		putSuccessor(indices.get(index), singleton);
-		updateCoCs(adj, adj);
-		for (int i = index + 1; i <= indices.size(); i++) {
-			updateNCounts(i, adj, adj);
+		putSuccessor(tokens[index], singleton);
+		successorUpdated(tokens[index], adj, adj);
+		for (int i = index + 1; i <= to; i++) {
+			nCounts.update(i - from, adj, adj);
 		}
 	}
 
-	private static void updateNCounts(int n, int count, int adj) {
-		if (n == 0) return;
-		if (n > ModelRunner.DEFAULT_NGRAM_ORDER) return;
-		int[] toUpdate = nCounts[n - 1];
-		int currIndex = Math.min(count, toUpdate.length);
-		int prevIndex = Math.min(count - adj, toUpdate.length);
-		if (currIndex != prevIndex) {
-			boolean updateCurr = currIndex > 0;
-			boolean updatePrev = prevIndex > 0;
-			if (updateCurr) toUpdate[currIndex - 1]++;
-			if (updatePrev) toUpdate[prevIndex - 1]--;	
+	/*
+	 * Statistics
+	 */
+	@Override
+	public final synchronized CounterStatistics getStatistics() {
+		CounterStatistics statistics = new CounterStatistics();
+		addStatistics(statistics, 0);
+		return statistics;
+	}
+
+	private void addStatistics(CounterStatistics statistics, int depth) {
+		int[] fanout = { 0 };
+		forEachSuccessor((key, successor) -> {
+			fanout[0]++;
+			if (successor instanceof AbstractTrie) ((AbstractTrie) successor).addStatistics(statistics, depth + 1);
+			else {
+				// A unique sequence stores lengths depth + 1 up to depth + chain.length
+				int[] chain = (int[]) successor;
+				boolean shared = chain.length == 1 && chain[0] > 0 && chain[0] < TERMINALS.length;
+				statistics.addLeaf(depth + 1, shared ? 0 : CounterStatistics.arrayBytes(chain.length, 4));
+				for (int i = 1; i <= chain.length; i++) statistics.addNGrams(depth + i, 1);
+			}
+		});
+		statistics.addNode(getClass().getSimpleName(), depth, fanout[0], estimateNodeBytes());
+		statistics.addNGrams(depth, 1);
+	}
+
+	/**
+	 * Estimates the memory taken by this node itself, including its own arrays or maps but not its successors.
+	 * See {@link CounterStatistics} for the assumed object layout.
+	 */
+	abstract long estimateNodeBytes();
+
+	/**
+	 * Estimates the memory taken by this node's object, given the size of the fields its subclass declares, plus its counts and {@link TopSuccessors} index.
+	 */
+	final long estimateNodeBytes(int fieldBytes) {
+		long bytes = CounterStatistics.objectBytes(8 + fieldBytes) + CounterStatistics.arrayBytes(this.counts.length, 4);
+		TopSuccessors index = getTopIndex();
+		if (index != null) bytes += index.estimateBytes();
+		return bytes;
+	}
+
+	/**
+	 * Estimates the memory taken by a fastutil open-addressing map (excluding its values), assuming its tables are no larger than needed for its current size
+	 */
+	static long estimateMapBytes(Int2ObjectMap<?> map) {
+		int capacity = HashCommon.arraySize(Math.max(1, map.size()), Hash.DEFAULT_LOAD_FACTOR);
+		return CounterStatistics.objectBytes(48) + CounterStatistics.arrayBytes(capacity + 1, 4) + CounterStatistics.arrayBytes(capacity + 1, 4);
+	}
+
+	/*
+	 * Merging
+	 */
+	@Override
+	public final void merge(Counter other) {
+		merge(other, false);
+	}
+
+	@Override
+	public final void subtract(Counter other) {
+		merge(other, true);
+	}
+
+	private synchronized void merge(Counter other, boolean subtract) {
+		if (other == this) throw new IllegalArgumentException("Cannot merge a counter with itself");
+		if (!(other instanceof AbstractTrie)) {
+			throw new UnsupportedOperationException("Cannot merge counter of type " + other.getClass().getSimpleName()
+					+ " into " + getClass().getSimpleName());
 		}
+		AbstractTrie trie = (AbstractTrie) other;
+		merge(trie, key -> true, subtract);
+		// The empty sequence, which is not stored as a successor
+		this.counts[0] += (subtract ? -1 : 1) * (trie.counts[0] - trie.counts[1]);
 	}
-	
+
+	/**
+	 * Adds (or subtracts) all sequences stored in {@code other} whose first token is accepted by {@code keys} to this trie,
+	 * by walking both tries in lockstep rather than re-counting every sequence. Count-of-counts and successor counts are kept current.
+	 * The empty sequence is not merged, which lets a counter that is split by first token (e.g. a {@link slp.core.counting.giga.VirtualCounter})
+	 * merge another trie into each of its parts.<br />
+	 * {@code other} must not be updated while it is being merged; when subtracting, it should only store sequences also stored in this trie.
+	 */
+	public final synchronized void merge(AbstractTrie other, IntPredicate keys, boolean subtract) {
+		int sign = subtract ? -1 : 1;
+		CountOfCounts nCounts = getCountOfCounts();
+		int merged = 0;
+		for (int key : other.getSuccessors()) {
+			if (!keys.test(key)) continue;
+			Object succ = other.getSuccessor(key);
+			merged += getCount(succ);
+			mergeSuccessor(key, succ, 0, sign, nCounts);
+		}
+		this.counts[0] += sign*merged;
+		this.counts[1] += sign*merged;
+	}
+
+	/**
+	 * Merges {@code succ}, another trie's successor at {@code key} (either a node or a unique sequence), into this node's successor at {@code key}.
+	 */
+	private void mergeSuccessor(int key, Object succ, int depth, int sign, CountOfCounts nCounts) {
+		int adj = sign*getCount(succ);
+		if (adj == 0) return;
+		Object mine = getSuccessor(key);
+		int count;
+		if (mine == null) {
+			if (sign < 0) {
+				System.out.println("Attempting to forget unknown successor: " + key);
+				return;
+			}
+			if (succ instanceof AbstractTrie) {
+				AbstractTrie next = makeNext(depth).mergeNode((AbstractTrie) succ, depth + 1, sign, nCounts);
+				putSuccessor(key, next);
+			}
+			else {
+				int[] chain = (int[]) succ;
+				putSuccessor(key, chain.length == 1 ? terminal(chain[0]) : chain.clone());
+				for (int i = 1; i <= chain.length; i++) nCounts.update(depth + i, chain[0], adj);
+			}
+			count = adj;
+		}
+		else if (mine instanceof int[] && succ instanceof int[]
+				&& Arrays.equals((int[]) mine, 1, ((int[]) mine).length, (int[]) succ, 1, ((int[]) succ).length)) {
+			int[] chain = (int[]) mine;
+			count = chain[0] + adj;
+			if (count == 0) removeSuccessor(key);
+			// Terminals may be shared, so replace rather than update them
+			else if (chain.length == 1) putSuccessor(key, terminal(count));
+			else chain[0] = count;
+			for (int i = 1; i <= chain.length; i++) nCounts.update(depth + i, count, adj);
+		}
+		else {
+			AbstractTrie next = mine instanceof AbstractTrie ? (AbstractTrie) mine : promoteArrayToTrie(key, depth, (int[]) mine);
+			AbstractTrie merged = succ instanceof AbstractTrie
+					? next.mergeNode((AbstractTrie) succ, depth + 1, sign, nCounts)
+					: next.mergeArray((int[]) succ, depth + 1, sign, nCounts);
+			if (merged != next) putSuccessor(key, merged);
+			count = merged.getCount();
+			if (count == 0) removeSuccessor(key);
+		}
+		successorUpdated(key, count, adj);
+	}
+
+	/**
+	 * Merges {@code other}, a node at the same depth in another trie, into this (non-root) node.
+	 * 
+	 * @return This node, or its replacement if it was adapted along the way, which should take its place in the parent
+	 */
+	private AbstractTrie mergeNode(AbstractTrie other, int depth, int sign, CountOfCounts nCounts) {
+		AbstractTrie node = this;
+		for (int key : other.getSuccessors()) {
+			node = node.adapt(key);
+			node.mergeSuccessor(key, other.getSuccessor(key), depth, sign, nCounts);
+		}
+		int adj = sign*other.counts[0];
+		node.counts[0] += adj;
+		node.counts[1] += sign*other.counts[1];
+		nCounts.update(depth, node.counts[0], adj);
+		return node;
+	}
+
+	/**
+	 * Merges {@code successor}, a unique sequence in another trie starting at this (non-root) node's depth, into this node.
+	 * 
+	 * @return This node, or its replacement if it was adapted, which should take its place in the parent
+	 */
+	private AbstractTrie mergeArray(int[] successor, int depth, int sign, CountOfCounts nCounts) {
+		AbstractTrie node = this;
+		int adj = sign*successor[0];
+		if (successor.length > 1) {
+			int[] rest;
+			if (successor.length == 2) rest = terminal(successor[0]);
+			else {
+				rest = Arrays.copyOfRange(successor, 1, successor.length);
+				rest[0] = successor[0];
+			}
+			node = node.adapt(successor[1]);
+			node.mergeSuccessor(successor[1], rest, depth, sign, nCounts);
+			node.counts[1] += adj;
+		}
+		node.counts[0] += adj;
+		nCounts.update(depth, node.counts[0], adj);
+		return node;
+	}
+
+	/*
+	 * Pruning
+	 */
+	@Override
+	public final synchronized long prune(int[] minCounts, PruneCondition condition) {
+		Pruning pruning = new Pruning(minCounts, condition, getCountOfCounts());
+		prune(pruning, 0);
+		return pruning.pruned;
+	}
+
+	private void prune(Pruning pruning, int depth) {
+		for (int key : getSuccessors()) {
+			Object succ = getSuccessor(key);
+			int count = getCount(succ);
+			pruning.setToken(depth, key);
+			if (succ instanceof AbstractTrie) {
+				AbstractTrie next = (AbstractTrie) succ;
+				boolean remove = count < pruning.getMinCount(depth + 1);
+				if (!remove) {
+					synchronized (next) {
+						next.prune(pruning, depth + 1);
+					}
+					remove = pruning.condition != null && next.getSuccessors().isEmpty()
+							&& pruning.condition.prune(pruning.path, depth + 1, count);
+				}
+				if (remove) {
+					pruning.removeAll(next, depth + 1);
+					removeSuccessor(key);
+					successorUpdated(key, 0, -count);
+				}
+			}
+			else {
+				// A unique sequence stores lengths depth + 1 up to depth + chain.length, all with the same count
+				int[] chain = (int[]) succ;
+				int keep = 0;
+				while (keep < chain.length && count >= pruning.getMinCount(depth + keep + 1)) keep++;
+				for (int j = 1; j < keep; j++) pruning.setToken(depth + j, chain[j]);
+				if (pruning.condition != null) {
+					while (keep > 0 && pruning.condition.prune(pruning.path, depth + keep, count)) keep--;
+				}
+				if (keep == chain.length) continue;
+				for (int j = keep; j < chain.length; j++) pruning.nCounts.update(depth + j + 1, 0, -count);
+				pruning.pruned += chain.length - keep;
+				if (keep == 0) {
+					removeSuccessor(key);
+					successorUpdated(key, 0, -count);
+				}
+				else {
+					// A chain has no context count for its last token, so the kept part becomes nodes, the last of which keeps its context count
+					AbstractTrie node = this;
+					for (int j = 0; j < keep; j++) {
+						int next = j == 0 ? key : chain[j];
+						node = node.promoteArrayToTrie(next, depth + j, j == 0 ? Arrays.copyOf(chain, keep) : (int[]) node.getSuccessor(next));
+					}
+					node.counts[1] = count;
+				}
+			}
+		}
+	}
+
+	private static final class Pruning {
+		private final int[] minCounts;
+		private final PruneCondition condition;
+		private final CountOfCounts nCounts;
+		private int[] path = new int[8];
+		private long pruned = 0;
+
+		Pruning(int[] minCounts, PruneCondition condition, CountOfCounts nCounts) {
+			this.minCounts = minCounts;
+			this.condition = condition;
+			this.nCounts = nCounts;
+		}
+
+		int getMinCount(int length) {
+			if (this.minCounts == null || this.minCounts.length == 0) return 0;
+			return this.minCounts[Math.min(length, this.minCounts.length) - 1];
+		}
+
+		void setToken(int index, int token) {
+			if (index >= this.path.length) this.path = Arrays.copyOf(this.path, 2*index);
+			this.path[index] = token;
+		}
+
+		/**
+		 * Removes the counts of {@code node} (of length {@code length}) and of all its extensions from the count-of-counts
+		 */
+		void removeAll(AbstractTrie node, int length) {
+			this.nCounts.update(length, 0, -node.getCount());
+			this.pruned++;
+			node.forEachSuccessor((key, successor) -> {
+				if (successor instanceof AbstractTrie) removeAll((AbstractTrie) successor, length + 1);
+				else {
+					int[] chain = (int[]) successor;
+					for (int j = 0; j < chain.length; j++) this.nCounts.update(length + j + 1, 0, -chain[0]);
+					this.pruned += chain.length;
+				}
+			});
+		}
+	}
+
+	private void successorUpdated(int key, int count, int adj) {
+		updateCoCs(count, adj);
+		successorCountChanged(key, count);
+		TopSuccessors index = getTopIndex();
+		if (index != null && !index.update(key, count, adj)) setTopIndex(null);
+	}
+
 	private void updateCoCs(int count, int adj) {
 		if (COUNT_OF_COUNTS_CUTOFF == 0) return;
 		int currIndex = Math.min(count, COUNT_OF_COUNTS_CUTOFF);
 		int prevIndex = Math.min(count - adj, COUNT_OF_COUNTS_CUTOFF);
 		if (currIndex != prevIndex) {
-			if (currIndex >= 1) this.counts[currIndex + 1]++;
-			if (prevIndex >= 1) this.counts[prevIndex + 1]--;
+			if (currIndex >= 1) {
+				if (currIndex + 1 >= this.counts.length) this.counts = Arrays.copyOf(this.counts, currIndex + 2);
+				this.counts[currIndex + 1]++;
+			}
+			if (prevIndex >= 1) {
+				this.counts[prevIndex + 1]--;
+				int length = this.counts.length;
+				while (length > 2 && this.counts[length - 1] == 0) length--;
+				if (length < this.counts.length) this.counts = Arrays.copyOf(this.counts, length);
+			}
+		}
+	}
+
+	/**
+	 * Registers a successor with the given count in this node's count-of-counts, e.g. while reading.
+	 */
+	final void addSuccessorCount(int count) {
+		if (count > 0) updateCoCs(count, count);
+	}
+
+	/*
+	 * Terminal successors (a count without further tokens) are by far the most common leaves, and nearly all have small counts.
+	 * These are shared and must not be modified; other counts escape to a private array.
+	 */
+	private static final int[][] TERMINALS = new int[256][];
+	static {
+		for (int i = 1; i < TERMINALS.length; i++) TERMINALS[i] = new int[] { i };
+	}
+
+	static int[] terminal(int count) {
+		return count > 0 && count < TERMINALS.length ? TERMINALS[count] : new int[] { count };
+	}
+
+	/*
+	 * Storage. Counters are written in a compact format that starts with a (negative) marker and stores counts in a single byte where possible,
+	 * escaping larger counts. Counters written before this format start with the root's (non-negative) count and can still be read.
+	 * Nested nodes are tagged with a type code, unique sequences with their (positive) length.
+	 */
+	private static final int COMPACT_FORMAT = -1;
+	private static final int COUNT_ESCAPE = 0xFF;
+
+	static final int MAP_NODE = -1;
+	static final int ARRAY_NODE = -2;
+	static final int INLINE_NODE = -3;
+	static final int SORTED_NODE = -4;
+	static final int HASH_NODE = -5;
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(COMPACT_FORMAT);
+		writeNode(out);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int first = in.readInt();
+		if (first == COMPACT_FORMAT) readNode(in, readCount(in, true), true);
+		else readLegacy(in, first);
+	}
+
+	/**
+	 * Reads the remainder of a node in the format used before the compact format, given its already read count.
+	 */
+	void readLegacy(ObjectInput in, int count) throws IOException, ClassNotFoundException {
+		readNode(in, count, false);
+	}
+
+	static void writeCount(ObjectOutput out, int count) throws IOException {
+		if (count >= 0 && count < COUNT_ESCAPE) out.writeByte(count);
+		else {
+			out.writeByte(COUNT_ESCAPE);
+			out.writeInt(count);
+		}
+	}
+
+	static int readCount(ObjectInput in, boolean compact) throws IOException {
+		if (!compact) return in.readInt();
+		int count = in.readUnsignedByte();
+		return count == COUNT_ESCAPE ? in.readInt() : count;
+	}
+
+	static void writeSuccessor(ObjectOutput out, Object o) throws IOException {
+		if (o instanceof int[]) {
+			int[] arr = (int[]) o;
+			out.writeInt(arr.length);
+			writeCount(out, arr[0]);
+			for (int j = 1; j < arr.length; j++) out.writeInt(arr[j]);
+		}
+		else {
+			AbstractTrie node = (AbstractTrie) o;
+			out.writeInt(node.getTypeCode());
+			node.writeNode(out);
+		}
+	}
+
+	static Object readSuccessor(ObjectInput in, boolean compact) throws IOException, ClassNotFoundException {
+		int code = in.readInt();
+		if (code >= 0) {
+			int count = readCount(in, compact);
+			if (code == 1) return terminal(count);
+			int[] arr = new int[code];
+			arr[0] = count;
+			for (int j = 1; j < code; j++) arr[j] = in.readInt();
+			return arr;
+		}
+		AbstractTrie node;
+		switch (code) {
+			case ARRAY_NODE: node = new ArrayTrieCounter(); break;
+			case INLINE_NODE: node = new InlineTrieCounter(); break;
+			case SORTED_NODE: node = new SortedTrieCounter(); break;
+			case HASH_NODE: node = new HashTrieCounter(); break;
+			default: node = new MapTrieCounter(); break;
+		}
+		if (compact) node.readNode(in, readCount(in, true), true);
+		else node.readLegacy(in, in.readInt());
+		return node;
+	}
+
+	int getTypeCode() {
+		return MAP_NODE;
+	}
+
+	/**
+	 * Prepares this node to receive {@code successors} successors while being read, discarding any current successors.
+	 */
+	abstract void ensureCapacity(int successors);
+
+	/**
+	 * Writes this node's counts and successors in the compact, type-coded format.
+	 */
+	final void writeNode(ObjectOutput out) throws IOException {
+		List<Integer> keys = getSuccessors();
+		writeCount(out, this.counts[0]);
+		writeCount(out, this.counts[1]);
+		out.writeInt(keys.size());
+		for (int key : keys) {
+			out.writeInt(key);
+			writeSuccessor(out, getSuccessor(key));
+		}
+	}
+
+	/**
+	 * Reads the remainder of a node written by {@link #writeNode(ObjectOutput)} (or in the legacy format, if not {@code compact}),
+	 * given its already read count, restoring its successor count-of-counts.
+	 */
+	final void readNode(ObjectInput in, int count, boolean compact) throws IOException, ClassNotFoundException {
+		this.counts = new int[2];
+		this.counts[0] = count;
+		this.counts[1] = readCount(in, compact);
+		int successors = in.readInt();
+		ensureCapacity(successors);
+		for (int i = 0; i < successors; i++) {
+			int key = in.readInt();
+			Object value = readSuccessor(in, compact);
+			addSuccessorCount(getCount(value));
+			putSuccessor(key, value);
+		}
+	}
+
+	/**
+	 * Writes this node's most frequent successors (by descending count, ties broken by ascending key) to {@code successors},
+	 * by bounded selection over all successors rather than a full sort.
+	 *
+	 * @return The number of successors written
+	 */
+	final int selectTopSuccessors(int[] successors) {
+		TopSelector selector = new TopSelector(successors);
+		forEachSuccessor(selector);
+		return selector.found;
+	}
+
+	private final class TopSelector implements SuccessorVisitor {
+		private final int[] successors;
+		private final int[] topCounts;
+		private int found;
+		private int visited;
+
+		TopSelector(int[] successors) {
+			this.successors = successors;
+			this.topCounts = new int[successors.length];
+		}
+
+		@Override
+		public void visit(int key, Object successor) {
+			int limit = this.successors.length;
+			int count = getCount(successor);
+			if (count <= 0) return;
+			this.visited++;
+			int pos = this.found;
+			while (pos > 0 && (this.topCounts[pos - 1] < count
+					|| (this.topCounts[pos - 1] == count && this.successors[pos - 1] > key))) pos--;
+			if (pos >= limit) return;
+			int end = Math.min(this.found, limit - 1);
+			System.arraycopy(this.successors, pos, this.successors, pos + 1, end - pos);
+			System.arraycopy(this.topCounts, pos, this.topCounts, pos + 1, end - pos);
+			this.successors[pos] = key;
+			this.topCounts[pos] = count;
+			if (this.found < limit) this.found++;
 		}
 	}
 }
@@ -0,0 +1,44 @@
+package slp.core.counting.trie;
+
+import slp.core.translating.Vocabulary;
+
+/**
+ * Root of an adaptive trie, in which every node uses the cheapest layout for its current number of successors:
+ * <ul>
+ * <li>the root itself is a dense array indexed directly by token, as in the {@link DenseTrieCounter},
+ * so the first step of every lookup is a single array access;</li>
+ * <li>{@link InlineTrieCounter}s store up to four successors in fields;</li>
+ * <li>{@link SortedTrieCounter}s binary-search up to sixteen successors;</li>
+ * <li>{@link HashTrieCounter}s hash any number of successors.</li>
+ * </ul>
+ * Nodes are replaced by the next larger (or smaller) layout as their fanout grows (or shrinks), see {@link AbstractTrie#adapt(int)}.
+ * Compared to the {@link MapTrieCounter}, this saves memory on the many low-fanout nodes and a hash lookup at the root.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class AdaptiveTrieCounter extends DenseTrieCounter {
+
+	// Fixed to the value from before this class shared its root with the DenseTrieCounter, which still reads counters written by it
+	private static final long serialVersionUID = 2027005285258298860L;
+
+	public AdaptiveTrieCounter() {
+		this(16);
+	}
+
+	public AdaptiveTrieCounter(int initSize) {
+		super(null, initSize);
+	}
+
+	/**
+	 * Creates a counter whose root is sized to (and grows with) {@code vocabulary}
+	 */
+	public AdaptiveTrieCounter(Vocabulary vocabulary) {
+		super(vocabulary, Math.max(16, vocabulary.size()));
+	}
+
+	@Override
+	AbstractTrie makeNext(int depth) {
+		return new InlineTrieCounter();
+	}
+}
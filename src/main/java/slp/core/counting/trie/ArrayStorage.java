@@ -1,16 +1,14 @@
 package slp.core.counting.trie;
 
-import java.util.List;
-
 /*
  * Array storage
  */
 public class ArrayStorage {
-	public static boolean checkExactSequence(List<Integer> indices, int index, int[] successor) {
-		boolean valid = successor.length == indices.size() - index;
+	public static boolean checkExactSequence(int[] tokens, int index, int to, int[] successor) {
+		boolean valid = successor.length == to - index;
 		if (valid) {
 			for (int i = 1; i < successor.length; i++) {
-				if (indices.get(index + i) != successor[i]) {
+				if (tokens[index + i] != successor[i]) {
 					valid = false;
 					break;
 				}
@@ -19,11 +17,11 @@ public class ArrayStorage {
 		return valid;
 	}
 
-	public static boolean checkPartialSequence(List<Integer> indices, int index, int[] successor) {
-		boolean valid = successor.length >= indices.size() - index;
+	public static boolean checkPartialSequence(int[] tokens, int index, int to, int[] successor) {
+		boolean valid = successor.length >= to - index;
 		if (valid) {
-			for (int i = 1; i < indices.size() - index; i++) {
-				if (indices.get(index + i) != successor[i]) {
+			for (int i = 1; i < to - index; i++) {
+				if (tokens[index + i] != successor[i]) {
 					valid = false;
 					break;
 				}
@@ -31,4 +29,4 @@ public class ArrayStorage {
 		}
 		return valid;
 	}
-}
\ No newline at end of file
+}
@@ -2,18 +2,19 @@ package slp.core.counting.trie;
 
 import java.io.IOException;
 import java.io.ObjectInput;
-import java.io.ObjectOutput;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-import slp.core.util.Pair;
+import slp.core.counting.CounterStatistics;
 
 public class ArrayTrieCounter extends AbstractTrie {
 
+	private static final long serialVersionUID = 5172631429561262522L;
+
 	public int[] indices;
 	public Object[] successors;
+	private TopSuccessors topIndex;
 	private static final double GROWTH_FACTOR = 1.5;
 
 	public ArrayTrieCounter() {
@@ -36,21 +37,49 @@ public class ArrayTrieCounter extends AbstractTrie {
 	}
 	
 	@Override
-	public List<Integer> getTopSuccessorsInternal(int limit) {
-		return IntStream.range(0, this.indices.length)
-			.filter(i -> this.indices[i] != Integer.MAX_VALUE)
-			.mapToObj(i -> Pair.of(this.indices[i], this.getCount(this.successors[i])))
-			.filter(p -> p.right != null && p.right > 0)
-			.sorted((p1, p2) -> -Integer.compare(p1.right, p2.right))
-			.limit(limit)
-			.map(p -> p.left)
-			.collect(Collectors.toList());
+	public void forEachSuccessor(SuccessorVisitor visitor) {
+		for (int i = 0; i < this.indices.length; i++) {
+			if (this.indices[i] != Integer.MAX_VALUE) visitor.visit(this.indices[i], this.successors[i]);
+		}
+	}
+
+	@Override
+	boolean indexesTopSuccessors() {
+		return true;
+	}
+
+	@Override
+	TopSuccessors getTopIndex() {
+		return this.topIndex;
+	}
+
+	@Override
+	void setTopIndex(TopSuccessors index) {
+		this.topIndex = index;
+	}
+
+	@Override
+	long estimateNodeBytes() {
+		return estimateNodeBytes(12) + CounterStatistics.arrayBytes(this.indices.length, 4)
+				+ CounterStatistics.arrayBytes(this.successors.length, 4);
 	}
 
 	@Override
 	AbstractTrie makeNext(int depth) {
 		return new ArrayTrieCounter();
 	}
+
+	@Override
+	AbstractTrie adapt(int key) {
+		// Binary search gets slow for many successors; switch to a map
+		if (this.indices.length > 10) return moveTo(new MapTrieCounter());
+		return this;
+	}
+
+	@Override
+	int getTypeCode() {
+		return ARRAY_NODE;
+	}
 	
 	public Object getSuccessor(int key) {
 		int ix = getSuccIx(key);
@@ -95,6 +124,19 @@ public class ArrayTrieCounter extends AbstractTrie {
 		}
 	}
 
+	/**
+	 * Returns the number of successors stored, i.e. the position of the first padding slot.
+	 */
+	int size() {
+		int lo = 0, hi = this.indices.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.indices[mid] == Integer.MAX_VALUE) hi = mid;
+			else lo = mid + 1;
+		}
+		return lo;
+	}
+
 	/*
 	 * Map bookkeeping
 	 */
@@ -116,13 +158,20 @@ public class ArrayTrieCounter extends AbstractTrie {
 	}
 
 	@Override
-	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-		this.counts = new int[2 + COUNT_OF_COUNTS_CUTOFF];
-		this.counts[0] = in.readInt();
+	void ensureCapacity(int successors) {
+		this.indices = new int[successors + 1];
+		this.successors = new Object[successors + 1];
+		Arrays.fill(this.indices, Integer.MAX_VALUE);
+		this.topIndex = null;
+	}
+
+	@Override
+	void readLegacy(ObjectInput in, int count) throws IOException, ClassNotFoundException {
+		this.counts = new int[2];
+		this.counts[0] = count;
 		this.counts[1] = in.readInt();
 		int successors = in.readInt();
-		this.indices = new int[successors];
-		this.successors = new Object[successors];
+		ensureCapacity(successors);
 		int pos = 0;
 		for (; pos < successors; pos++) {
 			int key = in.readInt();
@@ -130,36 +179,17 @@ public class ArrayTrieCounter extends AbstractTrie {
 			Object value;
 			if (code < 0) {
 				value = in.readObject();
-				this.counts[1 + Math.min(((AbstractTrie) value).getCount(), COUNT_OF_COUNTS_CUTOFF)]++;
+			}
+			else if (code == 1) {
+				value = terminal(in.readInt());
 			}
 			else {
 				value = new int[code];
 				for (int j = 0; j < code; j++) ((int[]) value)[j] = in.readInt();
-				this.counts[1 + Math.min(((int[]) value)[0], COUNT_OF_COUNTS_CUTOFF)]++;
 			}
+			addSuccessorCount(getCount(value));
 			this.indices[pos] = key;
 			this.successors[pos] = value;
 		}
 	}
-
-	@Override
-	public void writeExternal(ObjectOutput out) throws IOException {
-		out.writeInt(this.counts[0]);
-		out.writeInt(this.counts[1]);
-		out.writeInt(this.getSuccessorCount());
-		for (int i = 0; i < this.indices.length; i++) {
-			if (this.indices[i] == Integer.MAX_VALUE) continue;
-			out.writeInt(this.indices[i]);
-			Object o = this.successors[i];
-			if (o instanceof int[]) {
-				int[] arr = (int[]) o;
-				out.writeInt(arr.length);
-				for (int j = 0; j < arr.length; j++) out.writeInt(arr[j]);
-			}
-			else {
-				out.writeInt(-1);
-				out.writeObject((AbstractTrie) o);
-			}
-		}
-	}
 }
@@ -0,0 +1,449 @@
+package slp.core.counting.trie;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import slp.core.counting.CountOfCounts;
+import slp.core.counting.Counter;
+import slp.core.util.Util;
+
+/**
+ * Trie counter that supports many concurrent writers and lock-free readers on a single, shared trie.<br /><br />
+ *
+ * Unlike the {@link AbstractTrie}s, which synchronize every level of an update (and thus serialize all writers at the root),
+ * this counter updates counts with atomic adds and inserts successors by compare-and-swap into per-node open-addressing tables.
+ * Only growing a node's table takes that node's lock, which writers that need the grown table wait for; readers never lock or wait,
+ * but report a successor that is added while its node's table grows as absent until the grown table is published.
+ * Concurrently read counts are each up-to-date, but a reader may observe an update that is only partially applied along its path.<br />
+ * Nodes are never removed: a successor whose count drops to zero is simply ignored.
+ * Nor are unique sequences stored as compact arrays, so this counter uses more memory than e.g. the {@link MapTrieCounter}.
+ * <br /><br />
+ * Large batches (e.g. all the sequences in a file) are counted in parallel, so even a sequential caller benefits from multiple cores.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class ConcurrentTrieCounter implements Counter {
+
+	private static final long serialVersionUID = -1968624862303941022L;
+
+	// Batches at least this large are counted in parallel
+	private static final int PARALLEL_BATCH = 1000;
+
+	private static final VarHandle COUNT;
+	private static final VarHandle CONTEXT_COUNT;
+	private static final VarHandle SIZE;
+	private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Node[].class);
+	private static final VarHandle COC = MethodHandles.arrayElementVarHandle(int[].class);
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			COUNT = lookup.findVarHandle(Node.class, "count", int.class);
+			CONTEXT_COUNT = lookup.findVarHandle(Node.class, "contextCount", int.class);
+			SIZE = lookup.findVarHandle(Node.class, "size", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// Marks the empty slots of a table that is being copied into a larger one
+	private static final Node MOVED = new Node(Integer.MIN_VALUE);
+
+	private Node root;
+	private CountOfCounts nCounts;
+
+	public ConcurrentTrieCounter() {
+		this.root = new Node(-1);
+		this.nCounts = new CountOfCounts();
+	}
+
+	static final class Node {
+		final int key;
+		volatile int count;
+		volatile int contextCount;
+		volatile int size;
+		volatile Node[] table;
+		// Number of successors seen once, twice, up to the COUNT_OF_COUNTS_CUTOFF; created along with the table
+		int[] cocs;
+
+		Node(int key) {
+			this.key = key;
+		}
+
+		Node getSuccessor(int key) {
+			Node[] table = this.table;
+			if (table == null) return null;
+			int mask = table.length - 1;
+			int i = hash(key) & mask;
+			for (int probes = 0; probes < table.length; probes++) {
+				Node node = (Node) SLOT.getVolatile(table, i);
+				if (node == null) return null;
+				else if (node == MOVED) {
+					// Only empty slots are sealed, so the key was not in this table when it was; keys are only added again once
+					// the grown table is published, so look there if it is and otherwise (without waiting for it) report the key absent
+					Node[] current = this.table;
+					if (current == table) return null;
+					table = current;
+					mask = table.length - 1;
+					i = hash(key) & mask;
+					probes = -1;
+				}
+				else if (node.key == key) return node;
+				else i = (i + 1) & mask;
+			}
+			// Probed a full table that is about to grow
+			return null;
+		}
+
+		Node getOrAddSuccessor(int key) {
+			Node[] table = this.table;
+			if (table == null) table = initTable();
+			Node added = null;
+			int mask = table.length - 1;
+			int i = hash(key) & mask;
+			for (int probes = 0; ; probes++) {
+				if (probes == table.length) {
+					// Concurrent insertions filled the table before it could grow; grow it (or wait for it to be grown) first
+					resize(table);
+					table = this.table;
+					mask = table.length - 1;
+					i = hash(key) & mask;
+					probes = 0;
+				}
+				Node node = (Node) SLOT.getVolatile(table, i);
+				if (node == null) {
+					if (added == null) added = new Node(key);
+					if (SLOT.compareAndSet(table, i, null, added)) {
+						int size = (int) SIZE.getAndAdd(this, 1) + 1;
+						if (3*size > 2*table.length) resize(table);
+						return added;
+					}
+					// Lost the race for this slot; re-inspect it
+				}
+				else if (node == MOVED) {
+					table = awaitResize(table);
+					mask = table.length - 1;
+					i = hash(key) & mask;
+					probes = -1;
+				}
+				else if (node.key == key) return node;
+				else i = (i + 1) & mask;
+			}
+		}
+
+		private synchronized Node[] initTable() {
+			if (this.table == null) {
+				this.cocs = new int[AbstractTrie.COUNT_OF_COUNTS_CUTOFF];
+				this.table = new Node[2];
+			}
+			return this.table;
+		}
+
+		private synchronized Node[] awaitResize(Node[] old) {
+			// Tables are only sealed while holding this node's lock, so the resize has completed once we acquire it
+			return this.table;
+		}
+
+		private synchronized void resize(Node[] old) {
+			if (this.table != old) return;
+			Node[] grown = new Node[2*old.length];
+			int mask = grown.length - 1;
+			for (int i = 0; i < old.length; i++) {
+				Node node;
+				while ((node = (Node) SLOT.getVolatile(old, i)) == null) {
+					if (SLOT.compareAndSet(old, i, null, MOVED)) break;
+				}
+				if (node == null) continue;
+				int j = hash(node.key) & mask;
+				while (grown[j] != null) j = (j + 1) & mask;
+				grown[j] = node;
+			}
+			this.table = grown;
+		}
+
+		void updateCoCs(int count, int adj) {
+			int cutoff = this.cocs.length;
+			if (cutoff == 0) return;
+			int currIndex = Math.min(count, cutoff);
+			int prevIndex = Math.min(count - adj, cutoff);
+			if (currIndex != prevIndex) {
+				if (currIndex >= 1) COC.getAndAdd(this.cocs, currIndex - 1, 1);
+				if (prevIndex >= 1) COC.getAndAdd(this.cocs, prevIndex - 1, -1);
+			}
+		}
+
+		int getSuccessorCount() {
+			Node[] table = this.table;
+			if (table == null) return 0;
+			int[] cocs = this.cocs;
+			int successors = 0;
+			if (cocs.length > 0) {
+				for (int i = 0; i < cocs.length; i++) successors += (int) COC.getVolatile(cocs, i);
+			}
+			else {
+				for (Node node : table) {
+					if (node != null && node != MOVED && node.count > 0) successors++;
+				}
+			}
+			return successors;
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Node getNode(int[] tokens, int from, int to) {
+		Node node = this.root;
+		for (int i = from; i < to && node != null; i++) {
+			node = node.getSuccessor(tokens[i]);
+		}
+		return node;
+	}
+
+	/*
+	 * Lookups
+	 */
+	@Override
+	public int getCount() {
+		return this.root.count;
+	}
+
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		if (from == to) {
+			counts[0] = getCount();
+			counts[1] = getCount();
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		Node context = getNode(tokens, from, to - 1);
+		if (context == null) return;
+		counts[1] = context.contextCount;
+		Node node = context.getSuccessor(tokens[to - 1]);
+		if (node != null) counts[0] = node.count;
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		return this.nCounts.get(n, count);
+	}
+
+	public CountOfCounts getCountOfCounts() {
+		return this.nCounts;
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		return this.root.getSuccessorCount();
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		return getSuccessorCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		Node node = getNode(tokens, from, to);
+		return node == null ? 0 : node.getSuccessorCount();
+	}
+
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		int[] tokens = Util.toArray(indices);
+		int[] successors = new int[Math.min(limit, getSuccessorCount(tokens, 0, tokens.length))];
+		int found = getTopSuccessors(tokens, 0, tokens.length, successors);
+		List<Integer> topSuccessors = new ArrayList<>(found);
+		for (int i = 0; i < found; i++) topSuccessors.add(successors[i]);
+		return topSuccessors;
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		Node node = getNode(tokens, from, to);
+		if (node == null || successors.length == 0) return 0;
+		Node[] table = node.table;
+		if (table == null) return 0;
+		// Bounded insertion-selection by descending count (ties broken by ascending key)
+		int limit = successors.length;
+		int[] counts = new int[limit];
+		int found = 0;
+		for (Node succ : table) {
+			if (succ == null || succ == MOVED) continue;
+			int count = succ.count;
+			if (count <= 0) continue;
+			int pos = found;
+			while (pos > 0 && (counts[pos - 1] < count || (counts[pos - 1] == count && successors[pos - 1] > succ.key))) pos--;
+			if (pos >= limit) continue;
+			int end = Math.min(found, limit - 1);
+			System.arraycopy(successors, pos, successors, pos + 1, end - pos);
+			System.arraycopy(counts, pos, counts, pos + 1, end - pos);
+			successors[pos] = succ.key;
+			counts[pos] = count;
+			if (found < limit) found++;
+		}
+		return found;
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		int[] distinctCounts = new int[range];
+		getDistinctCounts(Util.toArray(indices), 0, indices.size(), distinctCounts);
+		return distinctCounts;
+	}
+
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		Node node = getNode(tokens, from, to);
+		if (node != null) writeDistinctCounts(node, distinctCounts);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) {
+			getCounts(tokens, from, to, counts);
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		Node context = getNode(tokens, from, to - 1);
+		if (context == null) return;
+		counts[1] = context.contextCount;
+		Node node = context.getSuccessor(tokens[to - 1]);
+		if (node != null) counts[0] = node.count;
+		if (distinctCounts.length > 0) writeDistinctCounts(context, distinctCounts);
+	}
+
+	private static void writeDistinctCounts(Node node, int[] distinctCounts) {
+		if (node.table == null) return;
+		int range = distinctCounts.length;
+		int[] cocs = node.cocs;
+		int totalDistinct = node.getSuccessorCount();
+		for (int i = 1; i < cocs.length && i <= range - 1; i++) {
+			int countOfCountsI = (int) COC.getVolatile(cocs, i - 1);
+			distinctCounts[i - 1] = countOfCountsI;
+			totalDistinct -= countOfCountsI;
+		}
+		distinctCounts[range - 1] = totalDistinct;
+	}
+
+	/*
+	 * Updates
+	 */
+	@Override
+	public void count(List<Integer> indices) {
+		update(Util.toArray(indices), 0, indices.size(), 1);
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		update(Util.toArray(indices), 0, indices.size(), -1);
+	}
+
+	@Override
+	public void count(int[] tokens, int from, int to) {
+		update(tokens, from, to, 1);
+	}
+
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		update(tokens, from, to, -1);
+	}
+
+	@Override
+	public void countBatch(List<List<Integer>> indices) {
+		if (indices.size() >= PARALLEL_BATCH) indices.parallelStream().forEach(this::count);
+		else indices.forEach(this::count);
+	}
+
+	@Override
+	public void unCountBatch(List<List<Integer>> indices) {
+		if (indices.size() >= PARALLEL_BATCH) indices.parallelStream().forEach(this::unCount);
+		else indices.forEach(this::unCount);
+	}
+
+	public void update(int[] tokens, int from, int to, int adj) {
+		if (adj < 0) {
+			Node node = getNode(tokens, from, to);
+			if (node == null || node.count + adj < 0) {
+				System.out.println("Attempting to forget unknown event: " + Util.toList(tokens, from, to));
+				return;
+			}
+		}
+		Node node = this.root;
+		COUNT.getAndAdd(node, adj);
+		if (from < to) CONTEXT_COUNT.getAndAdd(node, adj);
+		for (int index = from; index < to; index++) {
+			Node next = adj > 0 ? node.getOrAddSuccessor(tokens[index]) : node.getSuccessor(tokens[index]);
+			int count = (int) COUNT.getAndAdd(next, adj) + adj;
+			if (index + 1 < to) CONTEXT_COUNT.getAndAdd(next, adj);
+			node.updateCoCs(count, adj);
+			this.nCounts.update(index - from + 1, count, adj);
+			node = next;
+		}
+	}
+
+	/*
+	 * Storage
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeNode(out, this.root);
+	}
+
+	private static void writeNode(ObjectOutput out, Node node) throws IOException {
+		out.writeInt(node.count);
+		out.writeInt(node.contextCount);
+		Node[] table = node.table;
+		int successors = 0;
+		if (table != null) {
+			for (Node succ : table) {
+				if (succ != null && succ != MOVED && succ.count > 0) successors++;
+			}
+		}
+		out.writeInt(successors);
+		if (successors == 0) return;
+		for (Node succ : table) {
+			if (succ == null || succ == MOVED || succ.count <= 0) continue;
+			out.writeInt(succ.key);
+			writeNode(out, succ);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		this.root = new Node(-1);
+		this.nCounts = new CountOfCounts();
+		readNode(in, this.root, 0);
+	}
+
+	private void readNode(ObjectInput in, Node node, int depth) throws IOException {
+		node.count = in.readInt();
+		node.contextCount = in.readInt();
+		this.nCounts.add(depth, node.count);
+		int successors = in.readInt();
+		for (int i = 0; i < successors; i++) {
+			Node succ = node.getOrAddSuccessor(in.readInt());
+			readNode(in, succ, depth + 1);
+			node.updateCoCs(succ.count, succ.count);
+		}
+	}
+}
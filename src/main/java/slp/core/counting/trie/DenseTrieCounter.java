@@ -0,0 +1,151 @@
+package slp.core.counting.trie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import slp.core.counting.CounterStatistics;
+import slp.core.translating.Vocabulary;
+
+/**
+ * Trie counter whose root is a dense array indexed directly by token. Vocabulary indices are small, non-negative and nearly all occur
+ * as unigrams, so the first step of every lookup (and every update) is a single array access rather than a hash lookup or binary search.
+ * The root also keeps its successors' counts in a parallel {@code int[]}, so looking up a unigram count (which nearly every backed-off
+ * lookup ends with) reads one array element without touching the successor at all.
+ * <br /><br />
+ * The root grows with the {@link Vocabulary} it is given, if any: it is sized to the vocabulary up front and,
+ * when a token past its end is counted, grown to at least the vocabulary's current size at once.
+ * Deeper nodes are the same as those of the {@link MapTrieCounter}: maps at the second level and arrays below that,
+ * since those levels are far too sparse to index densely.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class DenseTrieCounter extends AbstractTrie {
+
+	private static final long serialVersionUID = -6371529734061429475L;
+
+	private static final double GROWTH_FACTOR = 1.5;
+	private static final int MAX_DEPTH_MAP_TRIE = 1;
+
+	private final Vocabulary vocabulary;
+	private Object[] successors;
+	private int[] successorCounts;
+	private int size;
+	private TopSuccessors topIndex;
+
+	public DenseTrieCounter() {
+		this(16);
+	}
+
+	public DenseTrieCounter(int initSize) {
+		this(null, initSize);
+	}
+
+	/**
+	 * Creates a counter whose root is sized to (and grows with) {@code vocabulary}
+	 */
+	public DenseTrieCounter(Vocabulary vocabulary) {
+		this(vocabulary, Math.max(16, vocabulary.size()));
+	}
+
+	DenseTrieCounter(Vocabulary vocabulary, int initSize) {
+		super();
+		this.vocabulary = vocabulary;
+		this.successors = new Object[initSize];
+		this.successorCounts = new int[initSize];
+	}
+
+	@Override
+	public List<Integer> getSuccessors() {
+		List<Integer> successors = new ArrayList<>(this.size);
+		for (int i = 0; i < this.successors.length; i++) {
+			if (this.successors[i] != null) successors.add(i);
+		}
+		return successors;
+	}
+
+	@Override
+	public Object getSuccessor(int key) {
+		return key >= 0 && key < this.successors.length ? this.successors[key] : null;
+	}
+
+	@Override
+	int getCountOf(int key) {
+		int[] successorCounts = this.successorCounts;
+		return key >= 0 && key < successorCounts.length ? successorCounts[key] : 0;
+	}
+
+	@Override
+	void successorCountChanged(int key, int count) {
+		if (key >= 0 && key < this.successorCounts.length) this.successorCounts[key] = count;
+	}
+
+	@Override
+	public void forEachSuccessor(SuccessorVisitor visitor) {
+		for (int i = 0; i < this.successors.length; i++) {
+			if (this.successors[i] != null) visitor.visit(i, this.successors[i]);
+		}
+	}
+
+	@Override
+	boolean indexesTopSuccessors() {
+		return true;
+	}
+
+	@Override
+	TopSuccessors getTopIndex() {
+		return this.topIndex;
+	}
+
+	@Override
+	void setTopIndex(TopSuccessors index) {
+		this.topIndex = index;
+	}
+
+	@Override
+	long estimateNodeBytes() {
+		return estimateNodeBytes(20) + 2*CounterStatistics.arrayBytes(this.successors.length, 4);
+	}
+
+	@Override
+	AbstractTrie makeNext(int depth) {
+		if (depth <= MAX_DEPTH_MAP_TRIE) return new MapTrieCounter(1);
+		else return new ArrayTrieCounter();
+	}
+
+	@Override
+	void putSuccessor(int key, Object o) {
+		if (key < 0) throw new IllegalArgumentException(getClass().getSimpleName() + "s only store non-negative tokens, found: " + key);
+		if (key >= this.successors.length) grow(key + 1);
+		if (this.successors[key] == null) this.size++;
+		this.successors[key] = o;
+		this.successorCounts[key] = getCount(o);
+	}
+
+	private void grow(int minLength) {
+		int newLen = Math.max(minLength, (int) (this.successors.length * GROWTH_FACTOR) + 1);
+		if (this.vocabulary != null) newLen = Math.max(newLen, this.vocabulary.size());
+		// Counts first, so that concurrent lookups of tokens past the old end never find a successor without its count
+		this.successorCounts = Arrays.copyOf(this.successorCounts, newLen);
+		this.successors = Arrays.copyOf(this.successors, newLen);
+	}
+
+	@Override
+	void ensureCapacity(int successors) {
+		int length = Math.max(16, successors);
+		if (this.vocabulary != null) length = Math.max(length, this.vocabulary.size());
+		this.successors = new Object[length];
+		this.successorCounts = new int[length];
+		this.size = 0;
+		this.topIndex = null;
+	}
+
+	@Override
+	void removeSuccessor(int key) {
+		if (key < 0 || key >= this.successors.length || this.successors[key] == null) return;
+		this.successors[key] = null;
+		this.successorCounts[key] = 0;
+		this.size--;
+	}
+}
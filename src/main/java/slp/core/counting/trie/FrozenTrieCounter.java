@@ -0,0 +1,595 @@
+package slp.core.counting.trie;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import slp.core.counting.Counter;
+import slp.core.util.Util;
+
+/**
+ * Immutable, array-packed trie produced by {@link Counter#freeze()} from a trained counter.<br /><br />
+ *
+ * Nodes are laid out in breadth-first order in parallel int arrays (token key, count, context count and the index of the first child),
+ * so the children of every node form a contiguous range that is sorted by key and can be binary-searched.
+ * The arrays are allocated off-heap (as direct buffers), which keeps even very large counters out of reach of the garbage collector.
+ * Chains stored as {@code int[]} leaves in an {@link AbstractTrie} are expanded into regular nodes.<br />
+ * Nodes with many successors additionally store their distinct-counts and a permutation of their children by descending count,
+ * so that {@link #getDistinctCounts} and {@link #getTopSuccessors} take constant and O(k) time respectively;
+ * for all other nodes these are computed by scanning their (few) children.
+ * <br /><br />
+ * Lookups behave like those on the original counter; {@link #count} and {@link #unCount} throw an {@link UnsupportedOperationException}.
+ * <br /><br />
+ * Since the serialized form is just these arrays, a stored frozen counter can also be memory-mapped with {@link #map(FileChannel, long)}
+ * rather than read: nodes are then only paged in from disk when first visited, and the pages are shared by all processes mapping the same file.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class FrozenTrieCounter implements Counter {
+
+	private static final long serialVersionUID = -3170471233735932291L;
+
+	// Nodes with at least this many children store their distinct-counts and successor ordering explicitly
+	private static final int WIDE_NODE = 16;
+	private static final int COC_RANGE = 4;
+
+	private int nodes;
+	private int cutoff;
+	private int[][] nCounts;
+
+	private IntBuffer keys;
+	private IntBuffer counts;
+	private IntBuffer contextCounts;
+	private IntBuffer firstChild;
+
+	private int[] wideNodes;
+	private IntBuffer wideCoCs;
+	private IntBuffer wideOrderStart;
+	private IntBuffer wideOrder;
+
+	public FrozenTrieCounter() {
+		this.nodes = 0;
+		this.nCounts = new int[0][COC_RANGE];
+		this.wideNodes = new int[0];
+	}
+
+	/**
+	 * Freezes the tries rooted at {@code roots} into a single counter.
+	 * If more than one root is provided, these are assumed to have disjoint sets of successors (as is the case for the
+	 * shards in a {@link slp.core.counting.giga.VirtualCounter}) and are merged into a single root.
+	 */
+	public static FrozenTrieCounter of(List<? extends AbstractTrie> roots) {
+		FrozenTrieCounter frozen = new FrozenTrieCounter();
+		new Builder(frozen, roots).build();
+		return frozen;
+	}
+
+	/**
+	 * Returns a frozen counter whose nodes are memory-mapped (read-only) from {@code channel}, which must hold a frozen counter
+	 * in its {@link #writeExternal(ObjectOutput)} format starting at {@code offset}, as written through a big-endian {@link ObjectOutput}
+	 * (such as {@link java.io.ObjectOutputStream} or a {@link slp.core.counting.io.CounterFile} section).
+	 * Only the small, fixed-size parts of the counter are read up front, so this takes (near-)constant time regardless of the counter's size.
+	 * The mapping remains valid after {@code channel} is closed.
+	 * <br />
+	 * Note: every array is mapped separately and so is limited to 2GB, i.e. up to ~500M nodes, just like a counter allocated in memory.
+	 *
+	 * @throws IOException if the channel is too short to hold the counter it describes
+	 */
+	public static FrozenTrieCounter map(FileChannel channel, long offset) throws IOException {
+		ByteBuffer fixed = ByteBuffer.allocate(20);
+		read(channel, fixed, offset);
+		int nodes = fixed.getInt(0);
+		int wide = fixed.getInt(4);
+		int order = fixed.getInt(8);
+		FrozenTrieCounter frozen = new FrozenTrieCounter();
+		frozen.cutoff = fixed.getInt(12);
+		int orders = fixed.getInt(16);
+		if (nodes < 0 || wide < 0 || order < 0 || frozen.cutoff < 0 || orders < 0) throw new IOException("Corrupt frozen counter");
+		long position = offset + 20;
+		ByteBuffer nCounts = ByteBuffer.allocate(4 * COC_RANGE * orders);
+		read(channel, nCounts, position);
+		position += nCounts.capacity();
+		frozen.nCounts = new int[orders][COC_RANGE];
+		for (int i = 0; i < orders; i++) {
+			for (int c = 0; c < COC_RANGE; c++) frozen.nCounts[i][c] = nCounts.getInt(4 * (i * COC_RANGE + c));
+		}
+		if (nodes == 0) return frozen;
+
+		long size = 4L * (4L * nodes + 1 + 2L * wide + (long) wide * frozen.cutoff + order);
+		if (position + size > channel.size()) throw new IOException("Frozen counter is truncated");
+		frozen.nodes = nodes;
+		frozen.keys = map(channel, position, nodes);
+		frozen.counts = map(channel, position += 4L * nodes, nodes);
+		frozen.contextCounts = map(channel, position += 4L * nodes, nodes);
+		frozen.firstChild = map(channel, position += 4L * nodes, nodes + 1);
+		frozen.wideNodes = new int[wide];
+		map(channel, position += 4L * (nodes + 1), wide).get(frozen.wideNodes);
+		frozen.wideCoCs = map(channel, position += 4L * wide, wide * frozen.cutoff);
+		frozen.wideOrderStart = map(channel, position += 4L * wide * frozen.cutoff, wide);
+		frozen.wideOrder = map(channel, position += 4L * wide, order);
+		return frozen;
+	}
+
+	private static IntBuffer map(FileChannel channel, long position, int size) throws IOException {
+		return channel.map(MapMode.READ_ONLY, position, 4L * size).asIntBuffer();
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Frozen counter is truncated");
+		}
+	}
+
+	@Override
+	public Counter freeze() {
+		return this;
+	}
+
+	/*
+	 * Node navigation
+	 */
+	private int getChild(int node, int key) {
+		int lo = this.firstChild.get(node);
+		int hi = this.firstChild.get(node + 1) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int midKey = this.keys.get(mid);
+			if (midKey < key) lo = mid + 1;
+			else if (midKey > key) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	private int getNode(int[] tokens, int from, int to) {
+		int node = 0;
+		for (int i = from; i < to && node >= 0; i++) {
+			node = getChild(node, tokens[i]);
+		}
+		return node;
+	}
+
+	private int getFanout(int node) {
+		return this.firstChild.get(node + 1) - this.firstChild.get(node);
+	}
+
+	private int getWideIndex(int node) {
+		return Arrays.binarySearch(this.wideNodes, node);
+	}
+
+	/*
+	 * Lookups
+	 */
+	@Override
+	public int getCount() {
+		return this.nodes == 0 ? 0 : this.counts.get(0);
+	}
+
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		if (from == to) {
+			counts[0] = getCount();
+			counts[1] = getCount();
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		if (this.nodes == 0) return;
+		int context = getNode(tokens, from, to - 1);
+		if (context < 0) return;
+		counts[1] = this.contextCounts.get(context);
+		int node = getChild(context, tokens[to - 1]);
+		if (node >= 0) counts[0] = this.counts.get(node);
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		if (this.nCounts.length == 0) return 0;
+		int minN = Math.min(n, this.nCounts.length) - 1;
+		int minC = Math.min(count, COC_RANGE) - 1;
+		return this.nCounts[minN][minC];
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		return this.nodes == 0 ? 0 : getFanout(0);
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		return getSuccessorCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		if (this.nodes == 0) return 0;
+		int node = getNode(tokens, from, to);
+		return node < 0 ? 0 : getFanout(node);
+	}
+
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		int[] tokens = Util.toArray(indices);
+		int[] successors = new int[Math.min(limit, getSuccessorCount(tokens, 0, tokens.length))];
+		int found = getTopSuccessors(tokens, 0, tokens.length, successors);
+		List<Integer> topSuccessors = new ArrayList<>(found);
+		for (int i = 0; i < found; i++) topSuccessors.add(successors[i]);
+		return topSuccessors;
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		if (this.nodes == 0) return 0;
+		int node = getNode(tokens, from, to);
+		if (node < 0) return 0;
+		int first = this.firstChild.get(node);
+		int fanout = getFanout(node);
+		int limit = Math.min(fanout, successors.length);
+		int wide = getWideIndex(node);
+		if (wide >= 0) {
+			int start = this.wideOrderStart.get(wide);
+			for (int i = 0; i < limit; i++) {
+				successors[i] = this.keys.get(first + this.wideOrder.get(start + i));
+			}
+			return limit;
+		}
+		// Few successors: insertion-select the top ones, storing node indices first and converting to keys at the end
+		int found = 0;
+		for (int child = first; child < first + fanout; child++) {
+			int count = this.counts.get(child);
+			int pos = found;
+			while (pos > 0 && this.counts.get(successors[pos - 1]) < count) pos--;
+			if (pos >= limit) continue;
+			int end = Math.min(found, limit - 1);
+			System.arraycopy(successors, pos, successors, pos + 1, end - pos);
+			successors[pos] = child;
+			if (found < limit) found++;
+		}
+		for (int i = 0; i < found; i++) successors[i] = this.keys.get(successors[i]);
+		return found;
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		int[] distinctCounts = new int[range];
+		getDistinctCounts(Util.toArray(indices), 0, indices.size(), distinctCounts);
+		return distinctCounts;
+	}
+
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (this.nodes == 0) return;
+		int node = getNode(tokens, from, to);
+		if (node >= 0) writeDistinctCounts(node, distinctCounts);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		if (from == to) {
+			getCounts(tokens, from, to, counts);
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		if (this.nodes == 0) return;
+		int context = getNode(tokens, from, to - 1);
+		if (context < 0) return;
+		counts[1] = this.contextCounts.get(context);
+		int node = getChild(context, tokens[to - 1]);
+		if (node >= 0) counts[0] = this.counts.get(node);
+		if (distinctCounts.length > 0) writeDistinctCounts(context, distinctCounts);
+	}
+
+	private void writeDistinctCounts(int node, int[] distinctCounts) {
+		int range = distinctCounts.length;
+		int totalDistinct = getFanout(node);
+		// Mirrors AbstractTrie: the first (cutoff - 1) count-of-counts are reported individually, the remainder is aggregated
+		for (int i = 1; i < this.cutoff && i <= range - 1; i++) {
+			int countOfCountsI = getCoC(node, i);
+			distinctCounts[i - 1] = countOfCountsI;
+			totalDistinct -= countOfCountsI;
+		}
+		distinctCounts[range - 1] = totalDistinct;
+	}
+
+	private int getCoC(int node, int count) {
+		int wide = getWideIndex(node);
+		if (wide >= 0) return this.wideCoCs.get(wide * this.cutoff + count - 1);
+		int first = this.firstChild.get(node);
+		int end = this.firstChild.get(node + 1);
+		int coc = 0;
+		for (int child = first; child < end; child++) {
+			if (Math.min(this.counts.get(child), this.cutoff) == count) coc++;
+		}
+		return coc;
+	}
+
+	/*
+	 * Updates are not supported
+	 */
+	@Override
+	public void count(List<Integer> indices) {
+		throw new UnsupportedOperationException("Frozen counters cannot be updated");
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		throw new UnsupportedOperationException("Frozen counters cannot be updated");
+	}
+
+	@Override
+	public void count(int[] tokens, int from, int to) {
+		throw new UnsupportedOperationException("Frozen counters cannot be updated");
+	}
+
+	@Override
+	public void unCount(int[] tokens, int from, int to) {
+		throw new UnsupportedOperationException("Frozen counters cannot be updated");
+	}
+
+	/*
+	 * Storage
+	 */
+	private static IntBuffer allocate(int size) {
+		return ByteBuffer.allocateDirect(4 * Math.max(size, 1)).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	private void allocate(int nodes, int wide, int order) {
+		this.nodes = nodes;
+		this.keys = allocate(nodes);
+		this.counts = allocate(nodes);
+		this.contextCounts = allocate(nodes);
+		this.firstChild = allocate(nodes + 1);
+		this.wideNodes = new int[wide];
+		this.wideCoCs = allocate(wide * this.cutoff);
+		this.wideOrderStart = allocate(wide);
+		this.wideOrder = allocate(order);
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(this.nodes);
+		out.writeInt(this.wideNodes.length);
+		out.writeInt(this.wideOrder == null ? 0 : this.wideOrder.capacity());
+		out.writeInt(this.cutoff);
+		out.writeInt(this.nCounts.length);
+		for (int[] nCount : this.nCounts) {
+			for (int c : nCount) out.writeInt(c);
+		}
+		if (this.nodes == 0) return;
+		writeBuffer(out, this.keys, this.nodes);
+		writeBuffer(out, this.counts, this.nodes);
+		writeBuffer(out, this.contextCounts, this.nodes);
+		writeBuffer(out, this.firstChild, this.nodes + 1);
+		for (int node : this.wideNodes) out.writeInt(node);
+		writeBuffer(out, this.wideCoCs, this.wideNodes.length * this.cutoff);
+		writeBuffer(out, this.wideOrderStart, this.wideNodes.length);
+		writeBuffer(out, this.wideOrder, this.wideOrder.capacity());
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int nodes = in.readInt();
+		int wide = in.readInt();
+		int order = in.readInt();
+		this.cutoff = in.readInt();
+		this.nCounts = new int[in.readInt()][COC_RANGE];
+		for (int[] nCount : this.nCounts) {
+			for (int i = 0; i < nCount.length; i++) nCount[i] = in.readInt();
+		}
+		if (nodes == 0) return;
+		allocate(nodes, wide, order);
+		readBuffer(in, this.keys, nodes);
+		readBuffer(in, this.counts, nodes);
+		readBuffer(in, this.contextCounts, nodes);
+		readBuffer(in, this.firstChild, nodes + 1);
+		for (int i = 0; i < wide; i++) this.wideNodes[i] = in.readInt();
+		readBuffer(in, this.wideCoCs, wide * this.cutoff);
+		readBuffer(in, this.wideOrderStart, wide);
+		readBuffer(in, this.wideOrder, order);
+	}
+
+	private static void writeBuffer(ObjectOutput out, IntBuffer buffer, int size) throws IOException {
+		for (int i = 0; i < size; i++) out.writeInt(buffer.get(i));
+	}
+
+	private static void readBuffer(ObjectInput in, IntBuffer buffer, int size) throws IOException {
+		for (int i = 0; i < size; i++) buffer.put(i, in.readInt());
+	}
+
+	/**
+	 * Lays out one or more {@link AbstractTrie}s in breadth-first order.
+	 * A first pass sizes every level so that all storage can be allocated up front;
+	 * the second pass fills the arrays one level at a time.
+	 * Nodes-to-be are represented by their source: either an {@link AbstractTrie}, or a position in an {@code int[]} chain.
+	 */
+	private static class Builder {
+		private final FrozenTrieCounter target;
+		private final List<? extends AbstractTrie> roots;
+
+		private int[] levelSizes = new int[8];
+		private int depth = 0;
+		private int wide = 0;
+		private int order = 0;
+
+		Builder(FrozenTrieCounter target, List<? extends AbstractTrie> roots) {
+			this.target = target;
+			this.roots = roots;
+		}
+
+		void build() {
+			// First pass: size all levels
+			int rootFanout = 0;
+			for (AbstractTrie root : this.roots) {
+				rootFanout += fanout(root);
+				root.forEachSuccessor((key, successor) -> size(successor, 1));
+			}
+			addLevel(0);
+			if (rootFanout >= WIDE_NODE) {
+				this.wide++;
+				this.order += rootFanout;
+			}
+			int nodes = 0;
+			for (int d = 0; d < this.depth; d++) nodes += this.levelSizes[d];
+			this.target.cutoff = Math.max(1, AbstractTrie.COUNT_OF_COUNTS_CUTOFF);
+			this.target.allocate(nodes, this.wide, this.order);
+			this.target.nCounts = new int[Math.max(0, this.depth - 1)][COC_RANGE];
+
+			// Second pass: fill level by level
+			FrozenTrieCounter t = this.target;
+			int rootCount = 0;
+			int rootContext = 0;
+			for (AbstractTrie root : this.roots) {
+				rootCount += root.getCount();
+				rootContext += root.getContextCount();
+			}
+			t.keys.put(0, -1);
+			t.counts.put(0, rootCount);
+			t.contextCounts.put(0, rootContext);
+
+			Object[] level = { null };
+			int[] positions = { 0 };
+			int id = 0;
+			int next = 1;
+			int wideIx = 0;
+			int orderIx = 0;
+			for (int d = 0; d < this.depth; d++) {
+				int nextSize = d + 1 < this.depth ? this.levelSizes[d + 1] : 0;
+				Object[] nextLevel = new Object[nextSize];
+				int[] nextPositions = new int[nextSize];
+				int nextIx = 0;
+				for (int i = 0; i < level.length; i++, id++) {
+					int[] childKeys;
+					Object[] children;
+					if (d == 0) {
+						childKeys = sortedKeys(this.roots);
+						children = new Object[childKeys.length];
+						for (int c = 0; c < childKeys.length; c++) {
+							for (AbstractTrie root : this.roots) {
+								Object child = root.getSuccessor(childKeys[c]);
+								if (child != null) children[c] = child;
+							}
+						}
+					}
+					else if (level[i] instanceof AbstractTrie) {
+						AbstractTrie node = (AbstractTrie) level[i];
+						childKeys = sortedKeys(Arrays.asList(node));
+						children = new Object[childKeys.length];
+						for (int c = 0; c < childKeys.length; c++) children[c] = node.getSuccessor(childKeys[c]);
+					}
+					else {
+						int[] chain = (int[]) level[i];
+						int pos = positions[i];
+						if (pos + 1 < chain.length) {
+							childKeys = new int[] { chain[pos + 1] };
+							children = new Object[] { chain };
+						}
+						else {
+							childKeys = new int[0];
+							children = new Object[0];
+						}
+					}
+					t.firstChild.put(id, next);
+					for (int c = 0; c < childKeys.length; c++, next++) {
+						Object child = children[c];
+						int count;
+						int context;
+						int position = 0;
+						if (child instanceof AbstractTrie) {
+							count = ((AbstractTrie) child).getCount();
+							context = ((AbstractTrie) child).getContextCount();
+						}
+						else {
+							int[] chain = (int[]) child;
+							// Children of an AbstractTrie start at the head of their chain, children of a chain one position further
+							position = level[i] instanceof int[] ? positions[i] + 1 : 0;
+							count = chain[0];
+							context = position + 1 < chain.length ? chain[0] : 0;
+						}
+						t.keys.put(next, childKeys[c]);
+						t.counts.put(next, count);
+						t.contextCounts.put(next, context);
+						t.nCounts[d][Math.min(count, COC_RANGE) - 1]++;
+						nextLevel[nextIx] = child;
+						nextPositions[nextIx++] = position;
+					}
+					if (childKeys.length >= WIDE_NODE) {
+						t.wideNodes[wideIx] = id;
+						t.wideOrderStart.put(wideIx, orderIx);
+						int first = t.firstChild.get(id);
+						long[] byCount = new long[childKeys.length];
+						for (int c = 0; c < childKeys.length; c++) {
+							int count = t.counts.get(first + c);
+							t.wideCoCs.put(wideIx * t.cutoff + Math.min(count, t.cutoff) - 1,
+									t.wideCoCs.get(wideIx * t.cutoff + Math.min(count, t.cutoff) - 1) + 1);
+							byCount[c] = ((long) (Integer.MAX_VALUE - count) << 32) | c;
+						}
+						Arrays.sort(byCount);
+						for (int c = 0; c < byCount.length; c++) t.wideOrder.put(orderIx++, (int) byCount[c]);
+						wideIx++;
+					}
+				}
+				level = nextLevel;
+				positions = nextPositions;
+			}
+			t.firstChild.put(nodes, next);
+		}
+
+		private void size(Object successor, int depth) {
+			if (successor instanceof AbstractTrie) {
+				AbstractTrie node = (AbstractTrie) successor;
+				addLevel(depth);
+				int fanout = fanout(node);
+				if (fanout >= WIDE_NODE) {
+					this.wide++;
+					this.order += fanout;
+				}
+				node.forEachSuccessor((key, next) -> size(next, depth + 1));
+			}
+			else {
+				int[] chain = (int[]) successor;
+				for (int i = 0; i < chain.length; i++) addLevel(depth + i);
+			}
+		}
+
+		private void addLevel(int depth) {
+			if (depth >= this.levelSizes.length) this.levelSizes = Arrays.copyOf(this.levelSizes, 2 * depth);
+			this.levelSizes[depth]++;
+			this.depth = Math.max(this.depth, depth + 1);
+		}
+
+		private static int fanout(AbstractTrie node) {
+			int[] fanout = { 0 };
+			node.forEachSuccessor((key, successor) -> fanout[0]++);
+			return fanout[0];
+		}
+
+		private static int[] sortedKeys(List<? extends AbstractTrie> nodes) {
+			int size = 0;
+			for (AbstractTrie node : nodes) size += fanout(node);
+			int[] keys = new int[size];
+			int[] ix = { 0 };
+			for (AbstractTrie node : nodes) node.forEachSuccessor((key, successor) -> keys[ix[0]++] = key);
+			Arrays.sort(keys);
+			return keys;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package slp.core.counting.trie;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+/**
+ * Large node of the adaptive trie family (see {@link AdaptiveTrieCounter}): an open-addressed int hash map,
+ * for nodes with more successors than a {@link SortedTrieCounter} can search quickly.
+ * Unlike the {@link MapTrieCounter}, keeps no separate ordering of its successors.
+ * Shrinks back into a {@link SortedTrieCounter} when it has few successors left.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class HashTrieCounter extends AbstractTrie {
+
+	private static final long serialVersionUID = -3278235585436647566L;
+
+	private Int2ObjectOpenHashMap<Object> map;
+	private TopSuccessors topIndex;
+
+	public HashTrieCounter() {
+		this(1);
+	}
+
+	public HashTrieCounter(int initSize) {
+		super();
+		this.map = new Int2ObjectOpenHashMap<>(initSize);
+	}
+
+	@Override
+	public List<Integer> getSuccessors() {
+		return new ArrayList<>(this.map.keySet());
+	}
+
+	@Override
+	public Object getSuccessor(int key) {
+		return this.map.get(key);
+	}
+
+	@Override
+	public void forEachSuccessor(SuccessorVisitor visitor) {
+		for (Int2ObjectMap.Entry<Object> entry : this.map.int2ObjectEntrySet()) {
+			visitor.visit(entry.getIntKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	boolean indexesTopSuccessors() {
+		return true;
+	}
+
+	@Override
+	TopSuccessors getTopIndex() {
+		return this.topIndex;
+	}
+
+	@Override
+	void setTopIndex(TopSuccessors index) {
+		this.topIndex = index;
+	}
+
+	@Override
+	AbstractTrie makeNext(int depth) {
+		return new InlineTrieCounter();
+	}
+
+	@Override
+	AbstractTrie adapt(int key) {
+		if (this.map.size() <= SortedTrieCounter.CAPACITY / 2) return moveTo(new SortedTrieCounter(SortedTrieCounter.CAPACITY));
+		return this;
+	}
+
+	@Override
+	long estimateNodeBytes() {
+		return estimateNodeBytes(8) + estimateMapBytes(this.map);
+	}
+
+	@Override
+	void putSuccessor(int key, Object o) {
+		this.map.put(key, o);
+	}
+
+	@Override
+	void removeSuccessor(int key) {
+		this.map.remove(key);
+	}
+
+	@Override
+	int getTypeCode() {
+		return HASH_NODE;
+	}
+
+	@Override
+	void ensureCapacity(int successors) {
+		this.map = new Int2ObjectOpenHashMap<>(successors);
+		this.topIndex = null;
+	}
+}
@@ -0,0 +1,140 @@
+package slp.core.counting.trie;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Smallest node of the adaptive trie family (see {@link AdaptiveTrieCounter}): stores up to {@link #CAPACITY}
+ * successors directly in its fields, sorted by key, so no key or successor arrays have to be allocated or dereferenced.
+ * Most nodes deep in the trie have only one or two successors.
+ * Grows into a {@link SortedTrieCounter} when full.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class InlineTrieCounter extends AbstractTrie {
+
+	private static final long serialVersionUID = -5591086178921825636L;
+
+	static final int CAPACITY = 4;
+
+	private int size;
+	private int k0, k1, k2, k3;
+	private Object s0, s1, s2, s3;
+
+	public InlineTrieCounter() {
+		super();
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	private int key(int i) {
+		switch (i) {
+			case 0: return this.k0;
+			case 1: return this.k1;
+			case 2: return this.k2;
+			default: return this.k3;
+		}
+	}
+
+	private Object successor(int i) {
+		switch (i) {
+			case 0: return this.s0;
+			case 1: return this.s1;
+			case 2: return this.s2;
+			default: return this.s3;
+		}
+	}
+
+	private void set(int i, int key, Object successor) {
+		switch (i) {
+			case 0: this.k0 = key; this.s0 = successor; break;
+			case 1: this.k1 = key; this.s1 = successor; break;
+			case 2: this.k2 = key; this.s2 = successor; break;
+			default: this.k3 = key; this.s3 = successor; break;
+		}
+	}
+
+	private int indexOf(int key) {
+		for (int i = 0; i < this.size; i++) {
+			int k = key(i);
+			if (k == key) return i;
+			else if (k > key) return -i - 1;
+		}
+		return -this.size - 1;
+	}
+
+	@Override
+	public List<Integer> getSuccessors() {
+		List<Integer> successors = new ArrayList<>(this.size);
+		for (int i = 0; i < this.size; i++) successors.add(key(i));
+		return successors;
+	}
+
+	@Override
+	public Object getSuccessor(int key) {
+		if (this.size > 0 && this.k0 == key) return this.s0;
+		if (this.size > 1 && this.k1 == key) return this.s1;
+		if (this.size > 2 && this.k2 == key) return this.s2;
+		if (this.size > 3 && this.k3 == key) return this.s3;
+		return null;
+	}
+
+	@Override
+	public void forEachSuccessor(SuccessorVisitor visitor) {
+		for (int i = 0; i < this.size; i++) visitor.visit(key(i), successor(i));
+	}
+
+	@Override
+	AbstractTrie makeNext(int depth) {
+		return new InlineTrieCounter();
+	}
+
+	@Override
+	long estimateNodeBytes() {
+		return estimateNodeBytes(36);
+	}
+
+	@Override
+	AbstractTrie adapt(int key) {
+		if (this.size == CAPACITY && getSuccessor(key) == null) return moveTo(new SortedTrieCounter(2*CAPACITY));
+		return this;
+	}
+
+	@Override
+	void putSuccessor(int key, Object o) {
+		int ix = indexOf(key);
+		if (ix >= 0) {
+			set(ix, key, o);
+			return;
+		}
+		if (this.size == CAPACITY) {
+			throw new IllegalStateException("Inline trie node is full; it should have been adapted first");
+		}
+		ix = -ix - 1;
+		for (int i = this.size; i > ix; i--) set(i, key(i - 1), successor(i - 1));
+		set(ix, key, o);
+		this.size++;
+	}
+
+	@Override
+	void removeSuccessor(int key) {
+		int ix = indexOf(key);
+		if (ix < 0) return;
+		for (int i = ix; i < this.size - 1; i++) set(i, key(i + 1), successor(i + 1));
+		this.size--;
+		set(this.size, 0, null);
+	}
+
+	@Override
+	int getTypeCode() {
+		return INLINE_NODE;
+	}
+
+	@Override
+	void ensureCapacity(int successors) {
+		while (this.size > 0) set(--this.size, 0, null);
+	}
+}
@@ -0,0 +1,463 @@
+package slp.core.counting.trie;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import slp.core.counting.CountOfCounts;
+import slp.core.counting.Counter;
+import slp.core.util.Util;
+
+/**
+ * Trie counter with snapshot isolation: readers get a consistent, lock-free view of the counts while a writer updates them.<br /><br />
+ *
+ * The trie is persistent: nodes are never modified once published. Every update (or batch of updates, such as all sequences in a file)
+ * instead copies the nodes along the paths it changes, reusing the rest of the trie, and then publishes the new root (along with
+ * its count-of-counts) in a single volatile write. Nodes copied within the same batch are updated in place, so the cost of copying is
+ * paid once per batch rather than per sequence. Writers are serialized; readers never lock and never observe a partially applied batch.
+ * <br />
+ * Every lookup reads from the latest published version. Callers that need several lookups to agree with each other
+ * (e.g. to compute one completion) should use {@link #snapshot()}, which pins a version in constant time.
+ * Models do not do so by themselves: e.g. {@link slp.core.modeling.ngram.NGramModel#predictAtIndex(List, int)} looks up the top successors
+ * and then models each of them, so a model predicting from this counter while it is updated may read these from different versions.
+ * Versions that are no longer referenced are simply garbage collected.
+ * <br /><br />
+ * Note: successors are stored in arrays sorted by key, so every batch copies the (full) successor arrays of the nodes it changes,
+ * including the root's; batching updates keeps this overhead small. Unique sequences are not stored as compact arrays,
+ * so this counter uses more memory than e.g. the {@link MapTrieCounter}.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class SnapshotTrieCounter implements Counter {
+
+	private static final long serialVersionUID = 4409617405963528781L;
+
+	// Versions are unique across counters, so that a counter and its snapshots never consider each other's nodes their own
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	private static final int[] NO_KEYS = new int[0];
+	private static final Node[] NO_NODES = new Node[0];
+
+	private volatile Version current;
+
+	public SnapshotTrieCounter() {
+		this.current = new Version(new Node(VERSIONS.incrementAndGet(), AbstractTrie.COUNT_OF_COUNTS_CUTOFF), new int[0][]);
+	}
+
+	private SnapshotTrieCounter(Version version) {
+		this.current = version;
+	}
+
+	/**
+	 * Returns a counter with the counts of the current version of this counter, in constant time.
+	 * The snapshot does not observe any later updates to this counter, nor does this counter observe updates to the snapshot.
+	 */
+	public SnapshotTrieCounter snapshot() {
+		return new SnapshotTrieCounter(this.current);
+	}
+
+	/**
+	 * A published version of the trie: its root and count-of-counts table, neither of which is ever modified.
+	 */
+	private static final class Version {
+		final Node root;
+		// Per sequence length, the number of sequences seen once, twice, up to CountOfCounts.RANGE (or more) times
+		final int[][] nCounts;
+
+		Version(Node root, int[][] nCounts) {
+			this.root = root;
+			this.nCounts = nCounts;
+		}
+
+		Node getNode(int[] tokens, int from, int to) {
+			Node node = this.root;
+			for (int i = from; i < to && node != null; i++) {
+				node = node.getSuccessor(tokens[i]);
+			}
+			return node;
+		}
+	}
+
+	static final class Node {
+		// The batch that created this copy, which is the only one that may modify it
+		final long version;
+		int count;
+		int contextCount;
+		int size;
+		int[] keys;
+		Node[] successors;
+		// Number of successors seen once, twice, up to the COUNT_OF_COUNTS_CUTOFF
+		int[] cocs;
+
+		Node(long version, int cutoff) {
+			this.version = version;
+			this.keys = NO_KEYS;
+			this.successors = NO_NODES;
+			this.cocs = new int[cutoff];
+		}
+
+		private Node(long version, Node node) {
+			this.version = version;
+			this.count = node.count;
+			this.contextCount = node.contextCount;
+			this.size = node.size;
+			this.keys = Arrays.copyOf(node.keys, node.size);
+			this.successors = Arrays.copyOf(node.successors, node.size);
+			this.cocs = node.cocs.clone();
+		}
+
+		/**
+		 * Returns this node if it was created by batch {@code version}, or else a copy owned by that batch
+		 */
+		Node own(long version) {
+			return this.version == version ? this : new Node(version, this);
+		}
+
+		Node getSuccessor(int key) {
+			int ix = Arrays.binarySearch(this.keys, 0, this.size, key);
+			return ix < 0 ? null : this.successors[ix];
+		}
+
+		/**
+		 * Returns the successor at {@code key}, owned by batch {@code version}, replacing (or first adding) it in this (owned) node
+		 */
+		Node ownSuccessor(int key, long version) {
+			int ix = Arrays.binarySearch(this.keys, 0, this.size, key);
+			if (ix >= 0) {
+				Node successor = this.successors[ix].own(version);
+				this.successors[ix] = successor;
+				return successor;
+			}
+			ix = -ix - 1;
+			if (this.size == this.keys.length) {
+				int capacity = Math.max(2, this.size + (this.size >> 1));
+				this.keys = Arrays.copyOf(this.keys, capacity);
+				this.successors = Arrays.copyOf(this.successors, capacity);
+			}
+			System.arraycopy(this.keys, ix, this.keys, ix + 1, this.size - ix);
+			System.arraycopy(this.successors, ix, this.successors, ix + 1, this.size - ix);
+			Node successor = new Node(version, this.cocs.length);
+			this.keys[ix] = key;
+			this.successors[ix] = successor;
+			this.size++;
+			return successor;
+		}
+
+		void removeSuccessor(int key) {
+			int ix = Arrays.binarySearch(this.keys, 0, this.size, key);
+			if (ix < 0) return;
+			System.arraycopy(this.keys, ix + 1, this.keys, ix, this.size - ix - 1);
+			System.arraycopy(this.successors, ix + 1, this.successors, ix, this.size - ix - 1);
+			this.size--;
+			this.successors[this.size] = null;
+		}
+
+		void updateCoCs(int count, int adj) {
+			int cutoff = this.cocs.length;
+			if (cutoff == 0) return;
+			int currIndex = Math.min(count, cutoff);
+			int prevIndex = Math.min(count - adj, cutoff);
+			if (currIndex != prevIndex) {
+				if (currIndex >= 1) this.cocs[currIndex - 1]++;
+				if (prevIndex >= 1) this.cocs[prevIndex - 1]--;
+			}
+		}
+	}
+
+	/*
+	 * Lookups
+	 */
+	@Override
+	public int getCount() {
+		return this.current.root.count;
+	}
+
+	@Override
+	public long[] getCounts(List<Integer> indices) {
+		long[] counts = new long[2];
+		getCounts(Util.toArray(indices), 0, indices.size(), counts);
+		return counts;
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts) {
+		getCounts(tokens, from, to, counts, new int[0]);
+	}
+
+	@Override
+	public int getCountofCount(int n, int count) {
+		int[][] nCounts = this.current.nCounts;
+		if (nCounts.length == 0 || n <= 0 || count <= 0) return 0;
+		int minN = Math.min(n, nCounts.length) - 1;
+		int minC = Math.min(count, CountOfCounts.RANGE) - 1;
+		return nCounts[minN][minC];
+	}
+
+	@Override
+	public int getSuccessorCount() {
+		return this.current.root.size;
+	}
+
+	@Override
+	public int getSuccessorCount(List<Integer> indices) {
+		return getSuccessorCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public int getSuccessorCount(int[] tokens, int from, int to) {
+		Node node = this.current.getNode(tokens, from, to);
+		return node == null ? 0 : node.size;
+	}
+
+	@Override
+	public List<Integer> getTopSuccessors(List<Integer> indices, int limit) {
+		int[] tokens = Util.toArray(indices);
+		int[] successors = new int[Math.min(limit, getSuccessorCount(tokens, 0, tokens.length))];
+		int found = getTopSuccessors(tokens, 0, tokens.length, successors);
+		List<Integer> topSuccessors = new ArrayList<>(found);
+		for (int i = 0; i < found; i++) topSuccessors.add(successors[i]);
+		return topSuccessors;
+	}
+
+	@Override
+	public int getTopSuccessors(int[] tokens, int from, int to, int[] successors) {
+		Node node = this.current.getNode(tokens, from, to);
+		if (node == null || successors.length == 0) return 0;
+		// Bounded insertion-selection by descending count (ties broken by ascending key)
+		int limit = successors.length;
+		int[] counts = new int[limit];
+		int found = 0;
+		for (int i = 0; i < node.size; i++) {
+			int count = node.successors[i].count;
+			int key = node.keys[i];
+			int pos = found;
+			while (pos > 0 && (counts[pos - 1] < count || (counts[pos - 1] == count && successors[pos - 1] > key))) pos--;
+			if (pos >= limit) continue;
+			int end = Math.min(found, limit - 1);
+			System.arraycopy(successors, pos, successors, pos + 1, end - pos);
+			System.arraycopy(counts, pos, counts, pos + 1, end - pos);
+			successors[pos] = key;
+			counts[pos] = count;
+			if (found < limit) found++;
+		}
+		return found;
+	}
+
+	@Override
+	public int[] getDistinctCounts(int range, List<Integer> indices) {
+		int[] distinctCounts = new int[range];
+		getDistinctCounts(Util.toArray(indices), 0, indices.size(), distinctCounts);
+		return distinctCounts;
+	}
+
+	@Override
+	public void getDistinctCounts(int[] tokens, int from, int to, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		Node node = this.current.getNode(tokens, from, to);
+		if (node != null) writeDistinctCounts(node, distinctCounts);
+	}
+
+	@Override
+	public void getCounts(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
+		Arrays.fill(distinctCounts, 0);
+		Version version = this.current;
+		if (from == to) {
+			counts[0] = version.root.count;
+			counts[1] = version.root.count;
+			return;
+		}
+		counts[0] = 0;
+		counts[1] = 0;
+		Node context = version.getNode(tokens, from, to - 1);
+		if (context == null) return;
+		counts[1] = context.contextCount;
+		Node node = context.getSuccessor(tokens[to - 1]);
+		if (node != null) counts[0] = node.count;
+		if (distinctCounts.length > 0) writeDistinctCounts(context, distinctCounts);
+	}
+
+	@Override
+	public int getSuffixCounts(int[] tokens, int from, int to, long[][] counts, int[][] distinctCounts) {
+		// All suffixes are looked up in the same version
+		SnapshotTrieCounter snapshot = snapshot();
+		int found = 0;
+		for (int i = to - 1; i >= from; i--, found++) {
+			snapshot.getCounts(tokens, i, to, counts[found], distinctCounts[found]);
+			if (counts[found][1] == 0) break;
+		}
+		return found;
+	}
+
+	private static void writeDistinctCounts(Node node, int[] distinctCounts) {
+		if (node.size == 0) return;
+		int range = distinctCounts.length;
+		int totalDistinct = node.size;
+		for (int i = 1; i < node.cocs.length && i <= range - 1; i++) {
+			int countOfCountsI = node.cocs[i - 1];
+			distinctCounts[i - 1] = countOfCountsI;
+			totalDistinct -= countOfCountsI;
+		}
+		distinctCounts[range - 1] = totalDistinct;
+	}
+
+	/*
+	 * Updates
+	 */
+	@Override
+	public void count(List<Integer> indices) {
+		count(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public void unCount(List<Integer> indices) {
+		unCount(Util.toArray(indices), 0, indices.size());
+	}
+
+	@Override
+	public synchronized void count(int[] tokens, int from, int to) {
+		Batch batch = new Batch();
+		batch.update(tokens, from, to, 1);
+		batch.publish();
+	}
+
+	@Override
+	public synchronized void unCount(int[] tokens, int from, int to) {
+		Batch batch = new Batch();
+		batch.update(tokens, from, to, -1);
+		batch.publish();
+	}
+
+	@Override
+	public synchronized void countSuffixes(int[] tokens, int from, int to) {
+		Batch batch = new Batch();
+		for (int i = from; i < to; i++) batch.update(tokens, i, to, 1);
+		batch.publish();
+	}
+
+	@Override
+	public synchronized void unCountSuffixes(int[] tokens, int from, int to) {
+		Batch batch = new Batch();
+		for (int i = from; i < to; i++) batch.update(tokens, i, to, -1);
+		batch.publish();
+	}
+
+	@Override
+	public synchronized void countBatch(List<List<Integer>> indices) {
+		Batch batch = new Batch();
+		for (List<Integer> sequence : indices) batch.update(Util.toArray(sequence), 0, sequence.size(), 1);
+		batch.publish();
+	}
+
+	@Override
+	public synchronized void unCountBatch(List<List<Integer>> indices) {
+		Batch batch = new Batch();
+		for (List<Integer> sequence : indices) batch.update(Util.toArray(sequence), 0, sequence.size(), -1);
+		batch.publish();
+	}
+
+	/**
+	 * A set of updates that is published at once, copying every node (and the count-of-counts) it changes at most once.
+	 * Only used by writers, which are serialized.
+	 */
+	private final class Batch {
+		private final long version = VERSIONS.incrementAndGet();
+		private final Node root = SnapshotTrieCounter.this.current.root.own(this.version);
+		private int[][] nCounts = copy(SnapshotTrieCounter.this.current.nCounts);
+
+		void update(int[] tokens, int from, int to, int adj) {
+			if (adj < 0) {
+				Node node = getNode(tokens, from, to);
+				if (node == null || node.count + adj < 0) {
+					System.out.println("Attempting to forget unknown event: " + Util.toList(tokens, from, to));
+					return;
+				}
+			}
+			Node node = this.root;
+			node.count += adj;
+			if (from < to) node.contextCount += adj;
+			for (int index = from; index < to; index++) {
+				Node next = node.ownSuccessor(tokens[index], this.version);
+				int count = next.count += adj;
+				if (index + 1 < to) next.contextCount += adj;
+				node.updateCoCs(count, adj);
+				updateCountOfCounts(index - from + 1, count, adj);
+				// The rest of the sequence is still walked (detached) to keep the count-of-counts up to date
+				if (count == 0) node.removeSuccessor(tokens[index]);
+				node = next;
+			}
+		}
+
+		private Node getNode(int[] tokens, int from, int to) {
+			Node node = this.root;
+			for (int i = from; i < to && node != null; i++) {
+				node = node.getSuccessor(tokens[i]);
+			}
+			return node;
+		}
+
+		private void updateCountOfCounts(int n, int count, int adj) {
+			int currIndex = Math.min(count, CountOfCounts.RANGE);
+			int prevIndex = Math.min(count - adj, CountOfCounts.RANGE);
+			if (currIndex == prevIndex) return;
+			if (n > this.nCounts.length) {
+				int length = this.nCounts.length;
+				this.nCounts = Arrays.copyOf(this.nCounts, n);
+				for (int i = length; i < n; i++) this.nCounts[i] = new int[CountOfCounts.RANGE];
+			}
+			if (currIndex > 0) this.nCounts[n - 1][currIndex - 1]++;
+			if (prevIndex > 0) this.nCounts[n - 1][prevIndex - 1]--;
+		}
+
+		void publish() {
+			SnapshotTrieCounter.this.current = new Version(this.root, this.nCounts);
+		}
+	}
+
+	private static int[][] copy(int[][] nCounts) {
+		int[][] copy = new int[nCounts.length][];
+		for (int i = 0; i < nCounts.length; i++) copy[i] = nCounts[i].clone();
+		return copy;
+	}
+
+	/*
+	 * Storage
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeNode(out, this.current.root);
+	}
+
+	private static void writeNode(ObjectOutput out, Node node) throws IOException {
+		out.writeInt(node.count);
+		out.writeInt(node.contextCount);
+		out.writeInt(node.size);
+		for (int i = 0; i < node.size; i++) {
+			out.writeInt(node.keys[i]);
+			writeNode(out, node.successors[i]);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		Batch batch = new Batch();
+		readNode(in, batch, batch.root, 0);
+		batch.publish();
+	}
+
+	private static void readNode(ObjectInput in, Batch batch, Node node, int depth) throws IOException {
+		node.count = in.readInt();
+		node.contextCount = in.readInt();
+		if (depth > 0) batch.updateCountOfCounts(depth, node.count, node.count);
+		int successors = in.readInt();
+		for (int i = 0; i < successors; i++) {
+			Node successor = node.ownSuccessor(in.readInt(), batch.version);
+			readNode(in, batch, successor, depth + 1);
+			node.updateCoCs(successor.count, successor.count);
+		}
+	}
+}
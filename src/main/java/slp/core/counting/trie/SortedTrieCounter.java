@@ -0,0 +1,49 @@
+package slp.core.counting.trie;
+
+/**
+ * Medium-sized node of the adaptive trie family (see {@link AdaptiveTrieCounter}): a sorted, binary-searched
+ * {@link ArrayTrieCounter} of up to {@link #CAPACITY} successors, whose keys fit in one or two cache lines.
+ * Grows into a {@link HashTrieCounter} when full and shrinks back into an {@link InlineTrieCounter} when nearly empty.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+public class SortedTrieCounter extends ArrayTrieCounter {
+
+	private static final long serialVersionUID = -7401429231851131421L;
+
+	static final int CAPACITY = 16;
+
+	public SortedTrieCounter() {
+		this(1);
+	}
+
+	public SortedTrieCounter(int initSize) {
+		super(initSize);
+	}
+
+	@Override
+	AbstractTrie makeNext(int depth) {
+		return new InlineTrieCounter();
+	}
+
+	@Override
+	AbstractTrie adapt(int key) {
+		int size = size();
+		if (size >= CAPACITY && getSuccessor(key) == null) return moveTo(new HashTrieCounter(2*CAPACITY));
+		else if (size < InlineTrieCounter.CAPACITY / 2) return moveTo(new InlineTrieCounter());
+		return this;
+	}
+
+	@Override
+	boolean indexesTopSuccessors() {
+		// Never reaches the index's fanout
+		return false;
+	}
+
+	@Override
+	int getTypeCode() {
+		return SORTED_NODE;
+	}
+
+}
@@ -0,0 +1,112 @@
+package slp.core.counting.trie;
+
+import slp.core.counting.CounterStatistics;
+
+/**
+ * Bounded index of a trie node's most frequent successors, in descending order of count (ties broken by ascending key).
+ * Built once by selection over all successors and then kept current as successor counts change:
+ * an increment only ever moves a successor up (or into) the index, so it is applied in O({@link #SIZE}).
+ * A decrement of an indexed successor may let an unindexed successor overtake it, in which case the index is discarded and rebuilt on demand.
+ * <br /><br />
+ * Not thread-safe by itself; the owning node guards it with its monitor.
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+final class TopSuccessors {
+
+	// Only nodes with at least this many successors keep an index; smaller nodes are cheap to select from directly
+	static final int FANOUT = 32;
+	// Number of successors indexed, which bounds both memory and the limit for which the index can be used
+	static final int SIZE = 32;
+
+	private final int[] keys;
+	private final int[] counts;
+	private int size;
+
+	/**
+	 * Creates an index from the (ordered) top successors of a node, which must hold all its successors if fewer than {@link #SIZE}.
+	 */
+	TopSuccessors(int[] keys, int[] counts, int size) {
+		this.keys = keys;
+		this.counts = counts;
+		this.size = size;
+	}
+
+	long estimateBytes() {
+		return CounterStatistics.objectBytes(12) + CounterStatistics.arrayBytes(this.keys.length, 4) + CounterStatistics.arrayBytes(this.counts.length, 4);
+	}
+
+	int copyTo(int[] successors) {
+		int end = Math.min(this.size, successors.length);
+		System.arraycopy(this.keys, 0, successors, 0, end);
+		return end;
+	}
+
+	/**
+	 * Applies a change of the count of successor {@code key} by {@code adj} to {@code count}.
+	 *
+	 * @return Whether the index is still exact; if not, it must be discarded
+	 */
+	boolean update(int key, int count, int adj) {
+		int ix = indexOf(key);
+		if (adj < 0) {
+			// Dropping out of the index can only happen if not all successors are indexed
+			if (ix < 0) return true;
+			if (count <= 0) {
+				if (this.size < SIZE) {
+					remove(ix);
+					return true;
+				}
+				return false;
+			}
+			this.counts[ix] = count;
+			while (ix + 1 < this.size && before(this.keys[ix + 1], this.counts[ix + 1], key, count)) {
+				swap(ix, ix + 1);
+				ix++;
+			}
+			// If a successor outside the index could now outrank the last one, we can no longer tell
+			return this.size < SIZE || ix < this.size - 1;
+		}
+		if (ix < 0) {
+			if (this.size == SIZE) {
+				if (!before(key, count, this.keys[SIZE - 1], this.counts[SIZE - 1])) return true;
+				this.size--;
+			}
+			ix = this.size++;
+			this.keys[ix] = key;
+		}
+		this.counts[ix] = count;
+		while (ix > 0 && before(key, count, this.keys[ix - 1], this.counts[ix - 1])) {
+			swap(ix, ix - 1);
+			ix--;
+		}
+		return true;
+	}
+
+	private int indexOf(int key) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.keys[i] == key) return i;
+		}
+		return -1;
+	}
+
+	private void remove(int ix) {
+		System.arraycopy(this.keys, ix + 1, this.keys, ix, this.size - ix - 1);
+		System.arraycopy(this.counts, ix + 1, this.counts, ix, this.size - ix - 1);
+		this.size--;
+	}
+
+	private void swap(int i, int j) {
+		int key = this.keys[i];
+		int count = this.counts[i];
+		this.keys[i] = this.keys[j];
+		this.counts[i] = this.counts[j];
+		this.keys[j] = key;
+		this.counts[j] = count;
+	}
+
+	private static boolean before(int key1, int count1, int key2, int count2) {
+		return count1 > count2 || (count1 == count2 && key1 < key2);
+	}
+}
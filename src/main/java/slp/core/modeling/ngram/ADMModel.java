@@ -1,7 +1,5 @@
 package slp.core.modeling.ngram;
 
-import java.util.List;
-
 import slp.core.counting.Counter;
 import slp.core.util.Pair;
 
@@ -24,15 +22,20 @@ public class ADMModel extends NGramModel {
 	}
 	
 	@Override
-	protected Pair<Double, Double> modelWithConfidence(List<Integer> in, long[] counts) {
+	protected int getDistinctCountRange() {
+		return 3;
+	}
+
+	@Override
+	protected Pair<Double, Double> modelWithConfidence(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
 		long count = counts[0];
 		long contextCount = counts[1];
 		
 		// Parameters for discount weight
-		int n1 = this.counter.getCountofCount(in.size(), 1);
-		int n2 = this.counter.getCountofCount(in.size(), 2);
-		int n3 = this.counter.getCountofCount(in.size(), 3);
-		int n4 = this.counter.getCountofCount(in.size(), 4);
+		int n1 = this.counter.getCountofCount(to - from, 1);
+		int n2 = this.counter.getCountofCount(to - from, 2);
+		int n3 = this.counter.getCountofCount(to - from, 3);
+		int n4 = this.counter.getCountofCount(to - from, 4);
 		double Y = (double) n1 / ((double) n1 + 2*n2);
 		double[] Ds = new double[] {
 			Y,
@@ -43,7 +46,7 @@ public class ADMModel extends NGramModel {
 		for (int i = 0; i < Ds.length; i++) {
 			if (Double.isNaN(Ds[i]) || Ds[i] < 0.25*(i + 1) || Ds[i] > i + 1) Ds[i] = 0.6 * (i + 1);
 		}
-		int[] Ns = this.counter.getDistinctCounts(3, in.subList(0, in.size() - 1));
+		int[] Ns = distinctCounts;
 		
 		// Probability calculation
 		double discount = count > 0 ? Ds[(int) (Math.min(count, Ds.length) - 1)] : 0.0;
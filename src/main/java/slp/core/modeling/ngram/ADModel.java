@@ -1,7 +1,5 @@
 package slp.core.modeling.ngram;
 
-import java.util.List;
-
 import slp.core.counting.Counter;
 import slp.core.util.Pair;
 
@@ -24,16 +22,20 @@ public class ADModel extends NGramModel {
 	}
 	
 	@Override
-	protected Pair<Double, Double> modelWithConfidence(List<Integer> in, long[] counts) {
+	protected int getDistinctCountRange() {
+		return 1;
+	}
+
+	@Override
+	protected Pair<Double, Double> modelWithConfidence(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
 		long count = counts[0];
 		long contextCount = counts[1];
 
 		// Parameters for discount weight
-		int n1 = this.counter.getCountofCount(in.size(), 1);
-		int n2 = this.counter.getCountofCount(in.size(), 2);
+		int n1 = this.counter.getCountofCount(to - from, 1);
+		int n2 = this.counter.getCountofCount(to - from, 2);
 		double D = (double) n1 / ((double) n1 + 2*n2);
-		int[] distinctContext = this.counter.getDistinctCounts(1, in.subList(0, in.size() - 1));
-		int N1Plus = distinctContext[0];
+		int N1Plus = distinctCounts[0];
 		
 		// Probability calculation
 		double MLEDisc = Math.max(0.0, count - D) / contextCount;
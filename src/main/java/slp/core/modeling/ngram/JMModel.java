@@ -1,7 +1,5 @@
 package slp.core.modeling.ngram;
 
-import java.util.List;
-
 import slp.core.counting.Counter;
 import slp.core.util.Pair;
 
@@ -39,7 +37,7 @@ public class JMModel extends NGramModel {
 	}
 
 	@Override
-	protected Pair<Double, Double> modelWithConfidence(List<Integer> in, long[] counts) {
+	protected Pair<Double, Double> modelWithConfidence(int[] tokens, int from, int to, long[] counts, int[] distinctCounts) {
 		long count = counts[0];
 		long contextCount = counts[1];
 		
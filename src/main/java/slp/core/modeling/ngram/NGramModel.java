@@ -14,12 +14,16 @@ import slp.core.modeling.AbstractModel;
 import slp.core.modeling.runners.ModelRunner;
 import slp.core.sequencing.NGramSequencer;
 import slp.core.util.Pair;
+import slp.core.util.Util;
 
 public abstract class NGramModel extends AbstractModel {
 	
 	protected final int order;
 	public Counter counter;
 
+	// Lookup buffers for modelAtIndex, per thread since models may be queried concurrently
+	private final ThreadLocal<Buffers> buffers;
+
 	public NGramModel() {
 		this(ModelRunner.DEFAULT_NGRAM_ORDER);
 	}
@@ -35,6 +39,7 @@ public abstract class NGramModel extends AbstractModel {
 	public NGramModel(int order, Counter counter) {
 		this.order = order;
 		this.counter = counter;
+		this.buffers = ThreadLocal.withInitial(() -> new Buffers(order, getDistinctCountRange()));
 	}
 
 	public Counter getCounter() {
@@ -55,10 +60,8 @@ public abstract class NGramModel extends AbstractModel {
 	
 	@Override
 	public void learnToken(List<Integer> input, int index) {
-		List<Integer> sequence = NGramSequencer.sequenceAt(input, index, this.order);
-		for (int i = 0; i < sequence.size(); i++) {
-			this.counter.count(sequence.subList(i, sequence.size()));
-		}
+		int[] sequence = Util.toArray(NGramSequencer.sequenceAt(input, index, this.order));
+		this.counter.countSuffixes(sequence, 0, sequence.length);
 	}
 	
 	@Override
@@ -68,28 +71,55 @@ public abstract class NGramModel extends AbstractModel {
 	
 	@Override
 	public void forgetToken(List<Integer> input, int index) {
-		List<Integer> sequence = NGramSequencer.sequenceAt(input, index, this.order);
-		for (int i = 0; i < sequence.size(); i++) {
-			this.counter.unCount(sequence.subList(i, sequence.size()));
-		}
+		int[] sequence = Util.toArray(NGramSequencer.sequenceAt(input, index, this.order));
+		this.counter.unCountSuffixes(sequence, 0, sequence.length);
+	}
+
+	/**
+	 * Prunes this model's counter by count (see {@link Counter#prune(int[], slp.core.counting.PruneCondition)}) and,
+	 * if {@code threshold} is positive, by relative entropy: in the spirit of Stolcke's entropy-based pruning,
+	 * an n-gram (n &gt; 1) without remaining extensions is pruned if its weighted contribution to the model's relative entropy,
+	 * approximated as <code>P(h, w) * (log P(w | h) - log P(w | h'))</code> where <code>h'</code> is <code>h</code> without its first token,
+	 * falls below {@code threshold}. This assumes that the probability of a pruned n-gram falls back to that of its lower order,
+	 * and evaluates n-grams in a single pass against the counter as it is being pruned.
+	 * 
+	 * @param minCounts Minimum count per n-gram order, starting at order 1
+	 * @param threshold Minimum (approximate) relative entropy contribution for an n-gram to be kept, or 0 to prune by count only
+	 * @return The number of n-grams pruned
+	 */
+	public long prune(int[] minCounts, double threshold) {
+		if (threshold <= 0) return this.counter.prune(minCounts, null);
+		double total = this.counter.getCount();
+		return this.counter.prune(minCounts, (tokens, length, count) ->
+				length > 1 && relativeEntropy(Util.toList(tokens, 0, length), count / total) < threshold);
+	}
+
+	private double relativeEntropy(List<Integer> sequence, double jointProbability) {
+		int last = sequence.size() - 1;
+		double probability = this.modelAtIndex(sequence, last).left;
+		double backoff = this.modelAtIndex(sequence.subList(1, sequence.size()), last - 1).left;
+		if (probability <= 0) return 0;
+		if (backoff <= 0) return Double.POSITIVE_INFINITY;
+		return jointProbability * (Math.log(probability) - Math.log(backoff));
 	}
 
 	@Override
 	public Pair<Double, Double> modelAtIndex(List<Integer> input, int index) {
-		List<Integer> sequence = NGramSequencer.sequenceAt(input, index, this.order);
+		Buffers buffers = this.buffers.get();
+		int[] tokens = buffers.tokens;
+		int start = Math.max(0, index - this.order + 1);
+		int length = index + 1 - start;
+		for (int i = 0; i < length; i++) tokens[i] = input.get(start + i);
+		// Look up the counts for all orders at once, from the shortest suffix up to the first unseen context
+		int hits = this.counter.getSuffixCounts(tokens, 0, length, buffers.counts, buffers.distinctCounts);
 		double probability = 0.0;
 		double mass = 0.0;
-		int hits = 0;
-		for (int i = sequence.size() - 1; i >= 0; i--) {
-			List<Integer> sub = sequence.subList(i, sequence.size());
-			long[] counts = this.counter.getCounts(sub);
-			if (counts[1] == 0) break;
-			Pair<Double, Double> resN = this.modelWithConfidence(sub, counts);
+		for (int k = 0; k < hits; k++) {
+			Pair<Double, Double> resN = this.modelWithConfidence(tokens, length - 1 - k, length, buffers.counts[k], buffers.distinctCounts[k]);
 			double prob = resN.left;
 			double conf = resN.right;
 			mass = (1 - conf)*mass + conf;
 			probability = (1 - conf)*probability + conf*prob;
-			hits++;
 		}
 		if (mass > 0) probability /= mass;
 		// In the new model, final confidence is asymptotically close to 1 for all n-gram models
@@ -97,16 +127,46 @@ public abstract class NGramModel extends AbstractModel {
 		return Pair.of(probability, confidence);
 	}
 
-	protected abstract Pair<Double, Double> modelWithConfidence(List<Integer> subList, long[] counts);
+	/**
+	 * Returns the number of distinct counts (see {@link Counter#getDistinctCounts(int, List)}) of each context
+	 * that this model needs in {@link #modelWithConfidence(int[], int, int, long[], int[])}, or 0 if it does not use them.
+	 */
+	protected int getDistinctCountRange() {
+		return 0;
+	}
+
+	/**
+	 * @param tokens Array holding the sequence to model, {@code tokens[from, to)}, ending in the token to be modeled
+	 * @param from Start (inclusive) of the sequence in {@code tokens}
+	 * @param to End (exclusive) of the sequence in {@code tokens}
+	 * @param counts The [count, context-count] pair of the sequence
+	 * @param distinctCounts The distinct counts of the context of the sequence, in the range given by {@link #getDistinctCountRange()}
+	 */
+	protected abstract Pair<Double, Double> modelWithConfidence(int[] tokens, int from, int to, long[] counts, int[] distinctCounts);
+
+	private static final class Buffers {
+		final int[] tokens;
+		final long[][] counts;
+		final int[][] distinctCounts;
+
+		Buffers(int order, int range) {
+			this.tokens = new int[order];
+			this.counts = new long[order][2];
+			this.distinctCounts = new int[order][range];
+		}
+	}
 
 	@Override
 	public Map<Integer, Pair<Double, Double>> predictAtIndex(List<Integer> input, int index) {
-		List<Integer> sequence = NGramSequencer.sequenceAt(input, index - 1, this.order);
+		int[] sequence = Util.toArray(NGramSequencer.sequenceAt(input, index - 1, this.order));
 		Set<Integer> predictions = new HashSet<>();
-		for (int i = 0; i <= sequence.size(); i++) {
+		int[] successors = new int[Math.max(0, ModelRunner.GLOBAL_PREDICTION_CUTOFF)];
+		for (int i = 0; i <= sequence.length; i++) {
 			int limit = ModelRunner.GLOBAL_PREDICTION_CUTOFF - predictions.size();
 			if (limit <= 0) break;
-			predictions.addAll(this.counter.getTopSuccessors(sequence.subList(i, sequence.size()), limit));
+			int[] top = limit == successors.length ? successors : new int[limit];
+			int found = this.counter.getTopSuccessors(sequence, i, sequence.length, top);
+			for (int j = 0; j < found; j++) predictions.add(top[j]);
 		}
 		return predictions.stream().collect(Collectors.toMap(p -> p, p -> prob(input, index, p)));
 	}
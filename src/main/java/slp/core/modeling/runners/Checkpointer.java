@@ -0,0 +1,268 @@
+package slp.core.modeling.runners;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import slp.core.counting.Counter;
+import slp.core.counting.giga.GigaCounter;
+import slp.core.counting.giga.SpillingCounter;
+import slp.core.counting.giga.VirtualCounter;
+import slp.core.counting.io.CounterFile;
+import slp.core.counting.trie.AbstractTrie;
+import slp.core.counting.trie.MapTrieCounter;
+import slp.core.modeling.ngram.NGramModel;
+import slp.core.translating.Vocabulary;
+import slp.core.util.Util;
+
+/**
+ * Periodically stores the progress of {@link ModelRunner#learnDirectory(File)} with an {@link NGramModel}, so that training can be resumed
+ * after the process dies. Every checkpoint consists of:
+ * <ul>
+ * <li>A counter with just the counts of the files learned since the previous checkpoint ({@code checkpoint-k.counter}).
+ * These are counted into a separate counter alongside the model's own as every file is learned, so the model's counter is never copied;
+ * only writing the checkpoint is left to a background thread.
+ * <li>The vocabulary at the time of the checkpoint ({@code checkpoint.vocab}), since indices are only meaningful with respect to it.
+ * <li>A manifest of the files it covers ({@code checkpoint-k.files}), which is written last (and atomically), marking the checkpoint as complete.
+ * </ul>
+ * When resuming, the vocabulary is restored, files covered by complete checkpoints are skipped and, once the remaining files are learned,
+ * the checkpointed counts are merged into the model's counter (which must thus support {@link Counter#merge(Counter)}).
+ *
+ * @author Vincent Hellendoorn
+ *
+ */
+final class Checkpointer {
+
+	private static final Pattern MANIFEST = Pattern.compile("checkpoint-(\\d+)\\.files");
+	private static final String VOCABULARY = "checkpoint.vocab";
+
+	private final File directory;
+	private final int order;
+	private final int fileInterval;
+	private final long tokenInterval;
+	private final ExecutorService writer;
+
+	private boolean active;
+	private Set<String> done;
+	private List<File> resumed;
+	private int next;
+
+	private Counter counter;
+	private List<String> files;
+	private long tokens;
+	private Future<?> pending;
+
+	/**
+	 * @param directory The directory to store checkpoints in
+	 * @param order The order of the model being trained
+	 * @param fileInterval Checkpoint after this many files (if > 0)
+	 * @param tokenInterval Checkpoint after this many tokens (if > 0)
+	 */
+	Checkpointer(File directory, int order, int fileInterval, long tokenInterval) {
+		this.directory = directory;
+		this.order = order;
+		this.fileInterval = fileInterval;
+		this.tokenInterval = tokenInterval;
+		this.writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "checkpoint-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns whether checkpoints can be resumed into {@code counter}, i.e. whether it can merge the tries they are stored as
+	 */
+	static boolean supports(Counter counter) {
+		return counter instanceof AbstractTrie || counter instanceof GigaCounter
+				|| counter instanceof SpillingCounter || counter instanceof VirtualCounter;
+	}
+
+	/**
+	 * Starts recording, first restoring {@code vocabulary} and the set of files learned from any checkpoints found in the directory
+	 *
+	 * @throws IllegalStateException if {@code vocabulary} is incompatible with that of the checkpoints
+	 */
+	void resume(Vocabulary vocabulary) {
+		this.done = new HashSet<>();
+		this.resumed = new ArrayList<>();
+		this.next = 0;
+		this.directory.mkdirs();
+		File[] manifests = this.directory.listFiles();
+		try {
+			for (File manifest : manifests == null ? new File[0] : manifests) {
+				Matcher matcher = MANIFEST.matcher(manifest.getName());
+				if (!matcher.matches()) continue;
+				int k = Integer.parseInt(matcher.group(1));
+				this.done.addAll(Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8));
+				this.resumed.add(getCounterFile(k));
+				this.next = Math.max(this.next, k + 1);
+			}
+			if (!this.resumed.isEmpty()) {
+				restoreVocabulary(vocabulary);
+				System.out.printf("Resuming from %d checkpoints, skipping %d files\n", this.resumed.size(), this.done.size());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Reading checkpoints failed", e);
+		}
+		this.counter = new MapTrieCounter();
+		this.files = new ArrayList<>();
+		this.tokens = 0;
+		this.active = true;
+	}
+
+	/**
+	 * Returns whether {@code file} was learned before the last checkpoint
+	 */
+	boolean isDone(File file) {
+		return this.done.contains(file.getAbsolutePath());
+	}
+
+	/**
+	 * Counts {@code sequence} towards the next checkpoint, the same way the model learns it
+	 */
+	void record(List<Integer> sequence) {
+		if (!this.active) return;
+		int[] tokens = Util.toArray(sequence);
+		for (int start = 0; start < tokens.length; start++) {
+			this.counter.count(tokens, start, Math.min(tokens.length, start + this.order));
+		}
+		this.tokens += tokens.length;
+	}
+
+	/**
+	 * Marks {@code file} as learned, storing a checkpoint if one is due
+	 */
+	void fileDone(File file, Vocabulary vocabulary) {
+		if (!this.active) return;
+		this.files.add(file.getAbsolutePath());
+		if ((this.fileInterval > 0 && this.files.size() >= this.fileInterval)
+				|| (this.tokenInterval > 0 && this.tokens >= this.tokenInterval)) {
+			checkpoint(vocabulary);
+		}
+	}
+
+	private void checkpoint(Vocabulary vocabulary) {
+		// Wait for the previous checkpoint first, so that at most one is held in memory while the next accumulates
+		await();
+		Counter counter = this.counter;
+		List<String> files = this.files;
+		List<String> words;
+		List<Integer> counts;
+		synchronized (vocabulary) {
+			words = new ArrayList<>(vocabulary.getWords());
+			counts = new ArrayList<>(vocabulary.getCounts());
+		}
+		int k = this.next++;
+		this.pending = this.writer.submit(() -> {
+			try {
+				File counterFile = getCounterFile(k);
+				File temp = new File(this.directory, counterFile.getName() + ".tmp");
+				CounterFile.write(counter, temp);
+				Files.move(temp.toPath(), counterFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				writeVocabulary(words, counts);
+				File manifest = new File(this.directory, "checkpoint-" + k + ".files");
+				temp = new File(this.directory, manifest.getName() + ".tmp");
+				Files.write(temp.toPath(), files, StandardCharsets.UTF_8);
+				Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		this.counter = new MapTrieCounter();
+		this.files = new ArrayList<>();
+		this.tokens = 0;
+	}
+
+	/**
+	 * Waits for the checkpoint being written, if any. A failed checkpoint is reported but not fatal:
+	 * its files are simply learned again when resuming.
+	 */
+	private void await() {
+		if (this.pending == null) return;
+		try {
+			this.pending.get();
+		} catch (ExecutionException e) {
+			System.err.print("Writing checkpoint failed: ");
+			e.getCause().printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.pending = null;
+	}
+
+	/**
+	 * Stops recording and merges the counts of all checkpoints that were resumed from into {@code model}'s counter
+	 */
+	void finish(NGramModel model) {
+		if (!this.active) return;
+		this.active = false;
+		await();
+		this.counter = null;
+		this.files = null;
+		for (File file : this.resumed) {
+			try {
+				model.getCounter().merge(CounterFile.read(file));
+			} catch (IOException | ClassNotFoundException e) {
+				throw new IllegalStateException("Reading checkpoint failed: " + file, e);
+			}
+		}
+		this.resumed = null;
+	}
+
+	/**
+	 * Deletes all checkpoints, e.g. once the trained counter has been stored
+	 */
+	void clear() {
+		await();
+		File[] files = this.directory.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (file.getName().startsWith("checkpoint")) file.delete();
+		}
+	}
+
+	private File getCounterFile(int k) {
+		return new File(this.directory, "checkpoint-" + k + ".counter");
+	}
+
+	/*
+	 * The vocabulary is stored in the same format as by VocabularyRunner, but never cut off when read,
+	 * since the indices in the checkpointed counters must remain valid
+	 */
+	private void writeVocabulary(List<String> words, List<Integer> counts) throws IOException {
+		File file = new File(this.directory, VOCABULARY);
+		File temp = new File(this.directory, VOCABULARY + ".tmp");
+		try (BufferedWriter fw = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			for (int i = 0; i < words.size(); i++) {
+				fw.append(counts.get(i) + "\t" + i + "\t" + words.get(i) + "\n");
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void restoreVocabulary(Vocabulary vocabulary) throws IOException {
+		File file = new File(this.directory, VOCABULARY);
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			String[] split = line.split("\t", 3);
+			int index = Integer.parseInt(split[1]);
+			if (vocabulary.store(split[2], Integer.parseInt(split[0])) != index) {
+				throw new IllegalStateException("Vocabulary does not match the checkpoints in " + this.directory + " at token: " + split[2]);
+			}
+		}
+	}
+}
@@ -44,6 +44,7 @@ public class ModelRunner {
 	protected final Model model;
 
 	private boolean selfTesting = false;
+	private Checkpointer checkpointer = null;
 	
 	public ModelRunner(Model model, LexerRunner lexerRunner, Vocabulary vocabulary) {
 		this.lexerRunner = lexerRunner;
@@ -87,6 +88,43 @@ public class ModelRunner {
 		this.selfTesting = selfTesting;
 	}
 	
+	/**
+	 * Enables checkpointing in {@link #learnDirectory(File)}: every {@code fileInterval} files or {@code tokenInterval} tokens
+	 * (whichever comes first), the counts learned since the previous checkpoint are stored in {@code directory}, in the background.
+	 * If {@code directory} already holds checkpoints, e.g. from a training run that died, {@link #learnDirectory(File)} resumes from these:
+	 * it restores the vocabulary, skips the files they cover and merges their counts into the model's counter when done.
+	 * <br />
+	 * Note: requires an {@link NGramModel} whose counter supports {@link slp.core.counting.Counter#merge(slp.core.counting.Counter)}
+	 * with trie counters, and a vocabulary that is either empty or the one that was used for the checkpoints.
+	 * 
+	 * @param directory The directory to store checkpoints in, or null to disable checkpointing
+	 * @param fileInterval The number of files per checkpoint (0 for no limit)
+	 * @param tokenInterval The number of tokens per checkpoint (0 for no limit)
+	 * @throws IllegalArgumentException if the model or its counter does not support checkpointing
+	 */
+	public void setCheckpointing(File directory, int fileInterval, long tokenInterval) {
+		if (directory == null) {
+			this.checkpointer = null;
+			return;
+		}
+		if (!(this.model instanceof NGramModel)) {
+			throw new IllegalArgumentException("Checkpointing is only supported for n-gram models");
+		}
+		NGramModel model = (NGramModel) this.model;
+		if (!Checkpointer.supports(model.getCounter())) {
+			throw new IllegalArgumentException("Checkpointing requires a counter that can be merged, found: "
+					+ model.getCounter().getClass().getSimpleName());
+		}
+		this.checkpointer = new Checkpointer(directory, model.getOrder(), fileInterval, tokenInterval);
+	}
+
+	/**
+	 * Deletes all checkpoints stored by {@link #learnDirectory(File)}, e.g. once the trained model has been stored
+	 */
+	public void clearCheckpoints() {
+		if (this.checkpointer != null) this.checkpointer.clear();
+	}
+
 	public static int getPredictionCutoff() {
 		return GLOBAL_PREDICTION_CUTOFF;
 	}
@@ -100,11 +138,16 @@ public class ModelRunner {
 
 	public void learnDirectory(File file) {
 		this.learnStats = new long[] { 0, -System.currentTimeMillis() };
+		Checkpointer checkpointer = this.checkpointer;
+		if (checkpointer != null) checkpointer.resume(this.vocabulary);
 		this.lexerRunner.lexDirectory(file)
+			.filter(p -> checkpointer == null || !checkpointer.isDone(p.left))
 			.forEach(p -> {
 				this.model.notify(p.left);
 				this.learnTokens(p.right);
+				if (checkpointer != null) checkpointer.fileDone(p.left, this.vocabulary);
 			});
+		if (checkpointer != null) checkpointer.finish((NGramModel) this.model);
 		if (this.learnStats[0] > LEARN_PRINT_INTERVAL && this.learnStats[1] != 0) {
 			System.out.printf("Counting complete: %d tokens processed in %ds\n",
 					this.learnStats[0], (System.currentTimeMillis() + this.learnStats[1])/1000);
@@ -126,15 +169,20 @@ public class ModelRunner {
 			lexed.map(this.getVocabulary()::toIndices)
 				.map(l -> l.peek(l2 -> logLearningProgress()))
 				.map(l -> l.collect(Collectors.toList()))
-				.forEach(this.model::learn);
+				.forEach(this::learnIndices);
 		}
 		else {
-			this.model.learn(lexed.map(l -> l.peek(l2 -> logLearningProgress()))
+			this.learnIndices(lexed.map(l -> l.peek(l2 -> logLearningProgress()))
 				.flatMap(this.getVocabulary()::toIndices)
 				.collect(Collectors.toList()));
 		}
 	}
 
+	private void learnIndices(List<Integer> indices) {
+		this.model.learn(indices);
+		if (this.checkpointer != null) this.checkpointer.record(indices);
+	}
+
 	private void logLearningProgress() {
 		if (++this.learnStats[0] % this.LEARN_PRINT_INTERVAL == 0 && this.learnStats[1] != 0) {
 			System.out.printf("Counting: %dM tokens processed in %ds\n",
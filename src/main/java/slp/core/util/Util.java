@@ -18,4 +18,16 @@ public class Util {
 		}
 		return files;
 	}
+
+	public static int[] toArray(List<Integer> indices) {
+		int[] tokens = new int[indices.size()];
+		for (int i = 0; i < tokens.length; i++) tokens[i] = indices.get(i);
+		return tokens;
+	}
+
+	public static List<Integer> toList(int[] tokens, int from, int to) {
+		List<Integer> indices = new ArrayList<>(to - from);
+		for (int i = from; i < to; i++) indices.add(tokens[i]);
+		return indices;
+	}
 }